@@ -9,15 +9,20 @@ import hudson.Launcher;
 import hudson.model.Node;
 import hudson.model.TaskListener;
 import hudson.util.ArgumentListBuilder;
+import hudson.util.DirScanner;
 
-import java.io.File;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -51,18 +56,26 @@ class Cache {
     /**
      * Mutual exclusion to the access to the cache.
      */
-    private final ReentrantLock masterLock = new ReentrantLock(true);
-    private final Map<String, ReentrantLock> slaveNodesLocksMap = new HashMap<String, ReentrantLock>();
+    private final ReentrantLock masterLock;
 
     private Cache(String remote, String hash, StandardUsernameCredentials credentials, String masterCacheRoot) {
         this.remote = remote;
         this.hash = hash;
         this.credentials = credentials;
         this.masterCacheRoot = masterCacheRoot;
+        this.masterLock = masterLockFor(hash);
     }
 
     private static final Map<String, Cache> CACHES = new HashMap<String, Cache>();
 
+    /**
+     * Locks are kept by {@link #hash} rather than per {@link Cache} instance,
+     * so that {@link CacheCollector} can exclude builds from a cache directory
+     * even when it has not been used since startup.
+     */
+    private static final Map<String, ReentrantLock> MASTER_LOCKS = new HashMap<String, ReentrantLock>();
+    private static final Map<String, ReentrantLock> SLAVE_NODE_LOCKS = new HashMap<String, ReentrantLock>();
+
     public synchronized static @NonNull Cache fromURL(String remote, StandardUsernameCredentials credentials, @CheckForNull String masterCacheRoot) {
         String h = hashSource(remote, credentials, masterCacheRoot);
         Cache cache = CACHES.get(h);
@@ -73,19 +86,219 @@ class Cache {
     }
 
     /**
-     * Gets a lock for the given agent node.
+     * Gets the lock for the controller copy of a cache.
+     * @param hash a {@link #hashSource}, i.e. the name of the cache directory
+     * @return The {@link ReentrantLock} instance.
+     */
+    static synchronized @NonNull ReentrantLock masterLockFor(String hash) {
+        ReentrantLock lock = MASTER_LOCKS.get(hash);
+        if (lock == null) {
+            MASTER_LOCKS.put(hash, lock = new ReentrantLock(true));
+        }
+        return lock;
+    }
+
+    /**
+     * Gets a lock for the agent copy of a cache.
+     * @param hash a {@link #hashSource}, i.e. the name of the cache directory
      * @param node Name of the agent node.
      * @return The {@link ReentrantLock} instance.
      */
-    private synchronized ReentrantLock getLockForSlaveNode(String node) {
-        ReentrantLock lock = slaveNodesLocksMap.get(node);
+    static synchronized @NonNull ReentrantLock slaveNodeLockFor(String hash, String node) {
+        String key = hash + '@' + node;
+        ReentrantLock lock = SLAVE_NODE_LOCKS.get(key);
         if (lock == null) {
-            slaveNodesLocksMap.put(node, lock = new ReentrantLock(true));
+            SLAVE_NODE_LOCKS.put(key, lock = new ReentrantLock(true));
         }
-    
         return lock;
     }
-    
+
+    /**
+     * Gets a lock for the given agent node.
+     * @param node Name of the agent node.
+     * @return The {@link ReentrantLock} instance.
+     */
+    private ReentrantLock getLockForSlaveNode(String node) {
+        return slaveNodeLockFor(hash, node);
+    }
+
+    /**
+     * Finds the directories on the controller holding caches for a given root setting.
+     * @param masterCacheRoot as in {@link MercurialInstallation#getMasterCacheRoot}
+     * @return one or more directories (which may not yet exist)
+     */
+    static @NonNull List<FilePath> masterCacheRoots(@CheckForNull String masterCacheRoot) throws IOException {
+        final Node master = Jenkins.getInstance();
+        List<FilePath> roots = new ArrayList<FilePath>();
+        for (String root : MercurialInstallation.parseMasterCacheRoots(masterCacheRoot)) {
+            roots.add(new FilePath(master.getChannel(), root));
+        }
+        if (roots.isEmpty()) {
+            FilePath rootPath = master.getRootPath();
+            if (rootPath == null) {
+                throw new IOException("Cannot retrieve the root directory of the Jenkins controller node");
+            }
+            roots.add(rootPath.child("hgcache"));
+        }
+        return roots;
+    }
+
+    /**
+     * Finds the controller copy of a cache.
+     * An existing cache is used wherever it is; otherwise a root is chosen according to the placement.
+     * Should be called with the {@link #masterLockFor master lock} held.
+     */
+    static @NonNull FilePath locateMasterCache(@CheckForNull String masterCacheRoot, @NonNull MercurialInstallation.CachePlacement placement, String hash) throws IOException, InterruptedException {
+        List<FilePath> roots = masterCacheRoots(masterCacheRoot);
+        if (roots.size() == 1) {
+            return roots.get(0).child(hash);
+        }
+        for (FilePath root : roots) {
+            FilePath cache = root.child(hash);
+            if (cache.isDirectory()) {
+                return cache;
+            }
+        }
+        return choose(roots, placement, hash).child(hash);
+    }
+
+    private static FilePath choose(List<FilePath> roots, MercurialInstallation.CachePlacement placement, String hash) throws IOException, InterruptedException {
+        switch (placement) {
+        case FREE_SPACE:
+            FilePath best = null;
+            long bestSpace = -1;
+            for (FilePath root : roots) {
+                root.mkdirs();
+                long space = root.getUsableDiskSpace();
+                if (space > bestSpace) {
+                    best = root;
+                    bestSpace = space;
+                }
+            }
+            return best;
+        default:
+            return roots.get(Math.floorMod(hash.hashCode(), roots.size()));
+        }
+    }
+
+    /**
+     * Moves existing controller caches of an installation to the root its placement would now choose.
+     * Caches in use are skipped.
+     * With {@link MercurialInstallation.CachePlacement#FREE_SPACE}, caches are moved largest first off the fullest volume
+     * for as long as that narrows the gap in free space.
+     * @return the number of caches moved
+     */
+    static int rebalance(MercurialInstallation inst, TaskListener listener) throws IOException, InterruptedException {
+        List<FilePath> roots = masterCacheRoots(inst.getMasterCacheRoot());
+        if (roots.size() < 2) {
+            return 0;
+        }
+        int moved = 0;
+        if (inst.getCachePlacement() == MercurialInstallation.CachePlacement.HASH) {
+            for (FilePath root : roots) {
+                if (!root.isDirectory()) {
+                    continue;
+                }
+                for (FilePath cache : root.listDirectories()) {
+                    FilePath target = choose(roots, MercurialInstallation.CachePlacement.HASH, cache.getName());
+                    if (!target.equals(root) && move(cache, target, listener)) {
+                        moved++;
+                    }
+                }
+            }
+            return moved;
+        }
+        Set<FilePath> exhausted = new HashSet<FilePath>();
+        while (true) {
+            FilePath fullest = null, emptiest = null;
+            long least = Long.MAX_VALUE, most = -1;
+            for (FilePath root : roots) {
+                root.mkdirs();
+                long space = root.getUsableDiskSpace();
+                if (space < least && !exhausted.contains(root)) {
+                    fullest = root;
+                    least = space;
+                }
+                if (space > most) {
+                    emptiest = root;
+                    most = space;
+                }
+            }
+            if (fullest == null || fullest.equals(emptiest)) {
+                return moved;
+            }
+            FilePath candidate = null;
+            long candidateSize = 0;
+            for (FilePath cache : fullest.listDirectories()) {
+                long size = cache.act(new CacheCollector.DiskUsage());
+                // moving a cache bigger than half the gap would only reverse the imbalance
+                if (size > candidateSize && size <= (most - least) / 2 && !masterLockFor(cache.getName()).isLocked()) {
+                    candidate = cache;
+                    candidateSize = size;
+                }
+            }
+            if (candidate == null || !move(candidate, emptiest, listener)) {
+                exhausted.add(fullest);
+            } else {
+                moved++;
+            }
+        }
+    }
+
+    private static boolean move(FilePath cache, FilePath root, TaskListener listener) throws IOException, InterruptedException {
+        String hash = cache.getName();
+        ReentrantLock lock = masterLockFor(hash);
+        if (!lock.tryLock()) {
+            listener.getLogger().println("Skipping " + cache + " which is in use");
+            return false;
+        }
+        try {
+            if (isSlaveNodeLocked(hash)) {
+                // an agent may be receiving a bundle made from this cache
+                listener.getLogger().println("Skipping " + cache + " which is being transferred to an agent");
+                return false;
+            }
+            FilePath target = root.child(hash);
+            if (target.exists()) {
+                listener.error("Not moving " + cache + " since " + target + " already exists");
+                return false;
+            }
+            listener.getLogger().println("Moving " + cache + " to " + root);
+            FilePath temp = root.child(hash + ".moving");
+            temp.deleteRecursive();
+            // default excludes would skip .hg
+            cache.copyRecursiveTo(new DirScanner.Glob("**/*", null, false), temp, "Mercurial cache");
+            temp.renameTo(target);
+            cache.deleteRecursive();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether any agent copy of a cache is being updated, in which case a bundle may be being made from the controller copy.
+     */
+    static synchronized boolean isSlaveNodeLocked(String hash) {
+        for (Map.Entry<String, ReentrantLock> entry : SLAVE_NODE_LOCKS.entrySet()) {
+            if (entry.getKey().startsWith(hash + '@') && entry.getValue().isLocked()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the directory on an agent holding all of its caches.
+     */
+    static @NonNull FilePath slaveNodeCaches(Node node) throws IOException {
+        final FilePath nodeRootPath = node.getRootPath();
+        if (nodeRootPath == null) {
+            throw new IOException("Cannot retrieve the root directory of the Jenkins node");
+        }
+        return nodeRootPath.child("hgcache");
+    }
+
 
     /**
      * Returns a local hg repository cache of the remote repository specified in the given {@link MercurialSCM}
@@ -99,58 +312,100 @@ class Cache {
      */
     @CheckForNull FilePath repositoryCache(MercurialInstallation inst, Node node, Launcher launcher, TaskListener listener, boolean useTimeout)
             throws IOException, InterruptedException {
-        boolean masterWasLocked = masterLock.isLocked();
-        if (masterWasLocked) {
-            listener.getLogger().println("Waiting for controller lock on hgcache/" + hash + " " + masterLock + "...");
+        return repositoryCache(inst, node, launcher, listener, useTimeout, false);
+    }
+
+    /**
+     * Returns the controller cache without pulling, if it already has some changesets,
+     * typically the heads of the remote repository as reported by {@link WireProtocolClient}.
+     * @param launcher a launcher for the controller
+     * @param heads full changeset IDs
+     * @return the cache, or null if it is missing, busy or behind, so that {@link #repositoryCache} is needed
+     */
+    @CheckForNull FilePath currentMasterCache(MercurialInstallation inst, Launcher launcher, TaskListener listener, Collection<String> heads)
+            throws IOException, InterruptedException {
+        final Node master = Jenkins.getInstance();
+        if (CacheCloneTask.running(hash) != null || !masterLock.tryLock()) {
+            return null;
         }
+        try {
+            FilePath masterCache = locateMasterCache(masterCacheRoot, inst.getCachePlacement(), hash);
+            if (!masterCache.isDirectory()) {
+                return null;
+            }
+            try (HgExe masterHg = new HgExe(inst, credentials, launcher, master, listener, new EnvVars())) {
+                return masterHg.containsAll(masterCache, heads) ? masterCache : null;
+            }
+        } finally {
+            masterLock.unlock();
+        }
+    }
 
+    /**
+     * Like {@link #repositoryCache(MercurialInstallation, Node, Launcher, TaskListener, boolean)}
+     * but optionally giving up if the controller cache is still being cloned and will not be ready soon.
+     * @param mayFallBack true if the caller can do without a cache, as when cloning a workspace
+     * @see CacheCloneTask#await
+     */
+    @CheckForNull FilePath repositoryCache(MercurialInstallation inst, Node node, Launcher launcher, TaskListener listener, boolean useTimeout, boolean mayFallBack)
+            throws IOException, InterruptedException {
         // Always update controller cache first.
         final Node master = Jenkins.getInstance();
         if (master == null) { // Should not happen
             throw new IOException("Cannot retrieve the Jenkins controller node");
         }
 
-        FilePath masterCaches = null;
-        if (masterCacheRoot != null){
-            masterCaches = new FilePath(master.getChannel(), masterCacheRoot);
-        } else {
-            FilePath rootPath = master.getRootPath();
-            if (rootPath == null) {
-                throw new IOException("Cannot retrieve the root directory of the Jenkins controller node");
-            }
-            masterCaches = rootPath.child("hgcache");
-        }
-
-        FilePath masterCache = masterCaches.child(hash);
+        FilePath masterCache;
         Launcher masterLauncher = node == master ? launcher : master.createLauncher(listener);
 
         // hg invocation on controller
         // do we need to pass in EnvVars from a build too?
         try (HgExe masterHg = new HgExe(inst, credentials, masterLauncher, master, listener, new EnvVars())) {
-            // Lock the block used to verify we end up having a cloned repo in the controller,
-            // whether if it was previously cloned in a different build or if it's
-            // going to be cloned right now.
-            masterLock.lockInterruptibly();
-            try {
-                listener.getLogger().println("Acquired controller cache lock.");
-                // TODO use getCredentials()
-                if (masterCache.isDirectory()) {
-                    ArgumentListBuilder args = masterHg.seed(true).add("pull");
-                    if (HgExe.joinWithPossibleTimeout(masterHg.launch(args).pwd(masterCache), true, listener) != 0) {
-                        listener.error("Failed to update " + masterCache);
+            masterHg.setDefaultRemote(remote);
+            CacheCloneTask cloning = null;
+            boolean cloned = false;
+            while (true) {
+                // The initial clone is done in the background, holding the lock.
+                // Rather than waiting silently on the lock, follow its progress.
+                if (cloning == null) {
+                    cloning = CacheCloneTask.running(hash);
+                }
+                if (cloning != null) {
+                    if (!cloning.await(listener, mayFallBack)) {
                         return null;
                     }
-                } else {
-                    masterCaches.mkdirs();
-                    ArgumentListBuilder args = masterHg.seed(true).add("clone").add("--noupdate").add(remote);
-                    if (HgExe.joinWithPossibleTimeout(masterHg.launch(args.add(masterCache.getRemote())), useTimeout, listener) != 0) {
-                        listener.error("Failed to clone " + remote);
-                        return null;
+                    cloned = true;
+                }
+                cloning = null;
+                boolean masterWasLocked = masterLock.isLocked();
+                if (masterWasLocked) {
+                    listener.getLogger().println("Waiting for controller lock on hgcache/" + hash + " " + masterLock + "...");
+                }
+                // Lock the block used to verify we end up having a cloned repo in the controller,
+                // whether if it was previously cloned in a different build or if it's
+                // going to be cloned right now.
+                masterLock.lockInterruptibly();
+                try {
+                    listener.getLogger().println("Acquired controller cache lock.");
+                    masterCache = locateMasterCache(masterCacheRoot, inst.getCachePlacement(), hash);
+                    // TODO use getCredentials()
+                    if (masterCache.isDirectory()) {
+                        // A clone we started or waited for is as current as a pull would make it.
+                        if (!cloned) {
+                            ArgumentListBuilder args = masterHg.seed(true).add("pull");
+                            if (masterHg.join(masterHg.launch(args).pwd(masterCache), true) != 0) {
+                                listener.error("Failed to update " + masterCache);
+                                return null;
+                            }
+                        }
+                        break;
                     }
+                    // Will block on the lock until we release it.
+                    cloning = CacheCloneTask.start(hash, remote, masterCache, masterLock, inst, credentials, useTimeout);
+                } finally {
+                    masterLock.unlock();
+                    listener.getLogger().println("Controller cache lock released.");
                 }
-            } finally {
-                masterLock.unlock();
-                listener.getLogger().println("Controller cache lock released.");
             }
             if (node == master) {
                 return masterCache;
@@ -172,11 +427,7 @@ class Cache {
             try {
                 listener.getLogger().println("Acquired agent node cache lock for node " + node.getNodeName() + ".");
 
-                final FilePath nodeRootPath = node.getRootPath();
-                if (nodeRootPath == null) {
-                    throw new IOException("Cannot retrieve the root directory of the Jenkins node");
-                }
-                FilePath localCaches = nodeRootPath.child("hgcache");
+                FilePath localCaches = slaveNodeCaches(node);
                 FilePath localCache = localCaches.child(hash);
 
                 // Bundle name is node-specific, as we may have more than one
@@ -188,10 +439,24 @@ class Cache {
                 try {
                     // hg invocation on the agent
                     try (HgExe slaveHg = new HgExe(inst, credentials, launcher, node, listener, new EnvVars())) {
+                        String bundleType = CapabilityProbe.bundleType(masterHg.capabilities(), slaveHg.capabilities());
                         if (localCache.isDirectory()) {
                             // Need to transfer just newly available changesets.
-                            Set<String> masterHeads = masterHg.heads(masterCache, useTimeout);
-                            Set<String> localHeads = slaveHg.heads(localCache, useTimeout);
+                            // the two queries run on different machines, so overlap them
+                            final FilePath _masterCache = masterCache;
+                            CompletableFuture<Set<String>> masterHeadsFuture = masterHg.async(new HgExe.Call<Set<String>>() {
+                                @Override public Set<String> call() throws IOException, InterruptedException {
+                                    return masterHg.heads(_masterCache, useTimeout);
+                                }
+                            });
+                            Set<String> localHeads;
+                            try {
+                                localHeads = slaveHg.heads(localCache, useTimeout);
+                            } catch (IOException | InterruptedException | RuntimeException x) {
+                                masterHeadsFuture.cancel(true);
+                                throw x;
+                            }
+                            Set<String> masterHeads = HgExe.await(masterHeadsFuture);
                             if (localHeads.equals(masterHeads)) {
                                 listener.getLogger().println("Local cache is up to date.");
                             } else {
@@ -202,27 +467,27 @@ class Cache {
                                 // to actually exclude those head sets, but not a big deal. (Hg 1.5 fixes that but leaves
                                 // a major bug that if no csets are selected, the whole repo will be bundled; fortunately
                                 // this case should be caught by equality check above.)
-                                if (HgExe.joinWithPossibleTimeout(masterHg.bundle(localHeads, bundleFileName).
-                                        pwd(masterCache), useTimeout, listener) != 0) {
+                                if (masterHg.join(masterHg.bundle(localHeads, bundleFileName, bundleType).
+                                        pwd(masterCache), useTimeout) != 0) {
                                     listener.error("Failed to send outgoing changes");
                                     return null;
                                 }
                             }
                         } else {
                             // Need to transfer entire repo.
-                            if (HgExe.joinWithPossibleTimeout(masterHg.bundleAll(bundleFileName).pwd(masterCache), useTimeout, listener) != 0) {
+                            if (masterHg.join(masterHg.bundleAll(bundleFileName, bundleType).pwd(masterCache), useTimeout) != 0) {
                                 listener.error("Failed to bundle repo");
                                 return null;
                             }
                             localCaches.mkdirs();
-                            if (HgExe.joinWithPossibleTimeout(slaveHg.init(localCache), useTimeout, listener) != 0) {
+                            if (slaveHg.join(slaveHg.init(localCache), useTimeout) != 0) {
                                 listener.error("Failed to create local cache");
                                 return null;
                             }
                         }
                         if (masterTransfer.exists()) {
                             masterTransfer.copyTo(localTransfer);
-                            if (HgExe.joinWithPossibleTimeout(slaveHg.unbundle("xfer.hg").pwd(localCache), useTimeout, listener) != 0) {
+                            if (slaveHg.join(slaveHg.unbundle("xfer.hg").pwd(localCache), useTimeout) != 0) {
                                 listener.error("Failed to unbundle " + localTransfer);
                                 return null;
                             }
@@ -253,8 +518,10 @@ class Cache {
         if (credentials != null){
             digestible +=  '#' + credentials.getId();
         }
-        if (masterCacheRoot != null){
-            digestible += "#" + masterCacheRoot.replaceAll(File.pathSeparator, "_");
+        List<String> roots = MercurialInstallation.parseMasterCacheRoots(masterCacheRoot);
+        if (!roots.isEmpty()) {
+            // only the first root, so that adding more does not orphan existing caches
+            digestible += "#" + roots.get(0);
         }
 
         BigInteger hash;
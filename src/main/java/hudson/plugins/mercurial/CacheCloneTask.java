@@ -0,0 +1,262 @@
+package hudson.plugins.mercurial;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Initial clone of a controller {@link Cache}, run in the background so that
+ * builds waiting for it can report progress, and give up in favor of a direct clone
+ * if the cache is clearly not going to be ready soon.
+ */
+@Restricted(NoExternalUse.class)
+public final class CacheCloneTask implements Runnable {
+
+    /**
+     * If a waiting build estimates that the clone needs longer than this, it clones directly instead.
+     */
+    static /* not final */ long FALLBACK_THRESHOLD = SystemProperties.getLong(CacheCloneTask.class.getName() + ".fallbackThreshold", TimeUnit.MINUTES.toMillis(15));
+
+    /**
+     * How often waiting builds print progress.
+     */
+    static /* not final */ long REPORT_INTERVAL = SystemProperties.getLong(CacheCloneTask.class.getName() + ".reportInterval", TimeUnit.SECONDS.toMillis(15));
+
+    /**
+     * Progress of a topic is only extrapolated after this much time in it.
+     */
+    private static final long MINIMUM_SAMPLE = TimeUnit.SECONDS.toMillis(30);
+
+    private static final int HISTORY = 20;
+
+    /** By cache hash; running tasks plus a few finished ones. */
+    private static final Map<String, CacheCloneTask> TASKS = new LinkedHashMap<String, CacheCloneTask>();
+
+    private final String hash;
+    private final String remote;
+    private final FilePath masterCache;
+    private final ReentrantLock masterLock;
+    private final MercurialInstallation inst;
+    private final @CheckForNull StandardUsernameCredentials credentials;
+    private final boolean useTimeout;
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final long started = System.currentTimeMillis();
+    private volatile long finished;
+    private volatile boolean done, succeeded;
+    private volatile String topic;
+    private volatile long position, total, topicStarted;
+
+    private CacheCloneTask(String hash, String remote, FilePath masterCache, ReentrantLock masterLock, MercurialInstallation inst, @CheckForNull StandardUsernameCredentials credentials, boolean useTimeout) {
+        this.hash = hash;
+        this.remote = remote;
+        this.masterCache = masterCache;
+        this.masterLock = masterLock;
+        this.inst = inst;
+        this.credentials = credentials;
+        this.useTimeout = useTimeout;
+    }
+
+    /**
+     * Starts cloning a cache unless that is already under way.
+     * @return the new or existing task
+     */
+    static @NonNull CacheCloneTask start(String hash, String remote, FilePath masterCache, ReentrantLock masterLock, MercurialInstallation inst, @CheckForNull StandardUsernameCredentials credentials, boolean useTimeout) {
+        CacheCloneTask task;
+        synchronized (TASKS) {
+            task = TASKS.get(hash);
+            if (task != null && !task.done) {
+                return task;
+            }
+            task = new CacheCloneTask(hash, remote, masterCache, masterLock, inst, credentials, useTimeout);
+            TASKS.remove(hash); // reinsert at end
+            TASKS.put(hash, task);
+            int excess = TASKS.size() - HISTORY;
+            Iterator<CacheCloneTask> it = TASKS.values().iterator();
+            while (excess > 0 && it.hasNext()) {
+                if (it.next().done) {
+                    it.remove();
+                    excess--;
+                }
+            }
+        }
+        Computer.threadPoolForRemoting.submit(task);
+        return task;
+    }
+
+    /**
+     * @return a clone of this cache which has not yet finished, if any
+     */
+    static @CheckForNull CacheCloneTask running(String hash) {
+        synchronized (TASKS) {
+            CacheCloneTask task = TASKS.get(hash);
+            return task != null && !task.done ? task : null;
+        }
+    }
+
+    static @NonNull List<CacheCloneTask> all() {
+        synchronized (TASKS) {
+            return new ArrayList<CacheCloneTask>(TASKS.values());
+        }
+    }
+
+    @Override public void run() {
+        TaskListener listener = new StreamTaskListener(new ProgressOutputStream(log) {
+            @Override protected void progress(String _topic, long _position, long _total) {
+                if (!_topic.equals(topic)) {
+                    topic = _topic;
+                    topicStarted = System.currentTimeMillis();
+                }
+                position = _position;
+                total = _total;
+            }
+        }, StandardCharsets.UTF_8);
+        try {
+            masterLock.lockInterruptibly();
+            try {
+                succeeded = masterCache.isDirectory() || doClone(listener);
+            } finally {
+                masterLock.unlock();
+            }
+        } catch (InterruptedException x) {
+            listener.error("Interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception x) {
+            x.printStackTrace(listener.error("Failed to clone " + remote));
+        } finally {
+            listener.getLogger().flush();
+            finished = System.currentTimeMillis();
+            synchronized (this) {
+                done = true;
+                notifyAll();
+            }
+            LOGGER.log(succeeded ? Level.FINE : Level.WARNING, "background clone of {0} into {1} {2}", new Object[] {remote, masterCache, succeeded ? "succeeded" : "failed"});
+        }
+    }
+
+    private boolean doClone(TaskListener listener) throws Exception {
+        Jenkins master = Jenkins.get();
+        EnvVars env = new EnvVars();
+        ArgumentListBuilder args = new ArgumentListBuilder();
+        ProgressOutputStream.enable(args, env);
+        try (HgExe hg = new HgExe(inst, credentials, master.createLauncher(listener), master, listener, env)) {
+            FilePath parent = masterCache.getParent();
+            if (parent != null) {
+                parent.mkdirs();
+            }
+            args = hg.seed(true).add(args.toCommandArray()).add("clone", "--noupdate", remote, masterCache.getRemote());
+            if (hg.join(hg.launch(args), useTimeout) != 0) {
+                listener.error("Failed to clone " + remote);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Waits for the clone to finish, printing progress.
+     * @param mayFallBack whether to give up early if the clone is estimated to take longer than {@link #FALLBACK_THRESHOLD}
+     * @return true if the cache is now ready, false if it failed or the caller should do without it
+     */
+    boolean await(TaskListener listener, boolean mayFallBack) throws InterruptedException {
+        listener.getLogger().println("Waiting for background clone of " + remote + " into controller cache hgcache/" + hash + "...");
+        String lastProgress = null;
+        synchronized (this) {
+            while (!done) {
+                wait(REPORT_INTERVAL);
+                if (done) {
+                    break;
+                }
+                String progress = getProgress();
+                if (progress != null && !progress.equals(lastProgress)) {
+                    listener.getLogger().println("  " + progress);
+                    lastProgress = progress;
+                }
+                long remaining = getEstimatedRemaining();
+                if (mayFallBack && remaining > FALLBACK_THRESHOLD) {
+                    listener.getLogger().println("Controller cache will not be ready for at least another " + Util.getTimeSpanString(remaining) + "; cloning directly instead");
+                    return false;
+                }
+            }
+        }
+        if (!succeeded) {
+            listener.error("Background clone of " + remote + " failed:");
+            listener.getLogger().print(getLog());
+        }
+        return succeeded;
+    }
+
+    /**
+     * @return a description of the current phase, like {@code files 1234/5678 (21%)}, or null if nothing is known yet
+     */
+    public @CheckForNull String getProgress() {
+        String t = topic;
+        long p = position, n = total;
+        if (t == null || n <= 0) {
+            return null;
+        }
+        return String.format("%s %d/%d (%d%%)", t, p, n, p * 100 / n);
+    }
+
+    /**
+     * Extrapolates how long the current phase will take to finish.
+     * Earlier phases are short compared to {@code files}, so this is a lower bound on the remaining time.
+     * @return milliseconds, or 0 if unknown
+     */
+    long getEstimatedRemaining() {
+        long p = position, n = total;
+        long elapsed = System.currentTimeMillis() - topicStarted;
+        if (topic == null || p <= 0 || n <= p || elapsed < MINIMUM_SAMPLE) {
+            return 0;
+        }
+        return elapsed * (n - p) / p;
+    }
+
+    public String getRemote() {
+        return remote;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public boolean isSucceeded() {
+        return succeeded;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    public String getLog() {
+        return new String(log.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CacheCloneTask.class.getName());
+
+}
@@ -0,0 +1,213 @@
+package hudson.plugins.mercurial;
+
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Removes debris left in {@link Cache} directories by interrupted builds:
+ * {@code xfer-<node>.hg} bundles on the controller, {@code xfer.hg} bundles on agents,
+ * and agent caches which were {@code hg init}ed but never successfully unbundled into;
+ * also {@link PollMirror}s which have not been polled from for a while.
+ * Each cache or mirror is only examined while its lock can be acquired without waiting.
+ */
+@Extension
+public class CacheCollector extends AsyncPeriodicWork {
+
+    static /* not final */ long RECURRENCE_PERIOD = SystemProperties.getLong(CacheCollector.class.getName() + ".recurrencePeriod", TimeUnit.HOURS.toMillis(6));
+
+    /**
+     * Files younger than this are left alone even when unlocked, in case a build is just about to use them.
+     */
+    static /* not final */ long MINIMUM_AGE = SystemProperties.getLong(CacheCollector.class.getName() + ".minimumAge", TimeUnit.HOURS.toMillis(1));
+
+    /**
+     * Poll mirrors not updated for this long are deleted, as jobs polling them were deleted or reconfigured.
+     */
+    static /* not final */ long MIRROR_MAXIMUM_AGE = SystemProperties.getLong(CacheCollector.class.getName() + ".mirrorMaximumAge", TimeUnit.DAYS.toMillis(7));
+
+    private volatile long lastReclaimed = -1;
+    private volatile long lastRun;
+
+    public CacheCollector() {
+        super("Mercurial cache collector");
+    }
+
+    static CacheCollector get() {
+        return ExtensionList.lookupSingleton(CacheCollector.class);
+    }
+
+    @Override public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    /**
+     * @return bytes reclaimed by the last collection, or -1 if none has run yet
+     */
+    public long getLastReclaimed() {
+        return lastReclaimed;
+    }
+
+    public long getLastRun() {
+        return lastRun;
+    }
+
+    @Override protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        long reclaimed = 0;
+        Set<FilePath> masterRoots = new LinkedHashSet<FilePath>();
+        masterRoots.addAll(Cache.masterCacheRoots(null));
+        for (MercurialInstallation inst : MercurialInstallation.allInstallations()) {
+            if (inst.isUseCaches()) {
+                masterRoots.addAll(Cache.masterCacheRoots(inst.getMasterCacheRoot()));
+            }
+        }
+        for (FilePath root : masterRoots) {
+            if (!root.isDirectory()) {
+                continue;
+            }
+            for (FilePath cache : root.listDirectories()) {
+                reclaimed += collect(cache, Cache.masterLockFor(cache.getName()), "xfer-*.hg", false, listener);
+            }
+        }
+        FilePath mirrors = PollMirror.root();
+        if (mirrors.isDirectory()) {
+            for (FilePath mirror : mirrors.listDirectories()) {
+                reclaimed += collectMirror(mirror, listener);
+            }
+        }
+        for (Node node : Jenkins.get().getNodes()) {
+            Computer c = node.toComputer();
+            if (c == null || c.isOffline()) {
+                continue;
+            }
+            FilePath root;
+            try {
+                root = Cache.slaveNodeCaches(node);
+                if (!root.isDirectory()) {
+                    continue;
+                }
+            } catch (IOException x) {
+                listener.getLogger().println("Skipping " + node.getNodeName() + ": " + x);
+                continue;
+            }
+            for (FilePath cache : root.listDirectories()) {
+                reclaimed += collect(cache, Cache.slaveNodeLockFor(cache.getName(), node.getNodeName()), "xfer.hg", true, listener);
+            }
+        }
+        lastReclaimed = reclaimed;
+        lastRun = System.currentTimeMillis();
+        listener.getLogger().println("Reclaimed " + Functions.humanReadableByteSize(reclaimed) + " from Mercurial caches");
+        LOGGER.log(reclaimed > 0 ? Level.INFO : Level.FINE, "Reclaimed {0} bytes from Mercurial caches", reclaimed);
+    }
+
+    /**
+     * Cleans up one cache directory if nobody is using it.
+     * @param transfers glob of leftover bundles
+     * @param deleteIncomplete whether to delete the whole cache if it never received any changesets
+     * @return bytes reclaimed
+     */
+    static long collect(FilePath cache, ReentrantLock lock, String transfers, boolean deleteIncomplete, TaskListener listener) throws IOException, InterruptedException {
+        if (!lock.tryLock()) {
+            listener.getLogger().println("Skipping " + cache + " which is in use");
+            return 0;
+        }
+        try {
+            long cutoff = System.currentTimeMillis() - MINIMUM_AGE;
+            long reclaimed = 0;
+            if (deleteIncomplete && isIncomplete(cache) && cache.lastModified() < cutoff) {
+                long size = cache.act(new DiskUsage());
+                listener.getLogger().println("Deleting half-initialized cache " + cache + " (" + Functions.humanReadableByteSize(size) + ")");
+                cache.deleteRecursive();
+                return size;
+            }
+            for (FilePath bundle : cache.list(transfers)) {
+                if (bundle.lastModified() < cutoff) {
+                    long size = bundle.length();
+                    listener.getLogger().println("Deleting orphaned bundle " + bundle + " (" + Functions.humanReadableByteSize(size) + ")");
+                    if (bundle.delete()) {
+                        reclaimed += size;
+                    }
+                }
+            }
+            return reclaimed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Deletes a {@link PollMirror} if it is unused and has not been updated for {@link #MIRROR_MAXIMUM_AGE}.
+     * Should a job still poll it after all, it is simply created again.
+     * @return bytes reclaimed
+     */
+    static long collectMirror(FilePath mirror, TaskListener listener) throws IOException, InterruptedException {
+        ReentrantLock lock = PollMirror.tryLock(mirror.getName());
+        if (lock == null) {
+            listener.getLogger().println("Skipping " + mirror + " which is in use");
+            return 0;
+        }
+        try {
+            if (mirror.lastModified() >= System.currentTimeMillis() - MIRROR_MAXIMUM_AGE) {
+                return 0;
+            }
+            long size = mirror.act(new DiskUsage());
+            listener.getLogger().println("Deleting unused poll mirror " + mirror + " (" + Functions.humanReadableByteSize(size) + ")");
+            mirror.deleteRecursive();
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks whether a cache was created by {@code hg init} but then not filled, or was left mid-transaction.
+     */
+    static boolean isIncomplete(FilePath cache) throws IOException, InterruptedException {
+        FilePath store = cache.child(".hg/store");
+        return !store.child("00changelog.i").exists() || store.child("journal").exists();
+    }
+
+    /**
+     * Computes the total size of the files in a directory tree.
+     */
+    static final class DiskUsage extends MasterToSlaveFileCallable<Long> {
+        private static final long serialVersionUID = 1;
+        @Override public Long invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            return size(f);
+        }
+        private static long size(File f) {
+            if (!f.isDirectory() || Files.isSymbolicLink(f.toPath())) {
+                return f.length();
+            }
+            long total = 0;
+            File[] kids = f.listFiles();
+            if (kids != null) {
+                for (File kid : kids) {
+                    total += size(kid);
+                }
+            }
+            return total;
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CacheCollector.class.getName());
+
+}
@@ -0,0 +1,280 @@
+package hudson.plugins.mercurial;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Asynchronously pulls the controller {@link Cache} of a repository, and optionally pushes it to agents.
+ * Used by deployment tooling to warm caches ahead of time, so that the first builds after a fleet rotation
+ * do not pay for a cold cache.
+ * @see MercurialManagementLink#doWarm
+ * @see WarmCacheCommand
+ */
+@Restricted(NoExternalUse.class)
+public final class CacheWarmupTask implements Runnable {
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED
+    }
+
+    /**
+     * How many finished tasks to remember for status reporting.
+     */
+    private static final int HISTORY = 100;
+
+    /**
+     * How many bytes of log to keep per task; older output is dropped.
+     */
+    static final int LOG_LIMIT = 64 * 1024;
+
+    private static final AtomicLong COUNTER = new AtomicLong();
+    private static final Map<Long, CacheWarmupTask> TASKS = new LinkedHashMap<Long, CacheWarmupTask>();
+
+    private final long id;
+    private final String source;
+    private final @CheckForNull String installation;
+    private final @CheckForNull String credentialsId;
+    private final @CheckForNull String label;
+    private final BoundedLog log = new BoundedLog(LOG_LIMIT);
+    private final List<String> warmedNodes = Collections.synchronizedList(new ArrayList<String>());
+    private volatile State state = State.QUEUED;
+    private volatile long started, finished;
+
+    private CacheWarmupTask(long id, String source, @CheckForNull String installation, @CheckForNull String credentialsId, @CheckForNull String label) {
+        this.id = id;
+        this.source = source;
+        this.installation = installation;
+        this.credentialsId = credentialsId;
+        this.label = label;
+    }
+
+    /**
+     * Schedules warm-up of a number of repositories.
+     * @param sources repository URLs
+     * @param installation name of a caching installation, or null to pick the first one
+     * @param credentialsId credentials to pull with (optional)
+     * @param label agents whose caches should be refreshed too (optional; otherwise only the controller cache is warmed)
+     * @return the scheduled tasks
+     */
+    static @NonNull List<CacheWarmupTask> schedule(@NonNull List<String> sources, @CheckForNull String installation, @CheckForNull String credentialsId, @CheckForNull String label) {
+        List<CacheWarmupTask> scheduled = new ArrayList<CacheWarmupTask>();
+        for (String source : sources) {
+            if (source.trim().isEmpty()) {
+                continue;
+            }
+            CacheWarmupTask task = new CacheWarmupTask(COUNTER.incrementAndGet(), source.trim(), installation, credentialsId, label);
+            synchronized (TASKS) {
+                TASKS.put(task.id, task);
+                prune();
+            }
+            Computer.threadPoolForRemoting.submit(task);
+            scheduled.add(task);
+        }
+        return scheduled;
+    }
+
+    private static void prune() {
+        int excess = TASKS.size() - HISTORY;
+        Iterator<CacheWarmupTask> it = TASKS.values().iterator();
+        while (excess > 0 && it.hasNext()) {
+            CacheWarmupTask task = it.next();
+            if (task.isDone()) {
+                it.remove();
+                excess--;
+            }
+        }
+    }
+
+    static @CheckForNull CacheWarmupTask get(long id) {
+        synchronized (TASKS) {
+            return TASKS.get(id);
+        }
+    }
+
+    static @NonNull List<CacheWarmupTask> all() {
+        synchronized (TASKS) {
+            return new ArrayList<CacheWarmupTask>(TASKS.values());
+        }
+    }
+
+    static @CheckForNull MercurialInstallation findCachingInstallation(@CheckForNull String name) {
+        for (MercurialInstallation inst : MercurialInstallation.allInstallations()) {
+            if (inst.isUseCaches() && (name == null || inst.getName().equals(name))) {
+                return inst;
+            }
+        }
+        return null;
+    }
+
+    @Override public void run() {
+        state = State.RUNNING;
+        started = System.currentTimeMillis();
+        TaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+        boolean ok = false;
+        try {
+            ok = warm(listener);
+        } catch (InterruptedException x) {
+            listener.error("Interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception x) {
+            x.printStackTrace(listener.error("Failed to warm cache of " + source));
+        } finally {
+            finished = System.currentTimeMillis();
+            state = ok ? State.SUCCEEDED : State.FAILED;
+            LOGGER.log(Level.FINE, "cache warm-up #{0} of {1} finished: {2}", new Object[] {id, source, state});
+        }
+    }
+
+    private boolean warm(TaskListener listener) throws Exception {
+        MercurialInstallation inst = findCachingInstallation(installation);
+        if (inst == null) {
+            listener.error(installation == null ? "No Mercurial installation has caching enabled" : "No caching Mercurial installation named " + installation);
+            return false;
+        }
+        StandardUsernameCredentials credentials = null;
+        if (credentialsId != null) {
+            for (StandardUsernameCredentials c : MercurialSCMSource.availableCredentials(null, source)) {
+                if (c.getId().equals(credentialsId)) {
+                    credentials = c;
+                    break;
+                }
+            }
+            if (credentials == null) {
+                listener.error("No credentials " + credentialsId + " applicable to " + source);
+                return false;
+            }
+        }
+        Cache cache = Cache.fromURL(source, credentials, inst.getMasterCacheRoot());
+        Jenkins jenkins = Jenkins.get();
+        FilePath masterCache = cache.repositoryCache(inst, jenkins, jenkins.createLauncher(listener), listener, true);
+        if (masterCache == null) {
+            return false;
+        }
+        warmedNodes.add(jenkins.getDisplayName());
+        boolean ok = true;
+        if (label != null) {
+            Label l = jenkins.getLabel(label);
+            for (Node node : l != null ? l.getNodes() : Collections.<Node>emptySet()) {
+                if (node == jenkins) {
+                    continue;
+                }
+                Computer c = node.toComputer();
+                if (c == null || c.isOffline()) {
+                    listener.getLogger().println("Skipping offline agent " + node.getNodeName());
+                    continue;
+                }
+                if (cache.repositoryCache(inst, node, node.createLauncher(listener), listener, true) != null) {
+                    warmedNodes.add(node.getNodeName());
+                } else {
+                    ok = false;
+                }
+            }
+        }
+        return ok;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    public String getLog() {
+        return log.getText();
+    }
+
+    JSONObject toJSON() {
+        JSONObject o = new JSONObject();
+        o.put("id", id);
+        o.put("source", source);
+        o.put("installation", installation);
+        o.put("label", label);
+        o.put("state", state.name());
+        o.put("started", started);
+        o.put("finished", finished);
+        JSONArray nodes = new JSONArray();
+        synchronized (warmedNodes) {
+            nodes.addAll(warmedNodes);
+        }
+        o.put("nodes", nodes);
+        return o;
+    }
+
+    /**
+     * Keeps only the tail of what is written, so a verbose pull cannot pin unbounded memory for {@link #HISTORY} tasks.
+     */
+    static final class BoundedLog extends ByteArrayOutputStream {
+
+        private final int limit;
+        private boolean truncated;
+
+        BoundedLog(int limit) {
+            super(Math.min(limit, 8192));
+            this.limit = limit;
+        }
+
+        @Override public synchronized void write(int b) {
+            super.write(b);
+            trim();
+        }
+
+        @Override public synchronized void write(byte[] b, int off, int len) {
+            super.write(b, off, len);
+            trim();
+        }
+
+        /** Trims in bulk once twice the limit is buffered, to avoid copying on every write. */
+        private void trim() {
+            if (count > 2 * limit) {
+                byte[] tail = new byte[2 * limit];
+                System.arraycopy(buf, count - limit, tail, 0, limit);
+                buf = tail;
+                count = limit;
+                truncated = true;
+            }
+        }
+
+        synchronized String getText() {
+            int start = Math.max(0, count - limit);
+            String text = new String(buf, start, count - start, StandardCharsets.UTF_8);
+            return truncated || start > 0 ? "[earlier output truncated]\n" + text : text;
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CacheWarmupTask.class.getName());
+
+}
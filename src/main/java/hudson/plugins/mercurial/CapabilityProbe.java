@@ -0,0 +1,433 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.slaves.ComputerListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.LogTaskListener;
+import hudson.util.VersionNumber;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import jenkins.security.MasterToSlaveCallable;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Discovers what a Mercurial installation on a given node can do, once, and remembers it across restarts.
+ * Entries are keyed by node, installation, executable and configuration, so a changed installation is probed afresh;
+ * known entries for a node are probed again whenever it comes online, in case Mercurial was upgraded there.
+ */
+@Restricted(NoExternalUse.class)
+public final class CapabilityProbe {
+
+    /**
+     * Extensions whose availability is recorded.
+     */
+    static final List<String> EXTENSIONS = Collections.unmodifiableList(Arrays.asList("share", "relink", "purge", "sparse", "narrow", "largefiles", "lfs"));
+
+    private static Map<String, Capabilities> entries;
+
+    private CapabilityProbe() {}
+
+    /**
+     * What one installation on one node supports.
+     */
+    public static final class Capabilities {
+        private final String node;
+        private final String installation;
+        private final @CheckForNull String version;
+        private final Set<String> extensions;
+        private final Set<String> compressionEngines;
+        private final @CheckForNull String rhg;
+        private final @CheckForNull String chg;
+        private final long probed;
+
+        Capabilities(String node, String installation, @CheckForNull String version, Set<String> extensions, Set<String> compressionEngines, @CheckForNull String rhg, @CheckForNull String chg) {
+            this.node = node;
+            this.installation = installation;
+            this.version = version;
+            this.extensions = extensions;
+            this.compressionEngines = compressionEngines;
+            this.rhg = rhg;
+            this.chg = chg;
+            this.probed = System.currentTimeMillis();
+        }
+
+        public String getNode() {
+            return node.isEmpty() ? "(built-in)" : node;
+        }
+
+        public String getInstallation() {
+            return installation.isEmpty() ? "(default)" : installation;
+        }
+
+        /**
+         * @return for example {@code 6.5.2}, or null if {@code hg version} failed
+         */
+        public @CheckForNull String getVersion() {
+            return version;
+        }
+
+        /**
+         * @return names from {@link #EXTENSIONS} which loaded successfully
+         */
+        public @NonNull Set<String> getExtensions() {
+            return extensions != null ? extensions : Collections.<String>emptySet();
+        }
+
+        /**
+         * @return compression engines usable in bundles, such as {@code zstd}
+         */
+        public @NonNull Set<String> getCompressionEngines() {
+            return compressionEngines != null ? compressionEngines : Collections.<String>emptySet();
+        }
+
+        /**
+         * @return the path of an {@code rhg} executable found next to {@code hg} or in {@code PATH}, if any
+         */
+        public @CheckForNull String getRhg() {
+            return rhg;
+        }
+
+        /**
+         * @return the path of a {@code chg} executable found next to {@code hg} or in {@code PATH}, if any
+         */
+        public @CheckForNull String getChg() {
+            return chg;
+        }
+
+        public long getProbed() {
+            return probed;
+        }
+
+        /**
+         * @return true if the version is known and at least the given one
+         */
+        public boolean atLeast(@NonNull String minimum) {
+            return version != null && new VersionNumber(version).compareTo(new VersionNumber(minimum)) >= 0;
+        }
+
+        public boolean hasExtension(@NonNull String name) {
+            return getExtensions().contains(name);
+        }
+    }
+
+    /**
+     * Identifies an installation on a node.
+     * Fields are separated by newlines, which none can contain, and which unlike other control characters are safe in XML.
+     */
+    static @NonNull String key(@NonNull Node node, @CheckForNull MercurialInstallation inst, @NonNull String executable) throws IOException {
+        String config = inst != null ? String.join("\n", inst.getConfigArguments()) : "";
+        return node.getNodeName() + '\n' + (inst != null ? inst.getName() : "") + '\n' + executable + '\n' + Util.getDigestOf(config);
+    }
+
+    /**
+     * Gets capabilities, probing if they are not yet known.
+     * @param hg a launcher for the installation and node in question
+     * @param key as from {@link #key}
+     */
+    static @NonNull Capabilities get(@NonNull HgExe hg, @NonNull String key) throws InterruptedException {
+        synchronized (CapabilityProbe.class) {
+            Capabilities caps = load().get(key);
+            if (caps != null) {
+                return caps;
+            }
+        }
+        Capabilities caps = probe(hg, key);
+        remember(key, caps);
+        return caps;
+    }
+
+    static synchronized void remember(@NonNull String key, @NonNull Capabilities caps) {
+        load().put(key, caps);
+        save();
+    }
+
+    /**
+     * Picks a bundle format for transfer between two installations.
+     * @return {@code zstd-v2} if both ends can use it, else null for the default
+     */
+    static @CheckForNull String bundleType(@NonNull Capabilities producer, @NonNull Capabilities consumer) {
+        if (producer.getCompressionEngines().contains("zstd") && consumer.getCompressionEngines().contains("zstd") && producer.atLeast("4.1") && consumer.atLeast("4.1")) {
+            return "zstd-v2";
+        }
+        return null;
+    }
+
+    /**
+     * @return all known entries, for display
+     */
+    static synchronized @NonNull List<Capabilities> all() {
+        return new ArrayList<Capabilities>(load().values());
+    }
+
+    /**
+     * @param output from {@code hg version}
+     * @return for example {@code 6.5.2}, or null if unrecognized
+     */
+    static @CheckForNull String parseVersion(@NonNull String output) {
+        Matcher m = VERSION.matcher(output);
+        return m.find() ? m.group(1) : null;
+    }
+
+    /**
+     * @param output from {@code hg version -v}
+     * @return those {@link #EXTENSIONS} listed as enabled
+     */
+    static @NonNull Set<String> parseExtensions(@NonNull String output) {
+        Set<String> extensions = new TreeSet<String>();
+        int enabled = output.indexOf("Enabled extensions:");
+        if (enabled != -1) {
+            Matcher m = EXTENSION_LINE.matcher(output.substring(enabled));
+            while (m.find()) {
+                if (EXTENSIONS.contains(m.group(1))) {
+                    extensions.add(m.group(1));
+                }
+            }
+        }
+        return extensions;
+    }
+
+    /**
+     * @param output from {@code hg debuginstall --template {compenginesavail}}
+     * @return names of available compression engines
+     */
+    static @NonNull Set<String> parseCompressionEngines(@NonNull String output) {
+        Set<String> engines = new TreeSet<String>();
+        for (String engine : output.trim().split("[,\\s]+")) {
+            if (engine.matches("[a-z0-9]+")) {
+                engines.add(engine);
+            }
+        }
+        return engines;
+    }
+
+    private static Capabilities probe(HgExe hg, String key) throws InterruptedException {
+        String[] parts = key.split("\n", -1);
+        TaskListener quiet = new LogTaskListener(LOGGER, Level.FINE);
+        String version = null;
+        Set<String> extensions = new TreeSet<String>();
+        try {
+            ArgumentListBuilder args = new ArgumentListBuilder();
+            for (String extension : EXTENSIONS) {
+                args.add("--config", "extensions." + extension + "=");
+            }
+            args.add("version", "-v");
+            String output = hg.popen(null, quiet, false, args);
+            version = parseVersion(output);
+            extensions.addAll(parseExtensions(output));
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not run hg version on " + parts[0], x);
+        }
+        Set<String> engines = new TreeSet<String>();
+        try {
+            // debuginstall exits with 1 when it finds any problem, such as a missing ui.username, yet still prints the template;
+            // older than 4.1 it rejects --template and prints nothing, so the defaults are assumed
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            hg.join(hg.launch(hg.seed(false).add("debuginstall", "--template", "{compenginesavail}")).stdout(output).stderr(quiet.getLogger()), false);
+            engines.addAll(parseCompressionEngines(output.toString(Charset.defaultCharset().name())));
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not run hg debuginstall on " + parts[0], x);
+        }
+        String rhg = null, chg = null;
+        VirtualChannel channel = hg.node.getChannel();
+        if (channel != null) {
+            try {
+                String[] found = channel.call(new FindCompanions(parts[2]));
+                rhg = found[0];
+                chg = found[1];
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not look for rhg or chg on " + parts[0], x);
+            }
+        }
+        LOGGER.log(Level.FINE, "{0} on {1}: version {2}, extensions {3}, compression {4}, rhg {5}, chg {6}", new Object[] {parts[1], parts[0], version, extensions, engines, rhg, chg});
+        return new Capabilities(parts[0], parts[1], version, extensions, engines, rhg, chg);
+    }
+
+    /**
+     * Looks for {@code rhg} and {@code chg} beside the {@code hg} executable, else in {@code PATH}.
+     */
+    private static final class FindCompanions extends MasterToSlaveCallable<String[], IOException> {
+        private static final long serialVersionUID = 1;
+        private final String executable;
+        FindCompanions(String executable) {
+            this.executable = executable;
+        }
+        @Override public String[] call() throws IOException {
+            List<File> dirs = new ArrayList<File>();
+            File parent = new File(executable).getParentFile();
+            if (parent != null) {
+                dirs.add(parent);
+            } else {
+                String path = System.getenv("PATH");
+                if (path != null) {
+                    for (String dir : path.split(File.pathSeparator)) {
+                        if (!dir.isEmpty()) {
+                            dirs.add(new File(dir));
+                        }
+                    }
+                }
+            }
+            return new String[] {find(dirs, "rhg"), find(dirs, "chg")};
+        }
+        private static String find(List<File> dirs, String name) {
+            for (File dir : dirs) {
+                for (String candidate : new String[] {name, name + ".exe"}) {
+                    File f = new File(dir, candidate);
+                    if (f.isFile() && f.canExecute()) {
+                        return f.getAbsolutePath();
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    private static XmlFile file() {
+        return new XmlFile(new File(Jenkins.get().getRootDir(), CapabilityProbe.class.getName() + ".xml"));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Capabilities> load() {
+        assert Thread.holdsLock(CapabilityProbe.class);
+        if (entries == null) {
+            entries = new HashMap<String, Capabilities>();
+            XmlFile f = file();
+            if (f.exists()) {
+                try {
+                    entries.putAll((Map<String, Capabilities>) f.read());
+                } catch (IOException | ClassCastException x) {
+                    LOGGER.log(Level.WARNING, "could not load " + f, x);
+                }
+                // nodes deleted while this plugin was not listening
+                Jenkins j = Jenkins.get();
+                if (entries.keySet().removeIf(key -> {
+                    String node = key.substring(0, key.indexOf('\n'));
+                    return !node.isEmpty() && j.getNode(node) == null;
+                })) {
+                    save();
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static void save() {
+        assert Thread.holdsLock(CapabilityProbe.class);
+        try {
+            file().write(new HashMap<String, Capabilities>(entries));
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "could not save Mercurial capabilities", x);
+        }
+    }
+
+    /**
+     * Probes known installations again when an agent connects.
+     */
+    @Extension public static final class Reprobe extends ComputerListener {
+
+        @Override public void onOnline(final Computer c, TaskListener listener) {
+            final Node node = c.getNode();
+            if (node == null) {
+                return;
+            }
+            final List<String> keys = new ArrayList<String>();
+            synchronized (CapabilityProbe.class) {
+                for (String key : load().keySet()) {
+                    if (key.startsWith(node.getNodeName() + '\n')) {
+                        keys.add(key);
+                    }
+                }
+            }
+            if (keys.isEmpty()) {
+                return;
+            }
+            Computer.threadPoolForRemoting.submit(new Runnable() {
+                @Override public void run() {
+                    for (String key : keys) {
+                        String name = key.split("\n", -1)[1];
+                        MercurialInstallation inst = name.isEmpty() ? null : MercurialSCM.findInstallation(name);
+                        if (!name.isEmpty() && inst == null) {
+                            forget(key); // installation deleted
+                            continue;
+                        }
+                        TaskListener log = new LogTaskListener(LOGGER, Level.FINE);
+                        try (HgExe hg = new HgExe(inst, null, node.createLauncher(log), node, log, new EnvVars())) {
+                            String current = hg.capabilityKey();
+                            if (!current.equals(key)) {
+                                forget(key); // configuration changed; the new key will be probed on use
+                                continue;
+                            }
+                            remember(key, probe(hg, key));
+                        } catch (Exception x) {
+                            LOGGER.log(Level.FINE, "could not probe " + name + " on " + node.getNodeName(), x);
+                        }
+                    }
+                }
+            });
+        }
+
+        private static void forget(String key) {
+            synchronized (CapabilityProbe.class) {
+                if (load().remove(key) != null) {
+                    save();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Drops entries of deleted or renamed nodes, which would otherwise accumulate with ephemeral cloud agents.
+     */
+    @Extension public static final class Forget extends NodeListener {
+
+        @Override protected void onDeleted(Node node) {
+            forgetNode(node.getNodeName());
+        }
+
+        @Override protected void onUpdated(Node oldOne, Node newOne) {
+            if (!oldOne.getNodeName().equals(newOne.getNodeName())) {
+                forgetNode(oldOne.getNodeName());
+            }
+        }
+
+        private static void forgetNode(String name) {
+            synchronized (CapabilityProbe.class) {
+                if (load().keySet().removeIf(key -> key.startsWith(name + '\n'))) {
+                    save();
+                }
+            }
+        }
+
+    }
+
+    private static final Pattern VERSION = Pattern.compile("^Mercurial Distributed SCM [(]version ([0-9][^)]*)[)]$", Pattern.MULTILINE);
+    private static final Pattern EXTENSION_LINE = Pattern.compile("^\\s+(\\w+)\\b", Pattern.MULTILINE);
+    private static final Logger LOGGER = Logger.getLogger(CapabilityProbe.class.getName());
+
+}
@@ -0,0 +1,58 @@
+package hudson.plugins.mercurial;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.Job;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import java.io.IOException;
+
+/**
+ * State shared by all phases of one {@link MercurialSCM#checkout} or poll:
+ * the installation, environment and credentials are resolved once,
+ * and a single {@link HgExe} (hence one tool home lookup and one SSH key file) serves every command.
+ * You <strong>must</strong> call {@link #close}, typically with try-with-resources.
+ */
+final class CheckoutSession implements AutoCloseable {
+
+    final @CheckForNull MercurialInstallation inst;
+    final @NonNull EnvVars env;
+    final @CheckForNull StandardUsernameCredentials credentials;
+    final @NonNull Launcher launcher;
+    final Node node;
+    final @NonNull TaskListener listener;
+    private final String source;
+    private HgExe hg;
+
+    CheckoutSession(@NonNull MercurialSCM scm, @NonNull Job<?,?> job, @NonNull EnvVars env, @NonNull Launcher launcher, Node node, @NonNull TaskListener listener) {
+        this.inst = MercurialSCM.findInstallation(scm.getInstallation());
+        this.env = env;
+        this.credentials = scm.getCredentials(job, env);
+        this.launcher = launcher;
+        this.node = node;
+        this.listener = listener;
+        this.source = scm.getSource(env);
+    }
+
+    /**
+     * Gets the shared launcher, creating it on first use.
+     */
+    @NonNull HgExe hg() throws IOException, InterruptedException {
+        if (hg == null) {
+            hg = new HgExe(inst, credentials, launcher, node, listener, env);
+            hg.setDefaultRemote(source);
+        }
+        return hg;
+    }
+
+    @Override public void close() throws IOException, InterruptedException {
+        if (hg != null) {
+            hg.close();
+            hg = null;
+        }
+    }
+
+}
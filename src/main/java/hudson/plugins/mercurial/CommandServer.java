@@ -0,0 +1,349 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.LogTaskListener;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
+
+/**
+ * A long-lived {@code hg serve --cmdserver pipe} process for one repository,
+ * used to run short queries without paying for interpreter startup each time.
+ * Servers are pooled by node, base arguments, repository and {@code HG*} environment variables.
+ * @see <a href="https://wiki.mercurial-scm.org/CommandServer">Command server protocol</a>
+ */
+final class CommandServer {
+
+    /**
+     * Servers unused for this long are shut down.
+     */
+    static /* not final */ long IDLE_TIMEOUT = SystemProperties.getLong(CommandServer.class.getName() + ".idleTimeout", TimeUnit.MINUTES.toMillis(5));
+
+    /**
+     * Maximum number of idle servers kept per key.
+     */
+    static /* not final */ int MAX_IDLE = SystemProperties.getInteger(CommandServer.class.getName() + ".maxIdle", 2);
+
+    private static final Map<String, LinkedList<CommandServer>> IDLE = new HashMap<String, LinkedList<CommandServer>>();
+
+    private final String key;
+    private final Proc proc;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private long lastUsed;
+
+    private CommandServer(String key, Proc proc) throws IOException {
+        this.key = key;
+        this.proc = proc;
+        this.in = new DataInputStream(new BufferedInputStream(proc.getStdout()));
+        this.out = new DataOutputStream(proc.getStdin());
+        // Hello message, e.g. "capabilities: getencoding runcommand\nencoding: UTF-8"
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        if (readChannel(hello, null) != 'o' || !hello.toString(StandardCharsets.UTF_8).contains("runcommand")) {
+            throw new IOException("unexpected command server greeting: " + hello.toString(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Result of a command run through a server.
+     */
+    static final class Result {
+        final int exitCode;
+        final byte[] output;
+        Result(int exitCode, byte[] output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Runs a command in a pooled server, starting one if necessary.
+     * @param seed as from {@link HgExe#seed}, used both to start the server and as global options for the command
+     * @param args the command and its arguments
+     * @param error receives the command's standard error
+     * @param limit how long to wait for the server (including startup) before killing it, or null for no limit
+     * @return the result, or null if no server could be used, in which case the caller should run a regular process
+     * @throws AbortException if the limit ran out; a regular process would most likely hang as well
+     */
+    static @CheckForNull Result run(@NonNull Node node, @NonNull Launcher launcher, @NonNull ArgumentListBuilder seed, @NonNull EnvVars env,
+            @NonNull FilePath repository, @NonNull ArgumentListBuilder args, @NonNull OutputStream error, @CheckForNull Timeouts.Limit limit)
+            throws IOException, InterruptedException {
+        String key = key(node, seed, env, repository);
+        CommandServer server = borrow(key);
+        final AtomicReference<Proc> running = new AtomicReference<Proc>(server != null ? server.proc : null);
+        final AtomicBoolean expired = new AtomicBoolean();
+        Future<?> killer = null;
+        if (limit != null) {
+            killer = Timer.get().schedule(new Runnable() {
+                @Override public void run() {
+                    expired.set(true);
+                    Proc proc = running.get();
+                    if (proc != null) {
+                        kill(proc);
+                    }
+                }
+            }, limit.millis, TimeUnit.MILLISECONDS);
+        }
+        try {
+            if (server == null) {
+                Proc proc = launch(launcher, seed, env, repository);
+                running.set(proc);
+                if (expired.get()) {
+                    kill(proc); // expired while starting
+                }
+                server = connect(key, proc);
+            }
+            List<String> command = new ArrayList<String>(seed.toList());
+            command.remove(0); // executable
+            command.addAll(args.toList());
+            Result result = server.runcommand(command, error);
+            if (killer != null) {
+                killer.cancel(false);
+            }
+            if (expired.get()) {
+                server.close();
+            } else {
+                release(server);
+            }
+            return result;
+        } catch (IOException x) {
+            if (server != null) {
+                server.close();
+            }
+            if (expired.get()) {
+                limit.expired();
+                List<String> argList = args.toList();
+                // not the whole command line, which may include credentials
+                throw new AbortException(limit.describe("hg " + (argList.isEmpty() ? "" : argList.get(0)) + " in " + repository.getRemote() + " through a command server"));
+            }
+            LOGGER.log(Level.FINE, "command server for " + repository + " failed, falling back to a regular process", x);
+            return null;
+        } finally {
+            if (killer != null) {
+                killer.cancel(false);
+            }
+        }
+    }
+
+    private static String key(Node node, ArgumentListBuilder seed, EnvVars env, FilePath repository) {
+        Map<String, String> hgEnv = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : env.entrySet()) {
+            if (entry.getKey().startsWith("HG")) {
+                hgEnv.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return node.getNodeName() + '\0' + seed.toList() + '\0' + repository.getRemote() + '\0' + hgEnv;
+    }
+
+    private static @CheckForNull CommandServer borrow(String key) {
+        synchronized (IDLE) {
+            LinkedList<CommandServer> servers = IDLE.get(key);
+            while (servers != null && !servers.isEmpty()) {
+                CommandServer server = servers.removeFirst();
+                if (server.isAlive()) {
+                    return server;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void release(CommandServer server) {
+        server.lastUsed = System.currentTimeMillis();
+        synchronized (IDLE) {
+            LinkedList<CommandServer> servers = IDLE.get(server.key);
+            if (servers == null) {
+                IDLE.put(server.key, servers = new LinkedList<CommandServer>());
+            }
+            if (servers.size() < MAX_IDLE) {
+                servers.addFirst(server);
+                return;
+            }
+        }
+        server.close();
+    }
+
+    private static Proc launch(Launcher launcher, ArgumentListBuilder seed, EnvVars env, FilePath repository) throws IOException, InterruptedException {
+        ArgumentListBuilder args = seed.clone().add("serve", "--cmdserver", "pipe");
+        return launcher.launch().cmds(args).envs(env).pwd(repository).
+                readStdout().writeStdin().stderr(new LogTaskListener(LOGGER, Level.FINE).getLogger()).quiet(true).start();
+    }
+
+    /**
+     * Reads the greeting of a freshly launched server.
+     */
+    static CommandServer connect(String key, Proc proc) throws IOException, InterruptedException {
+        try {
+            return new CommandServer(key, proc);
+        } catch (IOException x) {
+            proc.kill();
+            throw x;
+        }
+    }
+
+    private static void kill(Proc proc) {
+        try {
+            proc.kill();
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "could not kill timed out command server", x);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs one command.
+     * Input requests are answered with end of file, since queries do not prompt.
+     */
+    Result runcommand(List<String> command, OutputStream error) throws IOException {
+        byte[] data = String.join("\0", command).getBytes(StandardCharsets.UTF_8);
+        out.write("runcommand\n".getBytes(StandardCharsets.US_ASCII));
+        out.writeInt(data.length);
+        out.write(data);
+        out.flush();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        while (true) {
+            switch (readChannel(output, error, result)) {
+            case 'r':
+                return new Result(new DataInputStream(new ByteArrayInputStream(result.toByteArray())).readInt(), output.toByteArray());
+            case 'I':
+            case 'L':
+                out.writeInt(0);
+                out.flush();
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private char readChannel(ByteArrayOutputStream output, @CheckForNull OutputStream error) throws IOException {
+        return readChannel(output, error, null);
+    }
+
+    /**
+     * Reads one message and dispatches its payload.
+     * @return the channel identifier
+     */
+    private char readChannel(ByteArrayOutputStream output, @CheckForNull OutputStream error, @CheckForNull ByteArrayOutputStream result) throws IOException {
+        int channel = in.read();
+        if (channel == -1) {
+            throw new EOFException("command server exited");
+        }
+        int length = in.readInt();
+        if (channel == 'I' || channel == 'L') {
+            return (char) channel; // length is the size requested, no payload follows
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        switch (channel) {
+        case 'o':
+            output.write(payload);
+            break;
+        case 'e':
+            if (error != null) {
+                error.write(payload);
+            }
+            break;
+        case 'r':
+            if (result != null) {
+                result.write(payload);
+            }
+            break;
+        default:
+            if (Character.isUpperCase(channel)) {
+                throw new IOException("unsupported required command server channel " + (char) channel);
+            }
+            // optional channel such as 'd' (debug), ignore
+        }
+        return (char) channel;
+    }
+
+    private boolean isAlive() {
+        try {
+            return proc.isAlive();
+        } catch (IOException | InterruptedException x) {
+            return false;
+        }
+    }
+
+    private void close() {
+        try {
+            out.close(); // server exits on end of input
+            proc.kill();
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, null, x);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Shuts down servers which have not been used recently.
+     */
+    @Extension public static final class Reaper extends PeriodicWork {
+
+        @Override public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override protected void doRun() throws Exception {
+            long cutoff = System.currentTimeMillis() - IDLE_TIMEOUT;
+            List<CommandServer> expired = new ArrayList<CommandServer>();
+            synchronized (IDLE) {
+                for (Iterator<LinkedList<CommandServer>> it = IDLE.values().iterator(); it.hasNext();) {
+                    LinkedList<CommandServer> servers = it.next();
+                    for (Iterator<CommandServer> it2 = servers.iterator(); it2.hasNext();) {
+                        CommandServer server = it2.next();
+                        if (server.lastUsed < cutoff) {
+                            it2.remove();
+                            expired.add(server);
+                        }
+                    }
+                    if (servers.isEmpty()) {
+                        it.remove();
+                    }
+                }
+            }
+            for (CommandServer server : expired) {
+                server.close();
+            }
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CommandServer.class.getName());
+
+}
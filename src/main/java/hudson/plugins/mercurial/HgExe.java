@@ -27,9 +27,6 @@ import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
 import com.cloudbees.plugins.credentials.CredentialsNameProvider;
 import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
 import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
-import com.jcraft.jsch.JSch;
-import com.jcraft.jsch.JSchException;
-import com.jcraft.jsch.KeyPair;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.Nullable;
@@ -38,36 +35,45 @@ import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Launcher.ProcStarter;
+import hudson.Proc;
 import hudson.model.AbstractBuild;
 import hudson.model.Node;
 import hudson.model.TaskListener;
-import hudson.remoting.VirtualChannel;
 import hudson.util.ArgumentListBuilder;
-import hudson.util.Secret;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.StringReader;
+import java.io.InputStreamReader;
 import java.net.URI;
 import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
-import jenkins.MasterToSlaveFileCallable;
 import jenkins.model.Jenkins;
-import org.ini4j.Ini;
+import jenkins.util.SystemProperties;
+import jenkins.util.Timer;
 
 /**
  * Encapsulates the invocation of the Mercurial command.
@@ -75,15 +81,24 @@ import org.ini4j.Ini;
 public class HgExe implements AutoCloseable {
     private final ArgumentListBuilder base;
     private final ArgumentListBuilder baseNoDebug;
+    /** {@code rhg} with configuration arguments, if the installation names one. */
+    private final @CheckForNull ArgumentListBuilder rhg;
     /**
      * Environment variables to invoke hg with.
      */
     private final EnvVars env;
     public final Launcher launcher;
+    /** {@link #launcher} without {@link ProcessLimiter}, for long-lived {@link CommandServer} processes. */
+    private final Launcher unlimitedLauncher;
+    private volatile @CheckForNull String defaultRemote;
     public final Node node;
     public final TaskListener listener;
-    private final Capability capability;
+    private final String capabilityKey;
+    private CapabilityProbe.Capabilities capabilities;
     private final FilePath sshPrivateKey;
+    private final boolean useCommandServer;
+    private final boolean useRevlogReader;
+    private final @CheckForNull Timeouts timeouts;
 
     @Deprecated
     public HgExe(MercurialSCM scm, Launcher launcher, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
@@ -109,46 +124,14 @@ public class HgExe implements AutoCloseable {
      * @throws InterruptedException for various reasons
      */
     public HgExe(@CheckForNull MercurialInstallation inst, @CheckForNull StandardUsernameCredentials credentials, Launcher launcher, Node node, TaskListener listener, EnvVars env) throws IOException, InterruptedException {
-        base = findHgExe(inst, credentials, node, listener, true);
-        // TODO might be more efficient to have a single call returning ArgumentListBuilder[2]?
-        baseNoDebug = findHgExe(inst, credentials, node, listener, false);
+        PerformanceProfile profile = PerformanceProfileNodeProperty.effective(node, inst);
+        ArgumentListBuilder[] bases = findHgExe(inst, profile, credentials, node, listener);
+        base = bases[0];
+        baseNoDebug = bases[1];
+        rhg = bases[2];
         if (credentials instanceof SSHUserPrivateKey) {
             final SSHUserPrivateKey cc = (SSHUserPrivateKey) credentials;
-            List<String> keys = cc.getPrivateKeys();
-            byte[] keyData;
-            if (keys.isEmpty()) {
-                throw new IOException("No private key available");
-            } else if (keys.size() > 1) {
-                throw new IOException("Multiple private keys found.");
-            } else {
-                keyData = keys.get(0).getBytes(StandardCharsets.US_ASCII);
-            }
-            
-            final Secret passphrase = cc.getPassphrase();
-            if (passphrase != null && /* TODO JENKINS-21283 */ passphrase.getPlainText().length() > 0) {
-                try {
-                    KeyPair kp = KeyPair.load(new JSch(), keyData, null);
-                    if (!kp.decrypt(passphrase.getPlainText())) {
-                        throw new IOException("Passphrase did not decrypt SSH private key");
-                    }
-                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                    kp.writePrivateKey(baos);
-                    keyData = baos.toByteArray();
-                } catch (JSchException x) {
-                    throw new IOException("Did not manage to decrypt SSH private key: " + x, x);
-                }
-            }
-            FilePath slaveRoot = node.getRootPath();
-            if (slaveRoot == null) {
-                throw new IOException(node.getDisplayName() + " is offline");
-            }
-            sshPrivateKey = slaveRoot.createTempFile("jenkins-mercurial", ".sshkey");
-            sshPrivateKey.chmod(0600);
-            // just in case agent goes offline during command; createTempFile fails to do it:
-            sshPrivateKey.act(new DeleteOnExit());
-            try (OutputStream os = sshPrivateKey.write()) {
-                os.write(keyData);
-            }
+            sshPrivateKey = SshKeyCache.acquire(node, cc);
             ARGB: for (ArgumentListBuilder b : new ArgumentListBuilder[] {base, baseNoDebug}) {
                 // TODO do we really want to pass -l username? Usually the username is ‘hg’ and encoded in the URL. But seems harmless at least on bitbucket.
                 // TODO space-in-path bug
@@ -171,65 +154,92 @@ public class HgExe implements AutoCloseable {
         this.node = node;
         this.env = env;
         env.put("HGPLAIN", "true");
-        this.launcher = launcher;
-        this.listener = listener;
-        this.capability = Capability.get(this);
-    }
-
-    private static final class DeleteOnExit extends MasterToSlaveFileCallable<Void> {
-        private static final long serialVersionUID = 1;
-        @Override public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
-            f.deleteOnExit();
-            return null;
+        String hgrcPath = profile != null ? profile.hgrcPath(node) : null;
+        if (hgrcPath != null) {
+            env.put("HGRCPATH", hgrcPath);
         }
+        this.useCommandServer = inst != null && inst.isUseCommandServer();
+        this.useRevlogReader = inst != null && inst.isUseRevlogReader();
+        this.timeouts = inst != null ? inst.getTimeouts() : null;
+        this.unlimitedLauncher = launcher;
+        Launcher watched = timeouts != null && timeouts.getIdleMinutes() > 0 ? StallWatchdog.decorate(launcher, TimeUnit.MINUTES.toMillis(timeouts.getIdleMinutes()), listener) : launcher;
+        this.launcher = ProcessLimiter.decorate(watched, node.getNodeName(), listener, new ProcessLimiter.DefaultRemote() {
+            @Override public String get() {
+                return defaultRemote;
+            }
+        });
+        this.listener = listener;
+        this.capabilityKey = CapabilityProbe.key(node, inst, base.toList().get(0));
     }
 
     @Override
     public void close() throws IOException, InterruptedException {
         if (sshPrivateKey != null) {
-            sshPrivateKey.delete();
+            SshKeyCache.release(sshPrivateKey);
         }
     }
 
-    private static ArgumentListBuilder findHgExe(@CheckForNull MercurialInstallation inst, @CheckForNull StandardUsernameCredentials credentials, Node node, TaskListener listener, boolean allowDebug) throws IOException, InterruptedException {
+    /**
+     * Computes the initial arguments.
+     * @return arguments with, then without, a debug flag if the installation requested it; then {@code rhg} arguments or null
+     */
+    private static ArgumentListBuilder[] findHgExe(@CheckForNull MercurialInstallation inst, @CheckForNull PerformanceProfile profile, @CheckForNull StandardUsernameCredentials credentials, Node node, TaskListener listener) throws IOException, InterruptedException {
         ArgumentListBuilder b = new ArgumentListBuilder();
+        ArgumentListBuilder bNoDebug = new ArgumentListBuilder();
+        ArgumentListBuilder bRhg = null;
+        List<String> config = inst != null ? inst.getConfigArguments() : Collections.<String>emptyList();
+        String keyFingerprint = credentials instanceof SSHUserPrivateKey ? SshKeyCache.fingerprint((SSHUserPrivateKey) credentials) : null;
+        List<String> tuning = profile != null ? profile.configArguments(node, config, keyFingerprint) : Collections.<String>emptyList();
         if (inst == null) {
             final Jenkins jenkins = Jenkins.getInstance();
             if (jenkins == null) {
                 throw new IOException("Jenkins instance is not ready");
             }
-            b.add(jenkins.getDescriptorByType(MercurialSCM.DescriptorImpl.class).getHgExe());
+            String exe = jenkins.getDescriptorByType(MercurialSCM.DescriptorImpl.class).getHgExe();
+            b.add(exe);
+            bNoDebug.add(exe);
+            b.add(tuning);
+            bNoDebug.add(tuning);
         } else {
             // TODO what about forEnvironment?
             final String toolHome = inst.forNode(node, listener).getHome();
             if (toolHome == null) {
                 throw new IOException("Cannot determine tool home for " + inst);
             }
-            b.add(inst.executableWithSubstitution(toolHome));
-            if (allowDebug && inst.getDebug()) {
+            String exe = inst.executableWithSubstitution(toolHome);
+            b.add(exe);
+            bNoDebug.add(exe);
+            if (inst.getDebug()) {
                 b.add("--debug");
             }
-            String config = inst.getConfig();
-            if (config != null) {
-                for (Map.Entry<String,? extends Map<String,String>> entry : new Ini(new StringReader(config)).entrySet()) {
-                    String sectionName = entry.getKey();
-                    for (Map.Entry<String,String> entry2 : entry.getValue().entrySet()) {
-                        b.add("--config", sectionName + '.' + entry2.getKey() + '=' + entry2.getValue());
-                    }
-                }
+            for (String arg : tuning) {
+                b.add(arg);
+                bNoDebug.add(arg);
+            }
+            for (String arg : config) {
+                b.add(arg);
+                bNoDebug.add(arg);
+            }
+            String rhgExe = inst.rhgWithSubstitution(toolHome);
+            if (rhgExe != null) {
+                bRhg = new ArgumentListBuilder(rhgExe);
+                bRhg.add(config);
+                bRhg.add("--config", "rhg.on-unsupported=abort-silent");
             }
         }
-        if (credentials instanceof UsernamePasswordCredentials) {
-            UsernamePasswordCredentials upc = (UsernamePasswordCredentials) credentials;
-            b.add("--config", "auth.jenkins.prefix=*", "--config");
-            b.addMasked("auth.jenkins.username=" + upc.getUsername());
-            b.add("--config");
-            b.addMasked("auth.jenkins.password=" + upc.getPassword().getPlainText());
-            b.add("--config", "auth.jenkins.schemes=http https");
-        } else if (credentials != null && !(credentials instanceof SSHUserPrivateKey)) {
-            throw new IOException("Support for credentials currently limited to username/password and SSH private key: " + CredentialsNameProvider.name(credentials));
+        for (ArgumentListBuilder _b : new ArgumentListBuilder[] {b, bNoDebug}) {
+            if (credentials instanceof UsernamePasswordCredentials) {
+                UsernamePasswordCredentials upc = (UsernamePasswordCredentials) credentials;
+                _b.add("--config", "auth.jenkins.prefix=*", "--config");
+                _b.addMasked("auth.jenkins.username=" + upc.getUsername());
+                _b.add("--config");
+                _b.addMasked("auth.jenkins.password=" + upc.getPassword().getPlainText());
+                _b.add("--config", "auth.jenkins.schemes=http https");
+            } else if (credentials != null && !(credentials instanceof SSHUserPrivateKey)) {
+                throw new IOException("Support for credentials currently limited to username/password and SSH private key: " + CredentialsNameProvider.name(credentials));
+            }
         }
-        return b;
+        return new ArgumentListBuilder[] {b, bNoDebug, bRhg};
     }
 
     /**
@@ -244,11 +254,111 @@ public class HgExe implements AutoCloseable {
 
     /**
      * For use with {@link #launch} (or similar) when running commands not inside a build and which therefore might not be easily killed.
+     * @deprecated Use {@link #join}, which honors {@link MercurialInstallation#getTimeouts}.
      */
+    @Deprecated
     public static int joinWithPossibleTimeout(ProcStarter proc, boolean useTimeout, final TaskListener listener) throws IOException, InterruptedException {
         return useTimeout ? proc.start().joinWithTimeout(60 * 60, TimeUnit.SECONDS, listener) : proc.join();
     }
-    
+
+    /**
+     * Runs a process from {@link #launch} to completion, killing it if it exceeds the limit for its kind of operation.
+     * @param useTimeout true when running commands not inside a build and which therefore might not be easily killed
+     * @return the exit code
+     * @see MercurialInstallation#getTimeouts
+     */
+    public int join(ProcStarter proc, boolean useTimeout) throws IOException, InterruptedException {
+        Timeouts.Limit limit = limit(proc.cmds(), proc.pwd(), useTimeout);
+        if (limit == null) {
+            return proc.join();
+        }
+        Deadline deadline = new Deadline(limit, proc.start(), proc.cmds(), proc.pwd());
+        try {
+            int exitCode = deadline.proc.join();
+            deadline.finish(exitCode);
+            return exitCode;
+        } finally {
+            deadline.cancel();
+        }
+    }
+
+    /** Options of the global Mercurial command line which take a value. */
+    private static final Set<String> GLOBAL_OPTIONS_WITH_VALUE = new HashSet<String>(Arrays.asList("--config", "-R", "--repository", "--cwd", "--encoding", "--encodingmode", "--color", "--pager"));
+
+    /**
+     * Finds the subcommand of a command line.
+     * @param cmds a full command line, starting with the executable
+     * @return its index, or -1 if there is none
+     */
+    static int subcommandIndex(@NonNull List<String> cmds) {
+        for (int i = 1; i < cmds.size(); i++) {
+            String arg = cmds.get(i);
+            if (!arg.startsWith("-")) {
+                return i;
+            }
+            if (GLOBAL_OPTIONS_WITH_VALUE.contains(arg)) {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private @CheckForNull Timeouts.Limit limit(List<String> cmds, @CheckForNull FilePath pwd, boolean useTimeout) {
+        int i = subcommandIndex(cmds);
+        Timeouts.Operation operation = Timeouts.classify(i != -1 ? cmds.get(i) : null);
+        if (timeouts == null) {
+            return Timeouts.legacy(operation, useTimeout);
+        }
+        return timeouts.limit(operation, useTimeout, pwd != null ? node.getNodeName() + "\n" + pwd.getRemote() : null);
+    }
+
+    /**
+     * Kills a process once its {@link Timeouts.Limit} runs out.
+     */
+    private final class Deadline implements Runnable {
+        private final Timeouts.Limit limit;
+        final Proc proc;
+        private final String description;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean expired = new AtomicBoolean();
+        private final Future<?> killer;
+
+        Deadline(Timeouts.Limit limit, Proc proc, List<String> cmds, @CheckForNull FilePath pwd) {
+            this.limit = limit;
+            this.proc = proc;
+            int i = subcommandIndex(cmds);
+            // not the whole command line, which may include credentials
+            this.description = "hg " + (i != -1 ? cmds.get(i) : "") + (pwd != null ? " in " + pwd.getRemote() : "");
+            killer = Timer.get().schedule(this, limit.millis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override public void run() {
+            expired.set(true);
+            try {
+                proc.kill();
+            } catch (IOException | InterruptedException x) {
+                LOGGER.log(Level.WARNING, "could not kill timed out process", x);
+            }
+        }
+
+        /**
+         * Reports a timeout, or remembers how long a successful process took.
+         */
+        void finish(int exitCode) {
+            cancel();
+            if (expired.get()) {
+                limit.expired();
+                listener.error(limit.describe(description));
+            } else if (exitCode == 0) {
+                limit.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }
+
+        void cancel() {
+            killer.cancel(false);
+        }
+    }
+
     /**
      * Starts creating an argument list.
      * Initially adds only the Mercurial executable itself, possibly with a debug flag.
@@ -276,14 +386,35 @@ public class HgExe implements AutoCloseable {
     }
 
     public ProcStarter bundleAll(String file) {
-        return run("bundle","--all",file);
+        return bundleAll(file, null);
+    }
+
+    /**
+     * @param type a bundle specification such as {@code zstd-v2}, or null for the default
+     */
+    public ProcStarter bundleAll(String file, @CheckForNull String type) {
+        ArgumentListBuilder args = seed(true).add("bundle", "--all");
+        if (type != null) {
+            args.add("--type", type);
+        }
+        return launch(args.add(file));
     }
 
     public ProcStarter bundle(Collection<String> bases, String file) {
+        return bundle(bases, file, null);
+    }
+
+    /**
+     * @param type a bundle specification such as {@code zstd-v2}, or null for the default
+     */
+    public ProcStarter bundle(Collection<String> bases, String file, @CheckForNull String type) {
         ArgumentListBuilder args = seed(true).add("bundle");
         for (String head : bases) {
             args.add("--base", head);
         }
+        if (type != null) {
+            args.add("--type", type);
+        }
         args.add(file);
         return launch(args);
     }
@@ -319,18 +450,20 @@ public class HgExe implements AutoCloseable {
      * Obtains the heads of the repository.
      */
     public Set<String> heads(FilePath repo, boolean useTimeout) throws IOException, InterruptedException {
-        if (capability.headsIn15 == null) {
-            try {
-                Set<String> output = heads(repo, useTimeout, true);
-                capability.headsIn15 = true;
-                return output;
-            } catch (AbortException x) {
-                Set<String> output = heads(repo, useTimeout, false);
-                capability.headsIn15 = false;
-                return output;
-            }
-        } else {
-            return heads(repo, useTimeout, capability.headsIn15);
+        String direct = readRevlog(repo, RevlogReader.QueryType.HEADS, null);
+        if (direct != null) {
+            Set<String> heads = new LinkedHashSet<String>(Arrays.asList(direct.split("\n")));
+            heads.remove("");
+            return heads;
+        }
+        CapabilityProbe.Capabilities caps = capabilities();
+        if (caps.getVersion() != null) {
+            return heads(repo, useTimeout, caps.atLeast("1.5"));
+        }
+        try {
+            return heads(repo, useTimeout, true);
+        } catch (AbortException x) {
+            return heads(repo, useTimeout, false);
         }
     }
 
@@ -338,12 +471,16 @@ public class HgExe implements AutoCloseable {
         ArgumentListBuilder args = new ArgumentListBuilder("heads", "--template", "{node}\\n");
         if(usingHg15Syntax)
             args.add("--topo", "--closed");
-        String output = popen(repo,listener,useTimeout,args);
-
-        Set<String> heads = new LinkedHashSet<String>(Arrays.asList(output.split("\n")));
-        heads.remove("");
+        final Set<String> heads = new LinkedHashSet<String>();
+        query(repo, useTimeout, args, new LineHandler() {
+            @Override public boolean line(String line) {
+                if (!line.isEmpty()) {
+                    heads.add(line);
+                }
+                return true;
+            }
+        });
         return heads;
-
     }
 
     /**
@@ -352,7 +489,11 @@ public class HgExe implements AutoCloseable {
      * @param rev the revision to identify; defaults to {@code .}, i.e. working copy
      */
     public @CheckForNull String tip(FilePath repository, @Nullable String rev) throws IOException, InterruptedException {
-        String id = popen(repository, listener, false, new ArgumentListBuilder("log", "--rev", rev != null ? rev : ".", "--template", "{node}"));
+        RevisionInfo info = readRevisionInfo(repository, rev);
+        if (info != null) {
+            return info.node;
+        }
+        String id = query(repository, false, new ArgumentListBuilder("log", "--rev", rev != null ? rev : ".", "--template", "{node}"));
         if (!NODEID_PATTERN.matcher(id).matches()) {
             listener.error("Expected to get an id but got '" + id + "' instead.");
             return null; // HUDSON-7723
@@ -365,7 +506,15 @@ public class HgExe implements AutoCloseable {
      * @param rev the revision to identify; defaults to {@code .}, i.e. working copy
      */
     public @CheckForNull String tipNumber(FilePath repository, @Nullable String rev) throws IOException, InterruptedException {
-        String id = popen(repository, listener, false, new ArgumentListBuilder("log", "--rev", rev != null ? rev : ".", "--template", "{rev}"));
+        RevisionInfo info = readRevisionInfo(repository, rev);
+        if (info != null) {
+            if (info.isNull()) {
+                listener.error(Messages.HgExe_expected_to_get_a_revision_number_but_got_instead(info.rev));
+                return null;
+            }
+            return info.rev;
+        }
+        String id = query(repository, false, new ArgumentListBuilder("log", "--rev", rev != null ? rev : ".", "--template", "{rev}"));
         if (!REVISION_NUMBER_PATTERN.matcher(id).matches()) {
             listener.error(Messages.HgExe_expected_to_get_a_revision_number_but_got_instead(id));
             return null;
@@ -378,10 +527,14 @@ public class HgExe implements AutoCloseable {
      * @param rev the revision to identify; defaults to current working copy
      */
     public @CheckForNull String branch(FilePath repository, @CheckForNull String rev) throws IOException, InterruptedException {
+        RevisionInfo info = readRevisionInfo(repository, rev);
+        if (info != null) {
+            return info.branch;
+        }
         ArgumentListBuilder builder = new ArgumentListBuilder("id", "--branch");
         if (rev != null)
             builder.add("--rev", rev);
-        String branch = popen(repository, listener, false, builder).trim();
+        String branch = query(repository, false, builder).trim();
         if (branch.isEmpty()) {
             listener.error(Messages.HgExe_expected_to_get_a_branch_name_but_got_nothing());
             return null;
@@ -389,6 +542,189 @@ public class HgExe implements AutoCloseable {
         return branch;
     }
 
+    /**
+     * Metadata of one changeset, as obtained from {@link #revisionInfo}.
+     */
+    public static final class RevisionInfo {
+        /** 40-character hexadecimal changeset ID. */
+        public final @NonNull String node;
+        /** Local revision number. */
+        public final @NonNull String rev;
+        public final @NonNull String branch;
+        /** {@code public}, {@code draft} or {@code secret}. */
+        public final @NonNull String phase;
+        /** Commit time in milliseconds since the epoch. */
+        public final long date;
+        /** Node IDs of the parents: none for a root, two for a merge. */
+        public final @NonNull List<String> parents;
+        /** Tags including {@code tip}, if applicable. */
+        public final @NonNull List<String> tags;
+
+        RevisionInfo(@NonNull String node, @NonNull String rev, @NonNull String branch, @NonNull String phase, long date, @NonNull List<String> parents, @NonNull List<String> tags) {
+            this.node = node;
+            this.rev = rev;
+            this.branch = branch;
+            this.phase = phase;
+            this.date = date;
+            this.parents = parents;
+            this.tags = tags;
+        }
+
+        /**
+         * Whether this is the null revision, the parent of an empty working copy.
+         */
+        boolean isNull() {
+            return node.equals(NULL_NODE);
+        }
+
+        @Override public String toString() {
+            return rev + ":" + node + "@" + branch;
+        }
+    }
+
+    /**
+     * Template printing the fields of {@link RevisionInfo}, unit-separated, one record per changeset.
+     */
+    static final String REVISION_INFO_TEMPLATE = "{node}\\x1f{rev}\\x1f{branch}\\x1f{phase}\\x1f{date|hgdate}\\x1f{p1node}\\x1f{p2node}\\x1f{tags}\\x1e";
+
+    private static final String NULL_NODE = "0000000000000000000000000000000000000000";
+    /** Revision number of {@link #NULL_NODE}, as in an empty repository or a {@code --noupdate} clone. */
+    private static final String NULL_REV = "-1";
+
+    /**
+     * Parses output of {@link #REVISION_INFO_TEMPLATE}.
+     * @throws IllegalArgumentException if the output was not in the expected format
+     */
+    static @NonNull List<RevisionInfo> parseRevisionInfo(@NonNull String output) {
+        List<RevisionInfo> result = new ArrayList<RevisionInfo>();
+        for (String record : output.split("\u001e")) {
+            if (record.trim().isEmpty()) {
+                continue;
+            }
+            String[] fields = record.split("\u001f", -1);
+            if (fields.length != 8 || !NODEID_PATTERN.matcher(fields[0]).matches() || !(REVISION_NUMBER_PATTERN.matcher(fields[1]).matches() || fields[1].equals(NULL_REV))) {
+                throw new IllegalArgumentException(record);
+            }
+            String[] hgdate = fields[4].trim().split(" ");
+            long date;
+            try {
+                date = Long.parseLong(hgdate[0]) * 1000;
+            } catch (NumberFormatException x) {
+                throw new IllegalArgumentException(record, x);
+            }
+            List<String> parents = new ArrayList<String>(2);
+            for (String parent : new String[] {fields[5], fields[6]}) {
+                if (NODEID_PATTERN.matcher(parent).matches() && !parent.equals(NULL_NODE)) {
+                    parents.add(parent);
+                }
+            }
+            List<String> tags = new ArrayList<String>();
+            for (String tag : fields[7].split(" ")) {
+                if (!tag.isEmpty()) {
+                    tags.add(tag);
+                }
+            }
+            result.add(new RevisionInfo(fields[0], fields[1], fields[2], fields[3], date, Collections.unmodifiableList(parents), Collections.unmodifiableList(tags)));
+        }
+        return result;
+    }
+
+    /**
+     * Gets metadata of several revisions at once.
+     * @param revs revision expressions (revsets are allowed and may match several changesets)
+     * @return matching changesets in the order printed by {@code hg log}; possibly empty
+     */
+    public @NonNull List<RevisionInfo> revisionInfos(FilePath repository, @NonNull List<String> revs) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder("log");
+        for (String rev : revs) {
+            args.add("--rev", rev);
+        }
+        args.add("--template", REVISION_INFO_TEMPLATE);
+        String output = query(repository, false, args);
+        try {
+            return parseRevisionInfo(output);
+        } catch (IllegalArgumentException x) {
+            listener.error("Unexpected output from hg log: " + output);
+            throw new AbortException();
+        }
+    }
+
+    /**
+     * Gets node, revision number, branch and other metadata of a single revision in one invocation.
+     * Replaces separate calls to {@link #tip}, {@link #tipNumber} and {@link #branch}.
+     * @param rev the revision to identify; defaults to {@code .}, i.e. working copy parent
+     * @return the metadata, or null (after printing an error) if the revision did not identify exactly one changeset,
+     *         or identified the null revision
+     */
+    public @CheckForNull RevisionInfo revisionInfo(FilePath repository, @CheckForNull String rev) throws IOException, InterruptedException {
+        RevisionInfo info = readRevisionInfo(repository, rev);
+        if (info == null) {
+            List<RevisionInfo> infos = revisionInfos(repository, Collections.singletonList(rev != null ? rev : "."));
+            if (infos.size() != 1) {
+                listener.error("Expected '" + (rev != null ? rev : ".") + "' to identify one changeset but got " + infos);
+                return null; // HUDSON-7723
+            }
+            info = infos.get(0);
+        }
+        if (info.isNull()) {
+            // as tipNumber always did, so callers skip the tag action rather than failing
+            listener.error(Messages.HgExe_expected_to_get_a_revision_number_but_got_instead(info.rev));
+            return null;
+        }
+        return info;
+    }
+
+    /**
+     * Lists open branch heads, newest first, as lines of the form {@code <node> <branch>}.
+     * @return true if all heads were read, false if the handler asked to stop
+     */
+    public boolean branchHeads(FilePath repository, boolean useTimeout, @NonNull LineHandler handler) throws IOException, InterruptedException {
+        String direct = readRevlog(repository, RevlogReader.QueryType.BRANCH_HEADS, null);
+        if (direct != null) {
+            for (String line : direct.split("\n")) {
+                if (!line.isEmpty() && !handler.line(line)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return popen(repository, listener, useTimeout, new ArgumentListBuilder("heads", "--template", "{node} {branch}\\n"), handler);
+    }
+
+    /**
+     * Identifies a revision using {@link RevlogReader} if the installation requests it.
+     * @return the metadata, or null if {@code hg} must be run
+     */
+    private @CheckForNull RevisionInfo readRevisionInfo(FilePath repository, @CheckForNull String rev) throws InterruptedException {
+        String direct = readRevlog(repository, RevlogReader.QueryType.REVISION_INFO, rev);
+        if (direct == null) {
+            return null;
+        }
+        try {
+            List<RevisionInfo> infos = parseRevisionInfo(direct);
+            return infos.size() == 1 ? infos.get(0) : null;
+        } catch (IllegalArgumentException x) {
+            LOGGER.log(Level.WARNING, "unexpected revlog query result " + direct, x);
+            return null;
+        }
+    }
+
+    /**
+     * Answers a query from the repository files if the installation requests it.
+     * @return output as {@code hg} would print it, or null if {@code hg} must be run
+     */
+    private @CheckForNull String readRevlog(FilePath repository, RevlogReader.QueryType type, @CheckForNull String rev) throws InterruptedException {
+        if (!useRevlogReader || repository == null) {
+            return null;
+        }
+        try {
+            return repository.act(new RevlogReader.Query(type, rev));
+        } catch (IOException | RuntimeException x) {
+            LOGGER.log(Level.FINE, "could not read " + repository + " directly", x);
+            return null;
+        }
+    }
+
     /**
      * Gets the version of used Mercurial installation.
      */
@@ -398,21 +734,100 @@ public class HgExe implements AutoCloseable {
             listener.error(Messages.HgExe_expected_to_get_hg_version_name_but_got_nothing());
             return null;
         }
-        Matcher m = Pattern.compile("^Mercurial Distributed SCM [(]version ([0-9][^)]*)[)]$", Pattern.MULTILINE).matcher(version);
-        if (!m.find() || m.groupCount() < 1)
-        {
+        String number = CapabilityProbe.parseVersion(version);
+        if (number == null) {
             listener.getLogger().print(version);
             listener.error(Messages.HgExe_cannot_extract_hg_version());
             return null;
         }
-        return m.group(1);
+        return number;
     }
 
     /**
      * Gets the current value of a specified config item.
      */
     public String config(FilePath repository, String name) throws IOException, InterruptedException {
-        return popen(repository, listener, false, new ArgumentListBuilder("showconfig", name)).trim();
+        String output = queryRhg(repository, new ArgumentListBuilder("config", name), false);
+        if (output != null) {
+            return output.trim();
+        }
+        long start = System.nanoTime();
+        output = query(repository, false, new ArgumentListBuilder("showconfig", name));
+        if (usesRhg(repository)) {
+            RhgStatistics.hg("config", System.nanoTime() - start);
+        }
+        return output.trim();
+    }
+
+    /**
+     * Checks whether a file exists in a given revision.
+     * @param path a path relative to the repository root; a directory counts if it contains files
+     */
+    public boolean exists(FilePath repository, String rev, String path) throws IOException, InterruptedException {
+        // only the matching files are listed, so the output stays small even in a huge manifest
+        String files = queryRhg(repository, new ArgumentListBuilder("files", "-r", rev, path), true);
+        if (files != null) {
+            String dir = path + '/';
+            for (String file : files.split("\r?\n")) {
+                file = file.replace('\\', '/');
+                if (file.equals(path) || file.startsWith(dir)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long start = System.nanoTime();
+        int exitCode = run("locate", "-r", rev, "-I", "path:" + path).pwd(repository).join();
+        if (usesRhg(repository)) {
+            RhgStatistics.hg("files", System.nanoTime() - start);
+        }
+        return exitCode == 0;
+    }
+
+    /**
+     * Whether {@link #queryRhg} would try {@code rhg}, so that {@code hg} timings are only recorded where they can be compared.
+     */
+    private boolean usesRhg(@CheckForNull FilePath repository) {
+        return rhg != null && repository != null;
+    }
+
+    /**
+     * Runs a read-only command with {@code rhg} if the installation names one.
+     * Any failure, including {@code rhg} declining an unsupported repository or option, is left to the caller
+     * to retry with {@code hg}, which will report it properly if it is genuine.
+     * @param args a command accepted identically by {@code rhg} and {@code hg}
+     * @param noMatch whether exit code 1 just means nothing matched, to be returned as empty output
+     * @return the output, or null if {@code rhg} is not configured or did not succeed
+     */
+    private @CheckForNull String queryRhg(FilePath repository, ArgumentListBuilder args, boolean noMatch) throws IOException, InterruptedException {
+        if (!usesRhg(repository)) {
+            return null;
+        }
+        String command = args.toList().get(0);
+        ArgumentListBuilder cmd = rhg.clone().add(args.toCommandArray());
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        long start = System.nanoTime();
+        int exitCode;
+        try {
+            exitCode = launcher.launch().cmds(cmd).envs(env).pwd(repository).stdout(data).stderr(errors).join();
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not run " + cmd, x);
+            RhgStatistics.fallback(command);
+            return null;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (exitCode == 1 && noMatch) {
+            RhgStatistics.rhg(command, elapsed);
+            return "";
+        }
+        if (exitCode != 0) {
+            LOGGER.log(Level.FINE, "{0} exited with {1}: {2}", new Object[] {cmd, exitCode, errors});
+            RhgStatistics.fallback(command);
+            return null;
+        }
+        RhgStatistics.rhg(command, elapsed);
+        return new String(data.toByteArray(), Charset.defaultCharset());
     }
 
     /**
@@ -424,7 +839,7 @@ public class HgExe implements AutoCloseable {
         args = seed(false).add(args.toCommandArray());
 
         ByteArrayOutputStream data = new ByteArrayOutputStream();
-        if (joinWithPossibleTimeout(launch(args).pwd(repository).stdout(data), useTimeout, listener) == 0) {
+        if (join(launch(args).pwd(repository).stdout(data), useTimeout) == 0) {
             try {
                 //TODO: consider using another charset
                 return data.toString(Charset.defaultCharset().name());
@@ -439,35 +854,278 @@ public class HgExe implements AutoCloseable {
     }
 
     /**
-     * Capability of a particular hg invocation configuration (and location) on a specific node. Cached.
+     * Receives output of {@link #popen(FilePath, TaskListener, boolean, ArgumentListBuilder, LineHandler)} as it arrives.
      */
-    private static final class Capability {
+    @FunctionalInterface
+    public interface LineHandler {
         /**
-         * Whether this supports 1.5-style "heads --topo ..." syntax.
+         * Processes one line of standard output.
+         * @param line the line, without its terminator
+         * @return true to continue, false to stop reading and kill the process
          */
-        volatile Boolean headsIn15;
+        boolean line(@NonNull String line) throws IOException, InterruptedException;
+    }
 
-        private static final Map<Node, Map<List<String>, Capability>> MAP = new WeakHashMap<Node,Map<List<String>,Capability>>();
+    /**
+     * Runs the command and passes its standard output line by line to a handler,
+     * without buffering the whole output.
+     * Standard error goes to the listener.
+     * @return true if all output was read, false if the handler asked to stop
+     * @throws AbortException if the command failed
+     */
+    public boolean popen(FilePath repository, TaskListener listener, boolean useTimeout, ArgumentListBuilder args, @NonNull LineHandler handler)
+            throws IOException, InterruptedException {
+        args = seed(false).add(args.toCommandArray());
+        ProcStarter starter = launch(args).pwd(repository).readStdout().stderr(listener.getLogger());
+        Timeouts.Limit limit = limit(starter.cmds(), repository, useTimeout);
+        final Proc proc = starter.start();
+        Deadline deadline = limit != null ? new Deadline(limit, proc, starter.cmds(), repository) : null;
+        boolean finished = false;
+        try {
+            try (BufferedReader r = new BufferedReader(new InputStreamReader(proc.getStdout(), Charset.defaultCharset()))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (Thread.interrupted()) { // cancelled through async
+                        throw new InterruptedException();
+                    }
+                    if (!handler.line(line)) {
+                        return false;
+                    }
+                }
+            }
+            finished = true;
+            int exitCode = proc.join();
+            if (deadline != null) {
+                deadline.finish(exitCode);
+            }
+            if (exitCode != 0) {
+                listener.error("Failed to run " + args.toStringWithQuote());
+                throw new AbortException();
+            }
+            return true;
+        } finally {
+            if (!finished) {
+                // handler stopped or threw, or reading failed: also frees the ProcessLimiter permit
+                try {
+                    proc.kill();
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "could not kill " + args.toStringWithQuote(), x);
+                }
+            }
+            if (deadline != null) {
+                deadline.cancel();
+            }
+        }
+    }
+
+    /**
+     * Work for {@link #async}, typically one or more calls to this object.
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+        T call() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Maximum number of {@link #async} calls running at once; others wait in order.
+     */
+    static /* not final */ int ASYNC_THREADS = SystemProperties.getInteger(HgExe.class.getName() + ".asyncThreads", 16);
+
+    private static ExecutorService asyncExecutor;
+
+    private static synchronized ExecutorService asyncExecutor() {
+        if (asyncExecutor == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new NamingThreadFactory(new DaemonThreadFactory(), "HgExe.async"));
+            pool.allowCoreThreadTimeOut(true);
+            asyncExecutor = pool;
+        }
+        return asyncExecutor;
+    }
 
-        synchronized static Capability get(HgExe hg) {
-            Map<List<String>,Capability> m = MAP.get(hg.node);
-            if (m == null) {
-                m = new HashMap<List<String>,Capability>();
-                MAP.put(hg.node, m);
+    /**
+     * Runs some work on a bounded pool of threads, so independent queries can overlap.
+     * Cancelling the future interrupts the work, which kills any process it is waiting for.
+     * The work should not itself wait for other such work, lest the pool be exhausted.
+     * @see #await
+     */
+    public <T> CompletableFuture<T> async(@NonNull final Call<T> call) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        final Future<?> task = asyncExecutor().submit(new Runnable() {
+            @Override public void run() {
+                if (result.isDone()) {
+                    return; // cancelled while queued
+                }
+                try {
+                    result.complete(call.call());
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }
+        });
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override public void accept(T value, Throwable t) {
+                if (result.isCancelled()) {
+                    task.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Like {@link #popen(FilePath, TaskListener, boolean, ArgumentListBuilder)} but in the background.
+     */
+    public CompletableFuture<String> popenAsync(final FilePath repository, final TaskListener listener, final boolean useTimeout, final ArgumentListBuilder args) {
+        return async(new Call<String>() {
+            @Override public String call() throws IOException, InterruptedException {
+                return popen(repository, listener, useTimeout, args);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #join} but in the background.
+     * @param proc as from {@link #launch}
+     * @return the exit code
+     */
+    public CompletableFuture<Integer> launchAsync(final ProcStarter proc, final boolean useTimeout) {
+        return async(new Call<Integer>() {
+            @Override public Integer call() throws IOException, InterruptedException {
+                return join(proc, useTimeout);
+            }
+        });
+    }
+
+    /**
+     * Waits for the result of {@link #async}, rethrowing its failure as is.
+     * If the waiting thread is interrupted, the work is cancelled.
+     */
+    public static <T> T await(@NonNull CompletableFuture<T> future) throws IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (InterruptedException x) {
+            future.cancel(true);
+            throw x;
+        } catch (ExecutionException x) {
+            Throwable cause = x.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Checks whether a repository already has some changesets, such as the heads of a remote repository,
+     * in which case pulling from there would bring nothing new.
+     * @param nodes full changeset IDs
+     */
+    public boolean containsAll(FilePath repository, @NonNull Collection<String> nodes) throws IOException, InterruptedException {
+        Set<String> missing = new HashSet<String>(nodes);
+        List<String> all = new ArrayList<String>(missing);
+        for (int i = 0; i < all.size() && !missing.isEmpty(); i += 200) { // keep command lines short
+            StringBuilder revset = new StringBuilder();
+            for (String n : all.subList(i, Math.min(all.size(), i + 200))) {
+                if (revset.length() > 0) {
+                    revset.append(" or ");
+                }
+                revset.append("id(").append(n).append(')');
+            }
+            for (String line : query(repository, true, new ArgumentListBuilder("log", "--rev", revset.toString(), "--template", "{node}\\n")).split("\n")) {
+                missing.remove(line.trim());
+            }
+        }
+        return missing.isEmpty();
+    }
+
+    /**
+     * Like {@link #popen} but using a pooled {@link CommandServer} if the installation requests it.
+     * Falls back to a regular process if the server cannot be used.
+     * Only for read-only queries in an existing repository.
+     */
+    private @NonNull String query(FilePath repository, boolean useTimeout, ArgumentListBuilder args) throws IOException, InterruptedException {
+        String output = queryServer(repository, useTimeout, args);
+        return output != null ? output : popen(repository, listener, useTimeout, args);
+    }
+
+    /**
+     * Runs a query in a {@link CommandServer} if enabled and possible,
+     * under the same {@link Timeouts.Limit} a regular process would get.
+     * @return the output, or null if the caller should run a regular process
+     */
+    private @CheckForNull String queryServer(FilePath repository, boolean useTimeout, ArgumentListBuilder args) throws IOException, InterruptedException {
+        if (!useCommandServer || repository == null) {
+            return null;
+        }
+        ArgumentListBuilder seed = seed(false);
+        Timeouts.Limit limit = limit(seed.clone().add(args.toCommandArray()).toList(), repository, useTimeout);
+        CommandServer.Result result = CommandServer.run(node, unlimitedLauncher, seed, env, repository, args, listener.getLogger(), limit);
+        if (result == null) {
+            return null;
+        }
+        String output = new String(result.output, Charset.defaultCharset());
+        if (result.exitCode != 0) {
+            listener.error("Failed to run " + seed(false).add(args.toCommandArray()).toStringWithQuote());
+            listener.getLogger().print(output);
+            throw new AbortException();
+        }
+        return output;
+    }
+
+    /**
+     * Like {@link #query(FilePath, boolean, ArgumentListBuilder)} but streaming lines
+     * as in {@link #popen(FilePath, TaskListener, boolean, ArgumentListBuilder, LineHandler)}.
+     * A command server delivers output all at once, so that is only split afterwards.
+     */
+    private boolean query(FilePath repository, boolean useTimeout, ArgumentListBuilder args, LineHandler handler) throws IOException, InterruptedException {
+        String output = queryServer(repository, useTimeout, args);
+        if (output != null) {
+            for (String line : output.split("\r?\n")) {
+                if (!handler.line(line)) {
+                    return false;
+                }
             }
+            return true;
+        }
+        return popen(repository, listener, useTimeout, args, handler);
+    }
+
+    /**
+     * Tells {@link ProcessLimiter} which server a {@code pull} with no explicit source will contact.
+     * @param url the default path of the repositories this object will work on
+     */
+    void setDefaultRemote(@CheckForNull String url) {
+        this.defaultRemote = url;
+    }
 
-            List<String> hgConfig = hg.seed(false).toList();
-            Capability cap = m.get(hgConfig);
-            if (cap==null)
-                m.put(hgConfig,cap = new Capability());
-            return cap;
+    /**
+     * Identifies this installation on this node for {@link CapabilityProbe}.
+     */
+    String capabilityKey() {
+        return capabilityKey;
+    }
+
+    /**
+     * Gets what this installation supports, probing it the first time it is used on this node.
+     */
+    synchronized @NonNull CapabilityProbe.Capabilities capabilities() throws InterruptedException {
+        if (capabilities == null) {
+            capabilities = CapabilityProbe.get(this, capabilityKey);
         }
+        return capabilities;
     }
 
     /**
      * Pattern that matches revision ID.
      */
-    private static final Pattern NODEID_PATTERN = Pattern.compile("[0-9a-f]{40}");
+    static final Pattern NODEID_PATTERN = Pattern.compile("[0-9a-f]{40}");
     private static final Pattern REVISION_NUMBER_PATTERN = Pattern.compile("[0-9]+");
 
     /**
@@ -494,4 +1152,7 @@ public class HgExe implements AutoCloseable {
         }
         return false;
     }
+
+    private static final Logger LOGGER = Logger.getLogger(HgExe.class.getName());
+
 }
@@ -1,5 +1,6 @@
 package hudson.plugins.mercurial;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Util;
 import hudson.model.Run;
 import hudson.scm.ChangeLogParser;
@@ -24,12 +25,23 @@ import org.xml.sax.SAXException;
  */
 public class MercurialChangeLogParser extends ChangeLogParser {
 
-    private final Set<String> modules;
+    private final @CheckForNull ModuleMatcher modules;
 
     public MercurialChangeLogParser(Set<String> modules) {
+        this(modules != null ? ModuleMatcher.compile(modules) : null);
+    }
+
+    private MercurialChangeLogParser(@CheckForNull ModuleMatcher modules) {
         this.modules = modules;
     }
 
+    /**
+     * @param modules as compiled by {@link MercurialSCM}, or null to keep all changesets
+     */
+    static MercurialChangeLogParser forModules(@CheckForNull ModuleMatcher modules) {
+        return new MercurialChangeLogParser(modules);
+    }
+
     @Override public MercurialChangeSetList parse(Run build, RepositoryBrowser<?> browser, File changelogFile)
             throws IOException, SAXException {
         ArrayList<MercurialChangeSet> r = new ArrayList<>();
@@ -105,12 +117,10 @@ public class MercurialChangeLogParser extends ChangeLogParser {
             Iterator<MercurialChangeSet> it = r.iterator();
             while (it.hasNext()) {
                 boolean include = false;
-                INCLUDE: for (String path : it.next().getAffectedPaths()) {
-                    for (String module : modules) {
-                        if (path.startsWith(module)) {
-                            include = true;
-                            break INCLUDE;
-                        }
+                for (String path : it.next().getAffectedPaths()) {
+                    if (modules.matches(path)) {
+                        include = true;
+                        break;
                     }
                 }
                 if (!include) {
@@ -125,7 +135,7 @@ public class MercurialChangeLogParser extends ChangeLogParser {
         // determine the changelog
         r.sort(Comparator.comparingLong(MercurialChangeSet::getRev));
 
-        return new MercurialChangeSetList(build, browser, r);
+        return new MercurialChangeSetList(build, browser, r, modules);
     }
 
 }
@@ -1,5 +1,6 @@
 package hudson.plugins.mercurial;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.scm.ChangeLogSet;
 import hudson.model.Run;
 import hudson.scm.RepositoryBrowser;
@@ -13,9 +14,11 @@ import java.util.Iterator;
  */
 public class MercurialChangeSetList extends ChangeLogSet<MercurialChangeSet> {
     private final List<MercurialChangeSet> changeSets;
+    private final @CheckForNull ModuleMatcher modules;
 
-    /*package*/ MercurialChangeSetList(Run<?,?> build, RepositoryBrowser<?> browser, List<MercurialChangeSet> logs) {
+    /*package*/ MercurialChangeSetList(Run<?,?> build, RepositoryBrowser<?> browser, List<MercurialChangeSet> logs, @CheckForNull ModuleMatcher modules) {
         super(build, browser);
+        this.modules = modules;
         Collections.reverse(logs);  // put new things first
         this.changeSets = Collections.unmodifiableList(logs);
         for (MercurialChangeSet log : logs)
@@ -34,6 +37,14 @@ public class MercurialChangeSetList extends ChangeLogSet<MercurialChangeSet> {
         return changeSets;
     }
 
+    /**
+     * Whether a file is within the modules of the job, for highlighting in the change list.
+     * @return true also if the job has no modules configured
+     */
+    public boolean isInModules(String path) {
+        return modules == null || modules.matches(path);
+    }
+
     public @Override String getKind() {
         return "hg";
     }
@@ -38,14 +38,20 @@ import hudson.tools.ToolDescriptor;
 import hudson.tools.ToolInstallation;
 import hudson.tools.ToolProperty;
 import hudson.util.FormValidation;
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import jenkins.model.Jenkins;
 import org.ini4j.Ini;
 import org.ini4j.InvalidFileFormatException;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
 /**
@@ -67,6 +73,33 @@ public class MercurialInstallation extends ToolInstallation implements
     private final String masterCacheRoot;
     private boolean useSharing;
     private final String config;
+    private boolean upgradeFormats;
+    private CachePlacement cachePlacement;
+    private boolean useCommandServer;
+    private boolean useRevlogReader;
+    private boolean usePollMirror;
+    private String rhg;
+    private PerformanceProfile performanceProfile;
+    private Timeouts timeouts;
+    /** {@link #config} as {@code --config} arguments, parsed on demand. */
+    private transient volatile List<String> configArguments;
+
+    /**
+     * How {@link Cache} chooses among {@link #getMasterCacheRoots} for a repository not yet cached.
+     */
+    public enum CachePlacement {
+        HASH() {
+            @Override public String getDisplayName() {
+                return "By hash of the repository URL";
+            }
+        },
+        FREE_SPACE() {
+            @Override public String getDisplayName() {
+                return "On the volume with the most free space";
+            }
+        };
+        public abstract String getDisplayName();
+    }
 
     /** for backwards compatibility */
     @Deprecated
@@ -121,6 +154,35 @@ public class MercurialInstallation extends ToolInstallation implements
         return masterCacheRoot;
     }
 
+    /**
+     * Splits {@link #getMasterCacheRoot} into individual directories.
+     * @return a possibly empty list (in which case the default location is used)
+     */
+    public @NonNull List<String> getMasterCacheRoots() {
+        return parseMasterCacheRoots(masterCacheRoot);
+    }
+
+    static @NonNull List<String> parseMasterCacheRoots(@CheckForNull String masterCacheRoot) {
+        List<String> roots = new ArrayList<String>();
+        if (masterCacheRoot != null) {
+            for (String root : masterCacheRoot.split(Pattern.quote(File.pathSeparator))) {
+                root = Util.fixEmptyAndTrim(root);
+                if (root != null && !roots.contains(root)) {
+                    roots.add(root);
+                }
+            }
+        }
+        return roots;
+    }
+
+    public @NonNull CachePlacement getCachePlacement() {
+        return cachePlacement != null ? cachePlacement : CachePlacement.HASH;
+    }
+
+    @DataBoundSetter public void setCachePlacement(CachePlacement cachePlacement) {
+        this.cachePlacement = cachePlacement;
+    }
+
     public boolean isUseSharing() {
         return useSharing;
     }
@@ -129,6 +191,122 @@ public class MercurialInstallation extends ToolInstallation implements
         return config;
     }
 
+    /**
+     * Gets {@link #getConfig} as command-line options.
+     * @return a possibly empty list of alternating {@code --config} and {@code section.key=value}
+     */
+    @NonNull List<String> getConfigArguments() throws IOException {
+        List<String> args = configArguments;
+        if (args == null) {
+            args = new ArrayList<String>();
+            if (config != null) {
+                for (Map.Entry<String,? extends Map<String,String>> entry : new Ini(new StringReader(config)).entrySet()) {
+                    String sectionName = entry.getKey();
+                    for (Map.Entry<String,String> entry2 : entry.getValue().entrySet()) {
+                        args.add("--config");
+                        args.add(sectionName + '.' + entry2.getKey() + '=' + entry2.getValue());
+                    }
+                }
+            }
+            configArguments = args = Collections.unmodifiableList(args);
+        }
+        return args;
+    }
+
+    /**
+     * Whether {@link RepositoryUpgrader} should bring caches and workspaces up to current store formats.
+     */
+    public boolean isUpgradeFormats() {
+        return upgradeFormats;
+    }
+
+    @DataBoundSetter public void setUpgradeFormats(boolean upgradeFormats) {
+        this.upgradeFormats = upgradeFormats;
+    }
+
+    /**
+     * Whether {@link HgExe} should run short queries through a pooled {@link CommandServer}.
+     */
+    public boolean isUseCommandServer() {
+        return useCommandServer;
+    }
+
+    @DataBoundSetter public void setUseCommandServer(boolean useCommandServer) {
+        this.useCommandServer = useCommandServer;
+    }
+
+    /**
+     * Whether {@link HgExe} may answer simple queries with {@link RevlogReader} instead of running {@code hg}.
+     */
+    public boolean isUseRevlogReader() {
+        return useRevlogReader;
+    }
+
+    @DataBoundSetter public void setUseRevlogReader(boolean useRevlogReader) {
+        this.useRevlogReader = useRevlogReader;
+    }
+
+    /**
+     * Whether jobs not using caches should poll from a {@link PollMirror} on the controller rather than their workspaces.
+     */
+    public boolean isUsePollMirror() {
+        return usePollMirror;
+    }
+
+    @DataBoundSetter public void setUsePollMirror(boolean usePollMirror) {
+        this.usePollMirror = usePollMirror;
+    }
+
+    /**
+     * An optional {@code rhg} executable which {@link HgExe} may use for some read-only commands.
+     * @return a path, possibly containing {@code INSTALLATION}, or null
+     */
+    public @CheckForNull String getRhg() {
+        return rhg;
+    }
+
+    @DataBoundSetter public void setRhg(String rhg) {
+        this.rhg = Util.fixEmptyAndTrim(rhg);
+    }
+
+    /**
+     * Like {@link #executableWithSubstitution} but for {@link #getRhg}.
+     * @return a path, or null if none is configured
+     */
+    @CheckForNull String rhgWithSubstitution(String home) {
+        if (rhg == null) {
+            return null;
+        }
+        if (home.isEmpty() && rhg.contains("INSTALLATION")) {
+            return "rhg";
+        }
+        return rhg.replace("INSTALLATION", home);
+    }
+
+    /**
+     * Speed-related settings for {@link HgExe}, unless a node overrides them with {@link PerformanceProfileNodeProperty}.
+     * @return a profile, or null to pass no such settings
+     */
+    public @CheckForNull PerformanceProfile getPerformanceProfile() {
+        return performanceProfile;
+    }
+
+    @DataBoundSetter public void setPerformanceProfile(PerformanceProfile performanceProfile) {
+        this.performanceProfile = performanceProfile;
+    }
+
+    /**
+     * Time limits for {@link HgExe} processes by kind of operation.
+     * @return limits, or null to kill only processes outside builds, after an hour
+     */
+    public @CheckForNull Timeouts getTimeouts() {
+        return timeouts;
+    }
+
+    @DataBoundSetter public void setTimeouts(Timeouts timeouts) {
+        this.timeouts = timeouts;
+    }
+
     @NonNull
     public static MercurialInstallation[] allInstallations() {
         return Jenkins.getInstance().getDescriptorByType(DescriptorImpl.class).getInstallations();
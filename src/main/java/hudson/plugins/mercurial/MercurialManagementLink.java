@@ -0,0 +1,208 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.ManagementLink;
+import hudson.model.TaskListener;
+import hudson.security.Permission;
+import hudson.util.HttpResponses;
+import hudson.util.LogTaskListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.interceptor.RequirePOST;
+
+/**
+ * Administrative page for repository caches, at {@code /manage/mercurial/}.
+ * Also serves as an authenticated REST API for deployment tooling.
+ */
+@Extension
+public class MercurialManagementLink extends ManagementLink {
+
+    public static final String URL_NAME = "mercurial";
+
+    @Override public String getIconFileName() {
+        return "/plugin/mercurial/images/logo.svg";
+    }
+
+    @Override public String getDisplayName() {
+        return Messages.MercurialManagementLink_displayName();
+    }
+
+    @Override public String getDescription() {
+        return Messages.MercurialManagementLink_description();
+    }
+
+    @Override public String getUrlName() {
+        return URL_NAME;
+    }
+
+    @NonNull
+    @Override public Permission getRequiredPermission() {
+        return Jenkins.ADMINISTER;
+    }
+
+    @NonNull
+    @Override public Category getCategory() {
+        return Category.TOOLS;
+    }
+
+    @Restricted(NoExternalUse.class) // jelly
+    public List<CacheWarmupTask> getWarmupTasks() {
+        return CacheWarmupTask.all();
+    }
+
+    @Restricted(NoExternalUse.class) // jelly
+    public List<CacheCloneTask> getCloneTasks() {
+        return CacheCloneTask.all();
+    }
+
+    @Restricted(NoExternalUse.class) // jelly
+    public CacheCollector getCollector() {
+        return CacheCollector.get();
+    }
+
+    @Restricted(NoExternalUse.class) // jelly
+    public RepositoryUpgrader getUpgrader() {
+        return RepositoryUpgrader.get();
+    }
+
+    @Restricted(NoExternalUse.class) // jelly
+    public List<CapabilityProbe.Capabilities> getCapabilities() {
+        return CapabilityProbe.all();
+    }
+
+    @Restricted(NoExternalUse.class) // jelly
+    public List<RhgStatistics.Command> getRhgStatistics() {
+        return RhgStatistics.all();
+    }
+
+    /**
+     * Runs {@link CacheCollector} now rather than waiting for its next period.
+     */
+    @RequirePOST
+    @Restricted(NoExternalUse.class) // Exposed by Stapler, not for direct invocation
+    public HttpResponse doCollect() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        CacheCollector.get().run();
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * @return caching installations configured with more than one controller cache root
+     */
+    @Restricted(NoExternalUse.class) // jelly
+    public List<MercurialInstallation> getMultiRootInstallations() {
+        List<MercurialInstallation> result = new ArrayList<MercurialInstallation>();
+        for (MercurialInstallation inst : MercurialInstallation.allInstallations()) {
+            if (inst.isUseCaches() && inst.getMasterCacheRoots().size() > 1) {
+                result.add(inst);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Moves existing controller caches of an installation in the background according to its current placement setting.
+     * @param installation name of a caching installation
+     * @see Cache#rebalance
+     */
+    @RequirePOST
+    @Restricted(NoExternalUse.class) // Exposed by Stapler, not for direct invocation
+    public HttpResponse doRebalance(@QueryParameter String installation) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        final MercurialInstallation inst = CacheWarmupTask.findCachingInstallation(Util.fixEmptyAndTrim(installation));
+        if (inst == null) {
+            return HttpResponses.errorJSON("No suitable Mercurial installation with caching enabled");
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override public void run() {
+                TaskListener listener = new LogTaskListener(LOGGER, Level.INFO);
+                try {
+                    listener.getLogger().println("Moved " + Cache.rebalance(inst, listener) + " caches of " + inst.getName());
+                } catch (IOException x) {
+                    LOGGER.log(Level.WARNING, "failed to rebalance caches of " + inst.getName(), x);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        return HttpResponses.redirectToDot();
+    }
+
+    /**
+     * Schedules cache warm-up.
+     * Example: {@code curl -u admin:token -X POST 'https://jenkins/manage/mercurial/warm?url=https://hg/repo1&url=https://hg/repo2&label=linux'}
+     * @param installation name of a caching installation (optional)
+     * @param credentialsId credentials to pull with (optional)
+     * @param label agents whose caches should also be refreshed (optional)
+     * @return JSON list of scheduled tasks, whose progress may be followed from {@link #doTask}
+     */
+    @RequirePOST
+    @Restricted(NoExternalUse.class) // Exposed by Stapler, not for direct invocation
+    public HttpResponse doWarm(StaplerRequest2 req, @QueryParameter String installation, @QueryParameter String credentialsId, @QueryParameter String label) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        List<String> sources = new ArrayList<String>();
+        String[] urls = req.getParameterValues("url");
+        if (urls != null) {
+            for (String url : urls) {
+                // also accept newline-separated lists as submitted from the form
+                sources.addAll(Arrays.asList(url.split("\\s+")));
+            }
+        }
+        if (sources.isEmpty()) {
+            return HttpResponses.errorJSON("Specify at least one repository url");
+        }
+        if (CacheWarmupTask.findCachingInstallation(Util.fixEmptyAndTrim(installation)) == null) {
+            return HttpResponses.errorJSON("No suitable Mercurial installation with caching enabled");
+        }
+        JSONArray result = new JSONArray();
+        for (CacheWarmupTask task : CacheWarmupTask.schedule(sources, Util.fixEmptyAndTrim(installation), Util.fixEmptyAndTrim(credentialsId), Util.fixEmptyAndTrim(label))) {
+            result.add(task.toJSON());
+        }
+        return HttpResponses.okJSON(result);
+    }
+
+    /**
+     * Reports the status of all known warm-up tasks.
+     */
+    @Restricted(NoExternalUse.class) // Exposed by Stapler, not for direct invocation
+    public HttpResponse doTasks() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        JSONArray result = new JSONArray();
+        for (CacheWarmupTask task : CacheWarmupTask.all()) {
+            result.add(task.toJSON());
+        }
+        return HttpResponses.okJSON(result);
+    }
+
+    /**
+     * Reports the status of one warm-up task.
+     * @param id as returned from {@link #doWarm}
+     * @param log whether to include the log text
+     */
+    @Restricted(NoExternalUse.class) // Exposed by Stapler, not for direct invocation
+    public HttpResponse doTask(@QueryParameter long id, @QueryParameter boolean log) {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        CacheWarmupTask task = CacheWarmupTask.get(id);
+        if (task == null) {
+            return HttpResponses.errorJSON("No such task " + id);
+        }
+        return HttpResponses.okJSON(log ? task.toJSON().element("log", task.getLog()) : task.toJSON());
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(MercurialManagementLink.class.getName());
+
+}
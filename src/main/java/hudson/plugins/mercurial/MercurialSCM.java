@@ -54,6 +54,8 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -62,8 +64,6 @@ import java.util.Set;
 import java.util.logging.Level;
 import static java.util.logging.Level.FINE;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
@@ -111,9 +111,9 @@ public class MercurialSCM extends SCM implements Serializable {
     /**
      * Prefixes of files within the repository which we're dependent on.
      * Storing as member variable so as to only parse the dependencies string once.
-     * Will be either null (use whole repo), or nonempty list of subdir names.
+     * Will be either null (use whole repo), or a matcher for a nonempty list of subdir names.
      */
-    private transient Set<String> _modules;
+    private transient ModuleMatcher _modules;
     // Same thing, but not parsed for jelly.
     private String modules = "";
 
@@ -197,7 +197,7 @@ public class MercurialSCM extends SCM implements Serializable {
 
     private void parseModules() {
         if (modules.trim().length() > 0) {
-            _modules = new HashSet<String>();
+            Set<String> prefixes = new HashSet<String>();
             // split by commas and whitespace, except "\ "
             for (String r : modules.split("(?<!\\\\)[ \\r\\n,]+")) {
                 if (r.length() == 0) { // initial spaces should be ignored
@@ -211,8 +211,9 @@ public class MercurialSCM extends SCM implements Serializable {
                 }
                 // Use unix file path separators
                 r = r.replace('\\', '/');
-                _modules.add(r);
+                prefixes.add(r);
             }
+            _modules = ModuleMatcher.compile(prefixes);
         } else {
             _modules = null;
         }
@@ -244,7 +245,7 @@ public class MercurialSCM extends SCM implements Serializable {
     public String getSource() {
         return source;
     }
-    private String getSource(EnvVars env) {
+    String getSource(EnvVars env) {
         return env.expand(source);
     }
 
@@ -391,18 +392,15 @@ public class MercurialSCM extends SCM implements Serializable {
             throw new IOException("Cannot find a node for the specified workspace");
         }
 
-        try (HgExe hg = new HgExe(findInstallation(getInstallation()), getCredentials(build.getParent(), env), launcher, nodeWithTheWorkspace, listener, env)) {
-            String tip = hg.tip(workspace2Repo(workspace, env), null);
-            String rev = hg.tipNumber(workspace2Repo(workspace, env), null);
-            String branch = revisionType != RevisionType.BRANCH ? hg.branch(workspace2Repo(workspace, env), null) : null;
-            return tip != null && rev != null ? new MercurialTagAction(tip, rev, getSubdir(env), branch) : null;
+        try (CheckoutSession session = new CheckoutSession(this, build.getParent(), env, launcher, nodeWithTheWorkspace, listener)) {
+            return parentTagAction(session, workspace2Repo(workspace, env));
         }
     }
 
     @Override
     public boolean requiresWorkspaceForPolling() {
         MercurialInstallation mercurialInstallation = findInstallation(installation);
-        return mercurialInstallation == null || !(mercurialInstallation.isUseCaches() || mercurialInstallation.isUseSharing() );
+        return mercurialInstallation == null || !(mercurialInstallation.isUseCaches() || mercurialInstallation.isUseSharing() || mercurialInstallation.isUsePollMirror());
     }
 
     @Override
@@ -419,29 +417,55 @@ public class MercurialSCM extends SCM implements Serializable {
         }
         MercurialTagAction baseline = (MercurialTagAction)_baseline;
 
-        PrintStream output = listener.getLogger();
-        EnvVars env = project.getEnvironment(jenkins, listener);
-        StandardUsernameCredentials credentials = getCredentials(project, env);
+        final PrintStream output = listener.getLogger();
 
         if (!requiresWorkspaceForPolling()) {
             launcher = jenkins.createLauncher(listener);
-            CachedRepo possiblyCachedRepo = cachedSource(Jenkins.getInstance(), env, launcher, listener, true, credentials);
-            if (possiblyCachedRepo == null) {
-                throw new IOException("Could not use cache to poll for changes. See error messages above for more details");
+            try (final CheckoutSession session = new CheckoutSession(this, project, project.getEnvironment(jenkins, listener), launcher, jenkins, listener)) {
+                String key = sharedPollKey(session.env, baseline, project);
+                if (key != null) {
+                    return pollingResult(PollResultCache.get(key, project.getFullName(), listener, new PollResultCache.Computation() {
+                        @Override public PollResultCache.Result compute() throws IOException, InterruptedException {
+                            if (unchangedRemoteHead(session, baseline, project)) {
+                                return new PollResultCache.Result(null, Collections.<String>emptySet());
+                            }
+                            return pollResult(session, baseline, pollingRepository(session, project), project);
+                        }
+                    }), baseline, session.env, output);
+                }
+                if (unchangedRemoteHead(session, baseline, project)) {
+                    return new PollingResult(baseline, baseline, Change.NONE);
+                }
+                return compare(session, baseline, output, pollingRepository(session, project), project);
             }
-            FilePath repositoryCache = new FilePath(new File(possiblyCachedRepo.getRepoLocation()));
-            return compare(launcher, listener, baseline, output, jenkins, repositoryCache, project);
         }
-        // TODO do canUpdate check similar to in checkout, and possibly return INCOMPARABLE
-
-        try {
-            // Get the list of changed files.
-            Node node = workspaceToNode(workspace);
-            FilePath repository = workspace2Repo(workspace, env);
+        // Get the list of changed files.
+        Node node = workspaceToNode(workspace);
+        try (final CheckoutSession session = new CheckoutSession(this, project, project.getEnvironment(node, listener), launcher, node, listener)) {
+            final FilePath repository = workspace2Repo(workspace, session.env);
+            if (!repository.act(new WorkspaceInspector(false, false, null)).repository) {
+                output.println("No Mercurial repository in " + repository + "; a build is needed to create one");
+                return PollingResult.BUILD_NOW;
+            }
+            String key = sharedPollKey(session.env, baseline, project);
+            if (key != null) {
+                return pollingResult(PollResultCache.get(key, project.getFullName(), listener, new PollResultCache.Computation() {
+                    @Override public PollResultCache.Result compute() throws IOException, InterruptedException {
+                        if (unchangedRemoteHead(session, baseline, project)) {
+                            return new PollResultCache.Result(null, Collections.<String>emptySet());
+                        }
+                        pull(session, repository, getRevisionExpanded(project, session.env));
+                        return pollResult(session, baseline, repository, project);
+                    }
+                }), baseline, session.env, output);
+            }
+            if (unchangedRemoteHead(session, baseline, project)) {
+                return new PollingResult(baseline, baseline, Change.NONE);
+            }
 
-            pull(launcher, repository, listener, node, getRevisionExpanded(project, env), credentials, env);
+            pull(session, repository, getRevisionExpanded(project, session.env));
 
-            return compare(launcher, listener, baseline, output, node, repository, project);
+            return compare(session, baseline, output, repository, project);
         } catch(IOException e) {
             if (causedByMissingHg(e)) {
                 listener.error(Messages.MercurialSCM_failed_to_compare_with_remote_repository());
@@ -451,7 +475,120 @@ public class MercurialSCM extends SCM implements Serializable {
         }
     }
 
+    /**
+     * Updates the cache, or else the {@link PollMirror}, to poll from on the controller.
+     */
+    private FilePath pollingRepository(CheckoutSession session, Job<?,?> project) throws IOException, InterruptedException {
+        if (session.inst != null && session.inst.isUseCaches()) {
+            return pollingCache(session);
+        }
+        List<String> revisions = new ArrayList<String>();
+        if (revisionType == RevisionType.BRANCH || revisionType == RevisionType.CHANGESET) { // as in pull
+            revisions.add(getRevisionExpanded(project, session.env));
+        }
+        return PollMirror.update(session.hg(), getSource(session.env), session.credentials, revisions, session.listener);
+    }
+
+    /**
+     * Updates the cache to poll from.
+     * Polling has nothing to fall back to, so this waits out any initial clone of the cache.
+     */
+    private FilePath pollingCache(CheckoutSession session) throws IOException, InterruptedException {
+        CachedRepo possiblyCachedRepo = cachedSource(session, true, false);
+        if (possiblyCachedRepo == null) {
+            throw new IOException("Could not use cache to poll for changes. See error messages above for more details");
+        }
+        return new FilePath(new File(possiblyCachedRepo.getRepoLocation()));
+    }
+
+    /**
+     * Identifies polls whose outcome other jobs may reuse through {@link PollResultCache}.
+     * @return a key, or null if this job must poll on its own, as when {@link ChangeComparator}s may judge each job differently
+     */
+    private @CheckForNull String sharedPollKey(EnvVars env, MercurialTagAction baseline, Job<?,?> project) {
+        if (PollResultCache.TTL <= 0 || !ChangeComparator.all().isEmpty()) {
+            return null;
+        }
+        return PollResultCache.key(getSource(env), credentialsId, getRevisionExpanded(project, env), baseline.id);
+    }
+
+    /**
+     * Finds the head and every file changed since the baseline, for any job, since modules are not yet considered.
+     * @param repository pulled from the remote
+     */
+    private PollResultCache.Result pollResult(CheckoutSession session, MercurialTagAction baseline, FilePath repository, Job<?,?> project) throws IOException, InterruptedException {
+        HgExe hg = session.hg();
+        HgExe.RevisionInfo info = hg.revisionInfo(repository, getRevisionExpanded(project, session.env));
+        if (info == null) {
+            throw new IOException("failed to find ID of branch head");
+        }
+        Set<String> changes = new HashSet<String>();
+        if (!info.node.equals(baseline.id)) {
+            statusSince(hg, repository, session.listener, baseline.id, info.node, changes, true);
+        }
+        return new PollResultCache.Result(info, changes);
+    }
+
+    /**
+     * Judges a shared {@link PollResultCache.Result} by the modules of this job.
+     */
+    private PollingResult pollingResult(PollResultCache.Result result, MercurialTagAction baseline, EnvVars env, PrintStream output) {
+        if (result.head == null) {
+            return new PollingResult(baseline, baseline, Change.NONE);
+        }
+        MercurialTagAction cur = tagAction(result.head, env);
+        if (result.head.node.equals(baseline.id)) {
+            return new PollingResult(baseline, cur, Change.NONE);
+        }
+        return new PollingResult(baseline, cur, computeDegreeOfChanges(result.changes, output));
+    }
+
+    /**
+     * Checks whether the remote repository still has the baseline as the head of the configured revision,
+     * so that polling can stop before locking a cache, pulling or listing changes.
+     * The head is looked up with {@link WireProtocolClient} where possible, else with {@code hg identify}.
+     * @return true if nothing changed; false if something did, or if it cannot be told cheaply
+     */
+    private boolean unchangedRemoteHead(CheckoutSession session, MercurialTagAction baseline, Job<?,?> project) throws IOException, InterruptedException {
+        if (revisionType == RevisionType.REVSET || !ChangeComparator.all().isEmpty()) {
+            return false; // revsets are only evaluated locally, and comparators may look at more than the head
+        }
+        String revision = getRevisionExpanded(project, session.env);
+        String source = getSource(session.env);
+        String head = null;
+        WireProtocolClient client = WireProtocolClient.forSource(source, session.credentials);
+        if (client != null) {
+            try {
+                head = client.lookup(revision);
+            } catch (IOException x) {
+                LOGGER.log(FINE, "could not look up " + revision + " in " + client, x);
+            }
+        }
+        if (head == null && ProcessLimiter.hostOf(source) != null) {
+            try {
+                head = session.hg().popen(null, session.listener, true, new ArgumentListBuilder("identify", "--id", "--rev", revision, source)).trim();
+            } catch (AbortException x) {
+                return false; // already reported; a pull will tell more
+            }
+        }
+        // identify abbreviates the ID
+        if (head == null || head.length() < 12 || !baseline.id.startsWith(head)) {
+            return false;
+        }
+        session.listener.getLogger().println("Remote head of " + revision + " is still " + baseline.getShortId() + "; no changes");
+        return true;
+    }
+
     PollingResult compare(Launcher launcher, TaskListener listener, MercurialTagAction baseline, PrintStream output, Node node, FilePath repository, Job<?,?> project) throws IOException, InterruptedException {
+        try (CheckoutSession session = new CheckoutSession(this, project, project.getEnvironment(node, listener), launcher, node, listener)) {
+            return compare(session, baseline, output, repository, project);
+        }
+    }
+
+    private PollingResult compare(CheckoutSession session, MercurialTagAction baseline, PrintStream output, FilePath repository, Job<?,?> project) throws IOException, InterruptedException {
+        Launcher launcher = session.launcher;
+        TaskListener listener = session.listener;
+        Node node = session.node;
         Change change = null;
         for (ChangeComparator s : ChangeComparator.all()) {
             Change c = s.compare(this, launcher, listener, baseline, output, node, repository, project);
@@ -464,53 +601,131 @@ public class MercurialSCM extends SCM implements Serializable {
         if (change != null) {
             return new PollingResult(change);
         }
-        EnvVars env = project.getEnvironment(node, listener);
-        try (HgExe hg = new HgExe(findInstallation(getInstallation()), getCredentials(project, env), launcher, node, listener, env)) {
-            String _revision = getRevisionExpanded(project, env);
-            String remote = hg.tip(repository, _revision);
-            String rev = hg.tipNumber(repository, _revision);
-            String branch = revisionType != RevisionType.BRANCH ? hg.branch(repository, _revision) : null;
+        EnvVars env = session.env;
+        HgExe hg = session.hg();
+        String _revision = getRevisionExpanded(project, env);
+        HgExe.RevisionInfo info = hg.revisionInfo(repository, _revision);
+        if (info == null) {
+            throw new IOException("failed to find ID of branch head");
+        }
+        String remote = info.node;
+        MercurialTagAction cur = tagAction(info, env);
+        if (remote.equals(baseline.id)) { // shortcut
+            return new PollingResult(baseline, cur, Change.NONE);
+        }
+        Set<String> changedFileNames = new HashSet<String>();
+        statusSince(hg, repository, listener, baseline.id, remote, changedFileNames, false);
+        return new PollingResult(baseline, cur, computeDegreeOfChanges(changedFileNames, output));
+    }
 
-            if (remote == null) {
-                throw new IOException("failed to find ID of branch head");
-            }
-            if (rev == null) {
-                throw new IOException("failed to find revision of branch head");
+    /**
+     * Like {@link #status} from the baseline, unless the repository lacks it, as a {@link PollMirror} may:
+     * then every file in the head counts as changed.
+     */
+    private void statusSince(HgExe hg, FilePath repository, TaskListener listener, String baseline, String head, Set<String> changedFileNames, boolean all) throws IOException, InterruptedException {
+        try {
+            status(hg, repository, listener, baseline, head, changedFileNames, all);
+        } catch (AbortException x) {
+            if (hg.containsAll(repository, Collections.singleton(baseline))) {
+                throw x;
             }
-            if (remote.equals(baseline.id)) { // shortcut
-                return new PollingResult(baseline, new MercurialTagAction(remote, rev, getSubdir(env), branch), Change.NONE);
+            listener.getLogger().println("Baseline " + baseline + " is not in " + repository + "; treating every file as changed");
+            changedFileNames.clear();
+            status(hg, repository, listener, "null", head, changedFileNames, all);
+        }
+    }
+
+    /**
+     * Collects files changed between two revisions.
+     * For this job alone, one significant change settles the matter, so a possibly huge status is only read that far,
+     * and {@code hg} lists only files within the modules.
+     * Should there be none, any other file tells an insignificant change from none at all.
+     * @param all whether to read everything anyway, for other jobs
+     */
+    private void status(HgExe hg, FilePath repository, TaskListener listener, String from, String to, final Set<String> changedFileNames, final boolean all) throws IOException, InterruptedException {
+        ArgumentListBuilder args = new ArgumentListBuilder("status", "--rev", from, "--rev", to);
+        boolean filtered = !all && _modules != null;
+        if (filtered) {
+            args.add("-I", _modules.toIncludePattern());
+        }
+        hg.popen(repository, listener, false, args, new HgExe.LineHandler() {
+            @Override public boolean line(String line) {
+                String file = parseStatusLine(line);
+                if (file == null) {
+                    return true;
+                }
+                changedFileNames.add(file);
+                return all || !isDependentChange(file);
             }
-            Set<String> changedFileNames = parseStatus(hg.popen(repository, listener, false, new ArgumentListBuilder("status", "--rev", baseline.id, "--rev", remote)));
+        });
+        if (filtered && changedFileNames.isEmpty()) {
+            hg.popen(repository, listener, false, new ArgumentListBuilder("status", "--rev", from, "--rev", to), new HgExe.LineHandler() {
+                @Override public boolean line(String line) {
+                    String file = parseStatusLine(line);
+                    if (file == null) {
+                        return true;
+                    }
+                    changedFileNames.add(file);
+                    return false;
+                }
+            });
+        }
+    }
+
+    private MercurialTagAction tagAction(HgExe.RevisionInfo info, EnvVars env) {
+        return new MercurialTagAction(info.node, info.rev, getSubdir(env), revisionType != RevisionType.BRANCH ? info.branch : null);
+    }
 
-            MercurialTagAction cur = new MercurialTagAction(remote, rev, getSubdir(env), branch);
-            return new PollingResult(baseline, cur, computeDegreeOfChanges(changedFileNames, output));
+    /**
+     * Describes the working copy parent, reading the dirstate and changelog directly if possible.
+     */
+    private @CheckForNull MercurialTagAction parentTagAction(CheckoutSession session, FilePath repository) throws IOException, InterruptedException {
+        WorkspaceInspector.Workspace ws = repository.act(new WorkspaceInspector(false, readRevlog(session), null));
+        if (ws.parents != null && !ws.parents.isEmpty() && ws.parentRev != null) {
+            return new MercurialTagAction(ws.parents.get(0), ws.parentRev, getSubdir(session.env), revisionType != RevisionType.BRANCH ? ws.parentBranch : null);
         }
+        HgExe.RevisionInfo info = session.hg().revisionInfo(repository, null);
+        return info != null ? tagAction(info, session.env) : null;
+    }
+
+    private static boolean readRevlog(CheckoutSession session) {
+        return session.inst != null && session.inst.isUseRevlogReader();
     }
 
     static Set<String> parseStatus(String status) {
         Set<String> result = new HashSet<String>();
-        Matcher m = Pattern.compile("(?m)^[ARM] (.+)").matcher(status);
-        while (m.find()) {
-            result.add(m.group(1));
+        for (String line : status.split("\r?\n")) {
+            String file = parseStatusLine(line);
+            if (file != null) {
+                result.add(file);
+            }
         }
         return result;
     }
 
-    private int pull(Launcher launcher, FilePath repository, TaskListener listener, Node node, String revision, StandardUsernameCredentials credentials, EnvVars env) throws IOException, InterruptedException {
-        try (HgExe hg = new HgExe(findInstallation(getInstallation()), credentials, launcher, node, listener, env)) {
-            ArgumentListBuilder cmd = hg.seed(true);
-            cmd.add("pull");
-            if (revisionType == RevisionType.BRANCH || revisionType == RevisionType.CHANGESET) { // does not work for tags
-                cmd.add("--rev", revision);
-            }
-            CachedRepo cachedSource = cachedSource(node, env, launcher, listener, true, credentials);
-            if (cachedSource != null) {
-                cmd.add(cachedSource.getRepoLocation());
-            }
-            return HgExe.joinWithPossibleTimeout(
-                    hg.launch(cmd).pwd(repository),
-                    true, listener);
+    /**
+     * @param line one line of {@code hg status} output
+     * @return the file name if it was added, removed or modified, else null
+     */
+    static @CheckForNull String parseStatusLine(String line) {
+        if (line.length() > 2 && "ARM".indexOf(line.charAt(0)) != -1 && line.charAt(1) == ' ') {
+            return line.substring(2);
         }
+        return null;
+    }
+
+    private int pull(CheckoutSession session, FilePath repository, String revision) throws IOException, InterruptedException {
+        HgExe hg = session.hg();
+        ArgumentListBuilder cmd = hg.seed(true);
+        cmd.add("pull");
+        if (revisionType == RevisionType.BRANCH || revisionType == RevisionType.CHANGESET) { // does not work for tags
+            cmd.add("--rev", revision);
+        }
+        CachedRepo cachedSource = cachedSource(session, true, true);
+        if (cachedSource != null) {
+            cmd.add(cachedSource.getRepoLocation());
+        }
+        return hg.join(hg.launch(cmd).pwd(repository), true);
     }
 
     private Change computeDegreeOfChanges(Set<String> changedFileNames, PrintStream output) {
@@ -539,25 +754,21 @@ public class MercurialSCM extends SCM implements Serializable {
         Set<String> affecting = new HashSet<String>();
 
         for (String changedFile : changedFileNames) {
-            if (changedFile.matches("[.]hg(ignore|tags)")) {
-                continue;
-            }
-            if (_modules == null) {
+            if (isDependentChange(changedFile)) {
                 affecting.add(changedFile);
-                continue;
-            }
-            String unixChangedFile = changedFile.replace('\\', '/');
-            for (String dependency : _modules) {
-                if (unixChangedFile.startsWith(dependency)) {
-                    affecting.add(changedFile);
-                    break;
-                }
             }
         }
 
         return affecting;
     }
 
+    private boolean isDependentChange(String changedFile) {
+        if (changedFile.equals(".hgignore") || changedFile.equals(".hgtags")) {
+            return false;
+        }
+        return _modules == null || _modules.matches(changedFile);
+    }
+
     public static @CheckForNull MercurialInstallation findInstallation(String name) {
         for (MercurialInstallation inst : MercurialInstallation.allInstallations()) {
             if (inst.getName().equals(name)) {
@@ -580,36 +791,38 @@ public class MercurialSCM extends SCM implements Serializable {
         final boolean jobShouldUseSharing = mercurialInstallation != null && mercurialInstallation.isUseSharing();
 
         Node node = workspaceToNode(workspace);
-        FilePath repository = workspace2Repo(workspace, build.getEnvironment(listener));
-        boolean canReuseExistingWorkspace;
-        try {
-            canReuseExistingWorkspace = canReuseWorkspace(repository, node, jobShouldUseSharing, build, launcher, listener);
-        } catch(IOException e) {
-            if (causedByMissingHg(e)) {
-                listener.error("Failed to determine whether workspace can be reused because hg could not be found;" +
-                        " check that you've properly configured your Mercurial installation");
-            } else {
-                e.printStackTrace(listener.error("Failed to determine whether workspace can be reused"));
+        EnvVars env = build.getEnvironment(listener);
+        try (CheckoutSession session = new CheckoutSession(this, build.getParent(), env, launcher, node, listener)) {
+            FilePath repository = workspace2Repo(workspace, env);
+            boolean canReuseExistingWorkspace;
+            try {
+                canReuseExistingWorkspace = canReuseWorkspace(session, repository, jobShouldUseSharing);
+            } catch(IOException e) {
+                if (causedByMissingHg(e)) {
+                    listener.error("Failed to determine whether workspace can be reused because hg could not be found;" +
+                            " check that you've properly configured your Mercurial installation");
+                } else {
+                    e.printStackTrace(listener.error("Failed to determine whether workspace can be reused"));
+                }
+                throw new AbortException("Failed to determine whether workspace can be reused");
             }
-            throw new AbortException("Failed to determine whether workspace can be reused");
-        }
 
-        String revToBuild = getRevToBuild(build, workspace, build.getEnvironment(listener));
-        StandardUsernameCredentials credentials = getCredentials(build.getParent(), build.getEnvironment(listener));
-        if (canReuseExistingWorkspace) {
-            update(build, launcher, repository, node, listener, revToBuild, credentials);
-        } else {
-            clone(build, launcher, repository, node, listener, revToBuild, credentials);
-        }
+            String revToBuild = getRevToBuild(build, workspace, env);
+            if (canReuseExistingWorkspace) {
+                update(session, build, repository, revToBuild);
+            } else {
+                clone(session, build, repository, revToBuild);
+            }
 
-        if (changelogFile != null) {
-        try {
-            determineChanges(build, launcher, listener, changelogFile, repository, node, revToBuild, baseline);
-        } catch (IOException e) {
-            listener.error("Failed to capture change log");
-            e.printStackTrace(listener.getLogger());
-            throw new AbortException("Failed to capture change log");
-        }
+            if (changelogFile != null) {
+            try {
+                determineChanges(session, build, changelogFile, repository, revToBuild, baseline);
+            } catch (IOException e) {
+                listener.error("Failed to capture change log");
+                e.printStackTrace(listener.getLogger());
+                throw new AbortException("Failed to capture change log");
+            }
+            }
         }
     }
 
@@ -633,37 +846,52 @@ public class MercurialSCM extends SCM implements Serializable {
         }
     }
 
-    private boolean canReuseWorkspace(FilePath repo, Node node,
-            boolean jobShouldUseSharing, Run<?,?> build,
-            Launcher launcher, TaskListener listener)
+    private boolean canReuseWorkspace(CheckoutSession session, FilePath repo, boolean jobShouldUseSharing)
                 throws IOException, InterruptedException {
 
-        boolean jobUsesSharing = new FilePath(repo, ".hg/sharedpath").exists();
+        WorkspaceInspector.Workspace ws = repo.act(new WorkspaceInspector(false, false, null));
+        boolean jobUsesSharing = ws.shared;
         if (jobShouldUseSharing != jobUsesSharing) {
             return false;
         } else if(jobUsesSharing) {
             return true;
         }
         
-        if (!new FilePath(repo, ".hg/hgrc").exists()) {
+        if (!ws.hgrc) {
             return false;
         }
 
-        EnvVars env = build.getEnvironment(listener);
-        try (HgExe hg = new HgExe(findInstallation(getInstallation()), getCredentials(build.getParent(), env), launcher, node, listener, env)) {
-            String upstream = hg.config(repo, "paths.default");
-            if (HgExe.pathEquals(getSource(env), upstream)) {
+        String upstream = ws.defaultPath;
+        if (upstream == null || overridesPaths(session.inst)) {
+            upstream = session.hg().config(repo, "paths.default");
+        }
+        if (HgExe.pathEquals(getSource(session.env), upstream)) {
+            return true;
+        }
+        session.listener.error(
+                "Workspace reports paths.default as " + upstream +
+                "\nwhich looks different than " + getSource(session.env) +
+                "\nso falling back to fresh clone rather than incremental update");
+        return false;
+    }
+
+    /**
+     * Whether the installation configuration could change {@code paths.default} from what {@code .hg/hgrc} says.
+     */
+    private static boolean overridesPaths(@CheckForNull MercurialInstallation inst) throws IOException {
+        if (inst == null) {
+            return false;
+        }
+        for (String arg : inst.getConfigArguments()) {
+            if (arg.startsWith("paths.")) {
                 return true;
             }
-            listener.error(
-                    "Workspace reports paths.default as " + upstream +
-                    "\nwhich looks different than " + getSource(env) +
-                    "\nso falling back to fresh clone rather than incremental update");
-            return false;
         }
+        return false;
     }
 
-    private void determineChanges(Run<?, ?> build, Launcher launcher, TaskListener listener, @NonNull File changelogFile, FilePath repository, Node node, String revToBuild, SCMRevisionState baseline) throws IOException, InterruptedException {
+    private void determineChanges(CheckoutSession session, Run<?, ?> build, @NonNull File changelogFile, FilePath repository, String revToBuild, SCMRevisionState baseline) throws IOException, InterruptedException {
+        TaskListener listener = session.listener;
         if (isDisableChangeLog()) {
             createEmptyChangeLog(changelogFile, listener, "changelog");
             return;
@@ -675,102 +903,111 @@ public class MercurialSCM extends SCM implements Serializable {
             createEmptyChangeLog(changelogFile, listener, "changelog");
             return;
         }
-        EnvVars env = build.getEnvironment(listener);
-        MercurialInstallation inst = findInstallation(getInstallation());
-        StandardUsernameCredentials credentials = getCredentials(build.getParent(), env);
-        try (HgExe hg = new HgExe(inst, credentials, launcher, node, listener, env)) {
-            ArgumentListBuilder logCommand = hg.seed(true).add("log", "--rev", prevTag.getId(), "--template", "exists\\n");
-            int exitCode = hg.launch(logCommand).pwd(repository).join();
-            if (exitCode != 0) {
-                listener.error("Previously built revision " + prevTag.getId() + " is not known in this clone; unable to determine change log");
-                createEmptyChangeLog(changelogFile, listener, "changelog");
-                return;
-            }
+        HgExe hg = session.hg();
+        ArgumentListBuilder logCommand = hg.seed(true).add("log", "--rev", prevTag.getId(), "--template", "exists\\n");
+        int exitCode = hg.launch(logCommand).pwd(repository).join();
+        if (exitCode != 0) {
+            listener.error("Previously built revision " + prevTag.getId() + " is not known in this clone; unable to determine change log");
+            createEmptyChangeLog(changelogFile, listener, "changelog");
+            return;
+        }
 
-            // calc changelog
-            try (FileOutputStream os = new FileOutputStream(changelogFile)) {
-                os.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n".getBytes(StandardCharsets.UTF_8));
-                try {
-                    os.write("<changesets>\n".getBytes(StandardCharsets.UTF_8));
-                    ArgumentListBuilder args = hg.seed(false);
-                    args.add("log");
-                    args.add("--template", MercurialChangeSet.CHANGELOG_TEMPLATE);
-                    if (revisionType == RevisionType.REVSET) {
-                        args.add("--rev", "ancestors(" + revToBuild + ") and not ancestors(" + prevTag.getId() + ")");
-                    } else {
-                        args.add("--rev", "ancestors('" + revToBuild.replace("'", "\\'") + "') and not ancestors(" + prevTag.getId() + ")");
-                    }
-                    args.add("--encoding", "UTF-8");
-                    args.add("--encodingmode", "replace");
+        // calc changelog
+        try (FileOutputStream os = new FileOutputStream(changelogFile)) {
+            os.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n".getBytes(StandardCharsets.UTF_8));
+            try {
+                os.write("<changesets>\n".getBytes(StandardCharsets.UTF_8));
+                ArgumentListBuilder args = hg.seed(false);
+                args.add("log");
+                args.add("--template", MercurialChangeSet.CHANGELOG_TEMPLATE);
+                if (revisionType == RevisionType.REVSET) {
+                    args.add("--rev", "ancestors(" + revToBuild + ") and not ancestors(" + prevTag.getId() + ")");
+                } else {
+                    args.add("--rev", "ancestors('" + revToBuild.replace("'", "\\'") + "') and not ancestors(" + prevTag.getId() + ")");
+                }
+                args.add("--encoding", "UTF-8");
+                args.add("--encodingmode", "replace");
+                if (_modules != null) {
+                    // same selection as MercurialChangeLogParser makes; file lists stay complete
+                    args.add("-I", _modules.toIncludePattern());
+                }
 
-                    ByteArrayOutputStream errorLog = new ByteArrayOutputStream();
+                ByteArrayOutputStream errorLog = new ByteArrayOutputStream();
 
-                    int r = hg.launch(args).stdout(new ForkOutputStream(os, errorLog)).pwd(repository).join();
-                    if (r != 0) {
-                        Util.copyStream(new ByteArrayInputStream(errorLog.toByteArray()), listener.getLogger());
-                        throw new IOException("Failure detected while running hg log to determine change log");
-                    }
-                } finally {
-                    os.write("</changesets>".getBytes(StandardCharsets.UTF_8));
+                int r = hg.launch(args).stdout(new ForkOutputStream(os, errorLog)).pwd(repository).join();
+                if (r != 0) {
+                    Util.copyStream(new ByteArrayInputStream(errorLog.toByteArray()), listener.getLogger());
+                    throw new IOException("Failure detected while running hg log to determine change log");
                 }
+            } finally {
+                os.write("</changesets>".getBytes(StandardCharsets.UTF_8));
             }
         }
     }
 
-    private void update(Run<?, ?> build, Launcher launcher, FilePath repository, Node node, TaskListener listener, String toRevision, StandardUsernameCredentials credentials)
+    private void update(CheckoutSession session, Run<?, ?> build, FilePath repository, String toRevision)
             throws IOException, InterruptedException {
-        EnvVars env = build.getEnvironment(listener);
-        try (HgExe hg = new HgExe(findInstallation(getInstallation()), credentials, launcher, node, listener, env)) {
-            int pullExitCode;
-            try {
-                pullExitCode = pull(launcher, repository, listener, node, toRevision, credentials, env);
-            } catch (IOException e) {
-                if (causedByMissingHg(e)) {
-                    listener.error("Failed to pull because hg could not be found;" +
-                            " check that you've properly configured your Mercurial installation");
-                } else {
-                    e.printStackTrace(listener.error("Failed to pull"));
-                }
-                throw new AbortException("Failed to pull");
-            }
-            if (pullExitCode != 0) {
-                listener.error("Failed to pull");
-                throw new AbortException("Failed to pull");
+        TaskListener listener = session.listener;
+        EnvVars env = session.env;
+        if (session.inst != null && session.inst.isUpgradeFormats()) {
+            RepositoryUpgrader.noteWorkspace(session.inst, session.node, repository, listener);
+        }
+        HgExe hg = session.hg();
+        int pullExitCode;
+        try {
+            pullExitCode = pull(session, repository, toRevision);
+        } catch (IOException e) {
+            if (causedByMissingHg(e)) {
+                listener.error("Failed to pull because hg could not be found;" +
+                        " check that you've properly configured your Mercurial installation");
+            } else {
+                e.printStackTrace(listener.error("Failed to pull"));
             }
+            throw new AbortException("Failed to pull");
+        }
+        if (pullExitCode != 0) {
+            listener.error("Failed to pull");
+            throw new AbortException("Failed to pull");
+        }
 
-            int updateExitCode;
-            try {
-                updateExitCode = hg.run("update", "--clean", "--rev", toRevision).pwd(repository).join();
-            } catch (IOException e) {
-                listener.error("Failed to update");
-                e.printStackTrace(listener.getLogger());
-                throw new AbortException("Failed to update");
-            }
-            if (updateExitCode != 0) {
-                listener.error("Failed to update");
-                throw new AbortException("Failed to update");
+        boolean upToDate = false;
+        if (readRevlog(session)) {
+            WorkspaceInspector.Workspace ws = repository.act(new WorkspaceInspector(true, true, toRevision));
+            if (ws.isCleanAt()) {
+                listener.getLogger().println("Working copy is already at " + ws.targetNode + " with no local modifications; not updating");
+                upToDate = true;
             }
-            if (build.getNumber() % 100 == 0) {
-                CachedRepo cachedSource = cachedSource(node, env, launcher, listener, true, credentials);
-                if (cachedSource != null && !cachedSource.isUseSharing()) {
-                    // Periodically recreate hardlinks to the cache to save disk space.
-                    hg.run("--config", "extensions.relink=", "relink", cachedSource.getRepoLocation()).pwd(repository).join(); // ignore failures
-                }
+        }
+        int updateExitCode;
+        try {
+            updateExitCode = upToDate ? 0 : hg.run("update", "--clean", "--rev", toRevision).pwd(repository).join();
+        } catch (IOException e) {
+            listener.error("Failed to update");
+            e.printStackTrace(listener.getLogger());
+            throw new AbortException("Failed to update");
+        }
+        if (updateExitCode != 0) {
+            listener.error("Failed to update");
+            throw new AbortException("Failed to update");
+        }
+        if (build.getNumber() % 100 == 0) {
+            CachedRepo cachedSource = cachedSource(session, true, true);
+            if (cachedSource != null && !cachedSource.isUseSharing()) {
+                // Periodically recreate hardlinks to the cache to save disk space.
+                relink(hg, repository, cachedSource);
             }
+        }
 
-            if (clean) {
-                if (hg.cleanAll().pwd(repository).join() != 0) {
-                    listener.error("Failed to clean unversioned files");
-                    throw new AbortException("Failed to clean unversioned files");
-                }
+        if (clean) {
+            if (hg.cleanAll().pwd(repository).join() != 0) {
+                listener.error("Failed to clean unversioned files");
+                throw new AbortException("Failed to clean unversioned files");
             }
+        }
 
-            String tip = hg.tip(repository, null);
-            String rev = hg.tipNumber(repository, null);
-            String branch = revisionType != RevisionType.BRANCH ? hg.branch(repository, null) : null;
-            if (tip != null && rev != null) {
-                build.addAction(new MercurialTagAction(tip, rev, getSubdir(env), branch));
-            }
+        MercurialTagAction tag = parentTagAction(session, repository);
+        if (tag != null) {
+            build.addAction(tag);
         }
     }
 
@@ -790,8 +1027,9 @@ public class MercurialSCM extends SCM implements Serializable {
     /**
      * Start from scratch and clone the whole repository.
      */
-    private void clone(Run<?, ?> build, Launcher launcher, FilePath repository, Node node, TaskListener listener, String toRevision, StandardUsernameCredentials credentials)
+    private void clone(CheckoutSession session, Run<?, ?> build, FilePath repository, String toRevision)
             throws InterruptedException, IOException {
+        TaskListener listener = session.listener;
         try {
             repository.deleteRecursive();
         } catch (IOException e) {
@@ -799,80 +1037,77 @@ public class MercurialSCM extends SCM implements Serializable {
             throw new AbortException("Failed to clean the repository checkout");
         }
 
-        EnvVars env = build.getEnvironment(listener);
-        try (HgExe hg = new HgExe(findInstallation(getInstallation()), credentials, launcher, node, listener, env)) {
-            ArgumentListBuilder args = hg.seed(true);
-            CachedRepo cachedSource = cachedSource(node, env, launcher, listener, false, credentials);
-            if (cachedSource != null) {
-                if (cachedSource.isUseSharing()) {
-                    args.add("--config", "extensions.share=");
-                    args.add("share");
-                    args.add("--noupdate");
-                    args.add(cachedSource.getRepoLocation());
-                    if (new VersionNumber(hg.version()).compareTo(new VersionNumber("3.3")) >= 0) {
-                        args.add("-B");
-                    }
-                } else {
-                    args.add("clone");
-                    args.add("--noupdate");
-                    args.add(cachedSource.getRepoLocation());
+        EnvVars env = session.env;
+        HgExe hg = session.hg();
+        ArgumentListBuilder args = hg.seed(true);
+        CachedRepo cachedSource = cachedSource(session, false, true);
+        if (cachedSource != null) {
+            if (cachedSource.isUseSharing()) {
+                args.add("--config", "extensions.share=");
+                args.add("share");
+                args.add("--noupdate");
+                args.add(cachedSource.getRepoLocation());
+                CapabilityProbe.Capabilities caps = hg.capabilities();
+                if (caps.getVersion() != null ? caps.atLeast("3.3") : new VersionNumber(hg.version()).compareTo(new VersionNumber("3.3")) >= 0) {
+                    args.add("-B");
                 }
             } else {
                 args.add("clone");
-                if (revisionType == RevisionType.BRANCH || revisionType == RevisionType.CHANGESET) {
-                    args.add("--rev", toRevision);
-                }
                 args.add("--noupdate");
-                args.add(getSource(env));
+                args.add(cachedSource.getRepoLocation());
             }
-            args.add(repository.getRemote());
-            repository.mkdirs();
-            int cloneExitCode;
-            try {
-                cloneExitCode = hg.launch(args).join();
-            } catch (IOException e) {
-                if (causedByMissingHg(e)) {
-                    listener.error("Failed to clone " + getSource(env) + " because hg could not be found;" +
-                            " check that you've properly configured your Mercurial installation");
-                } else {
-                    e.printStackTrace(listener.error(Messages.MercurialSCM_failed_to_clone(getSource(env))));
-                }
-                throw new AbortException(Messages.MercurialSCM_failed_to_clone(getSource(env)));
+        } else {
+            args.add("clone");
+            if (revisionType == RevisionType.BRANCH || revisionType == RevisionType.CHANGESET) {
+                args.add("--rev", toRevision);
             }
-            if (cloneExitCode != 0) {
-                listener.error(Messages.MercurialSCM_failed_to_clone(getSource(env)));
-                throw new AbortException(Messages.MercurialSCM_failed_to_clone(getSource(env)));
+            args.add("--noupdate");
+            args.add(getSource(env));
+        }
+        args.add(repository.getRemote());
+        repository.mkdirs();
+        int cloneExitCode;
+        try {
+            cloneExitCode = hg.launch(args).join();
+        } catch (IOException e) {
+            if (causedByMissingHg(e)) {
+                listener.error("Failed to clone " + getSource(env) + " because hg could not be found;" +
+                        " check that you've properly configured your Mercurial installation");
+            } else {
+                e.printStackTrace(listener.error(Messages.MercurialSCM_failed_to_clone(getSource(env))));
             }
+            throw new AbortException(Messages.MercurialSCM_failed_to_clone(getSource(env)));
+        }
+        if (cloneExitCode != 0) {
+            listener.error(Messages.MercurialSCM_failed_to_clone(getSource(env)));
+            throw new AbortException(Messages.MercurialSCM_failed_to_clone(getSource(env)));
+        }
 
-            if (cachedSource != null && !cachedSource.isUseSharing()) {
-                FilePath hgrc = repository.child(".hg/hgrc");
-                if (hgrc.exists()) {
-                    try (InputStream is = hgrc.read()) {
-                        Ini hgrcIni = new Ini(is);
-                        hgrcIni.put("paths", "default", getSource(env));
-                        try (OutputStream os = hgrc.write()) {
-                            hgrcIni.store(os);
-                        }
+        if (cachedSource != null && !cachedSource.isUseSharing()) {
+            FilePath hgrc = repository.child(".hg/hgrc");
+            if (hgrc.exists()) {
+                try (InputStream is = hgrc.read()) {
+                    Ini hgrcIni = new Ini(is);
+                    hgrcIni.put("paths", "default", getSource(env));
+                    try (OutputStream os = hgrc.write()) {
+                        hgrcIni.store(os);
                     }
                 }
-                // Passing --rev disables hardlinks, so we need to recreate them:
-                hg.run("--config", "extensions.relink=", "relink", cachedSource.getRepoLocation())
-                        .pwd(repository).join(); // ignore failures
             }
+            // Passing --rev disables hardlinks, so we need to recreate them:
+            relink(hg, repository, cachedSource);
+        }
 
-            ArgumentListBuilder upArgs = hg.seed(true);
-            upArgs.add("update");
-            upArgs.add("--rev", toRevision);
-            if (hg.launch(upArgs).pwd(repository).join() != 0) {
-                throw new AbortException("Failed to update " + getSource(env) + " to rev " + toRevision);
-            }
+        ArgumentListBuilder upArgs = hg.seed(true);
+        upArgs.add("update");
+        upArgs.add("--rev", toRevision);
+        if (hg.launch(upArgs).pwd(repository).join() != 0) {
+            throw new AbortException("Failed to update " + getSource(env) + " to rev " + toRevision);
+        }
 
-            String tip = hg.tip(repository, null);
-            String rev = hg.tipNumber(repository, null);
-            String branch = revisionType != RevisionType.BRANCH ? hg.branch(repository, null) : null;
-            if (tip != null && rev != null) {
-                build.addAction(new MercurialTagAction(tip, rev, getSubdir(env), branch));
-            }
+        MercurialTagAction tag = parentTagAction(session, repository);
+        if (tag != null) {
+            build.addAction(tag);
         }
     }
 
@@ -910,7 +1145,7 @@ public class MercurialSCM extends SCM implements Serializable {
 
     @Override
     public ChangeLogParser createChangeLogParser() {
-        return new MercurialChangeLogParser(_modules);
+        return MercurialChangeLogParser.forModules(_modules);
     }
 
     @Override public FilePath getModuleRoot(FilePath workspace, AbstractBuild build) {
@@ -949,14 +1184,31 @@ public class MercurialSCM extends SCM implements Serializable {
         return message != null && message.startsWith("Cannot run program") && message.endsWith("No such file or directory");
     }
 
-    private @CheckForNull CachedRepo cachedSource(Node node, EnvVars env, Launcher launcher, TaskListener listener, boolean useTimeout, StandardUsernameCredentials credentials) 
+    /**
+     * Recreates hardlinks to the cache, unless this installation is known to lack the {@code relink} extension
+     * (removed from Mercurial 6.0).
+     */
+    private static void relink(HgExe hg, FilePath repository, CachedRepo cachedSource) throws IOException, InterruptedException {
+        CapabilityProbe.Capabilities caps = hg.capabilities();
+        if (caps.getVersion() != null && !caps.hasExtension("relink")) {
+            return;
+        }
+        hg.run("--config", "extensions.relink=", "relink", cachedSource.getRepoLocation()).pwd(repository).join(); // ignore failures
+    }
+
+    /**
+     * @param mayFallBack true if the caller can work against the remote directly, as when cloning or pulling
+     */
+    private @CheckForNull CachedRepo cachedSource(CheckoutSession session, boolean useTimeout, boolean mayFallBack)
             throws InterruptedException {
-        MercurialInstallation inst = findInstallation(installation);
+        MercurialInstallation inst = session.inst;
         if (inst == null || !inst.isUseCaches()) {
             return null;
         }
+        EnvVars env = session.env;
+        TaskListener listener = session.listener;
         try {
-            FilePath cache = Cache.fromURL(getSource(env), credentials, inst.getMasterCacheRoot()).repositoryCache(inst, node, launcher, listener, useTimeout);
+            FilePath cache = Cache.fromURL(getSource(env), session.credentials, inst.getMasterCacheRoot()).repositoryCache(inst, session.node, session.launcher, listener, useTimeout, mayFallBack);
             if (cache != null) {
                 return new CachedRepo(cache.getRemote(), inst.isUseSharing());
             } else {
@@ -32,7 +32,10 @@ import java.io.IOException;
 import java.io.ObjectStreamException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
@@ -59,6 +62,7 @@ import jenkins.scm.impl.form.NamedArrayList;
 import jenkins.scm.impl.trait.Discovery;
 import jenkins.scm.impl.trait.RegexSCMHeadFilterTrait;
 import jenkins.scm.impl.trait.Selection;
+import jenkins.util.SystemProperties;
 import org.apache.commons.lang3.StringUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
@@ -205,52 +209,92 @@ public final class MercurialSCMSource extends SCMSource {
             final Node node = Jenkins.getInstance();
             Launcher launcher = node.createLauncher(listener);
             StandardUsernameCredentials credentials = getCredentials(request.credentialsId(), getOwner());
-            final FilePath cache = Cache.fromURL(request.source(), credentials, inst.getMasterCacheRoot())
-                    .repositoryCache(inst, node, launcher, listener, true);
+            Cache c = Cache.fromURL(request.source(), credentials, inst.getMasterCacheRoot());
+            FilePath current = null;
+            WireProtocolClient remote = WireProtocolClient.forSource(request.source(), credentials);
+            if (remote != null) {
+                try {
+                    List<String> remoteHeads = new ArrayList<String>();
+                    for (List<String> branchHeads : remote.branchmap().values()) {
+                        remoteHeads.addAll(branchHeads);
+                    }
+                    current = c.currentMasterCache(inst, launcher, listener, remoteHeads);
+                    if (current != null) {
+                        listener.getLogger().println("Cache already has all " + remoteHeads.size() + " branch heads of " + remote + ", not pulling");
+                    }
+                } catch (IOException x) {
+                    listener.getLogger().println("Could not list branch heads of " + remote + " directly, pulling instead: " + x);
+                }
+            }
+            final FilePath cache = current != null ? current : c.repositoryCache(inst, node, launcher, listener, true);
             if (cache == null) {
                 throw new AbortException("Could not use caches, not fetching branch heads");
             }
             try (HgExe hg = new HgExe(inst, credentials, launcher, node, listener, new EnvVars())) {
-                String heads = hg.popen(cache, listener, true,
-                        new ArgumentListBuilder("heads", "--template", "{node} {branch}\\n"));
+                final List<String[]> heads = new ArrayList<String[]>();
+                hg.branchHeads(cache, true, new HgExe.LineHandler() {
+                    @Override public boolean line(String line) {
+                        if (!line.isEmpty()) {
+                            heads.add(line.split(" ", 2));
+                        }
+                        return true;
+                    }
+                });
+                // knowing the heads up front lets probes for the next few branches run in parallel;
+                // those which filters would exclude are never probed, so are not prefetched
+                List<String> hashes = new ArrayList<String>();
+                for (String[] nodeBranch : heads) {
+                    if (!request.isExcluded(new SCMHead(nodeBranch[1]))) {
+                        hashes.add(nodeBranch[0]);
+                    }
+                }
+                final ProbePrefetch prefetch = new ProbePrefetch(hg, cache, hashes);
                 int count = 0;
-                for (String line : heads.split("\r?\n")) {
-                    final String[] nodeBranch = line.split(" ", 2);
-                    final String name = nodeBranch[1];
-                    count++;
-                    if (request.process(new SCMHead(name),
-                            new SCMSourceRequest.RevisionLambda<SCMHead, MercurialRevision>() {
-                                @Override
-                                public @NonNull
-                                MercurialRevision create(@NonNull SCMHead branch) {
-                                    return new MercurialRevision(branch, nodeBranch[0]);
-                                }
-                            }, new SCMSourceRequest.ProbeLambda<SCMHead, MercurialRevision>() {
-                                @Override
-                                public @NonNull
-                                SCMSourceCriteria.Probe create(@NonNull SCMHead branch, @Nullable final MercurialRevision revision) {
-                                    return new SCMProbeImpl(hg, cache, listener, revision, name);
-                                }
-                            }, new SCMSourceRequest.Witness() {
-                                @Override
-                                public void record(@NonNull SCMHead branch, SCMRevision revision, boolean isMatch) {
-                                    if (revision == null) {
-                                        listener.getLogger().println("Ignored branch " + branch.getName());
-                                    } else {
-                                        listener.getLogger().println("Found branch " + branch.getName());
-                                        if (isMatch) {
-                                            listener.getLogger().println("  Met criteria");
+                boolean complete = true;
+                try {
+                    for (final String[] nodeBranch : heads) {
+                        final String name = nodeBranch[1];
+                        count++;
+                        if (request.process(new SCMHead(name),
+                                new SCMSourceRequest.RevisionLambda<SCMHead, MercurialRevision>() {
+                                    @Override
+                                    public @NonNull
+                                    MercurialRevision create(@NonNull SCMHead branch) {
+                                        return new MercurialRevision(branch, nodeBranch[0]);
+                                    }
+                                }, new SCMSourceRequest.ProbeLambda<SCMHead, MercurialRevision>() {
+                                    @Override
+                                    public @NonNull
+                                    SCMSourceCriteria.Probe create(@NonNull SCMHead branch, @Nullable final MercurialRevision revision) {
+                                        return new SCMProbeImpl(hg, cache, listener, revision, name, prefetch);
+                                    }
+                                }, new SCMSourceRequest.Witness() {
+                                    @Override
+                                    public void record(@NonNull SCMHead branch, SCMRevision revision, boolean isMatch) {
+                                        if (revision == null) {
+                                            listener.getLogger().println("Ignored branch " + branch.getName());
                                         } else {
-                                            listener.getLogger().println("  Does not meet criteria");
+                                            listener.getLogger().println("Found branch " + branch.getName());
+                                            if (isMatch) {
+                                                listener.getLogger().println("  Met criteria");
+                                            } else {
+                                                listener.getLogger().println("  Does not meet criteria");
+                                            }
                                         }
                                     }
-                                }
-                            })) {
-                        listener.getLogger().format("Processed %d branches (query complete)%n", count);
-                        return;
+                                })) {
+                            complete = false;
+                            break;
+                        }
                     }
+                } finally {
+                    prefetch.cancel();
+                }
+                if (complete) {
+                    listener.getLogger().format("Processed %d branches%n", count);
+                } else {
+                    listener.getLogger().format("Processed %d branches (query complete)%n", count);
                 }
-                listener.getLogger().format("Processed %d branches%n", count);
             }
         }
     }
@@ -273,16 +317,42 @@ public final class MercurialSCMSource extends SCMSource {
             final Node node = Jenkins.getInstance();
             Launcher launcher = node.createLauncher(listener);
             StandardUsernameCredentials credentials = getCredentials(request.credentialsId(), context);
-            final FilePath cache = Cache.fromURL(source, credentials, inst.getMasterCacheRoot())
-                    .repositoryCache(inst, node, launcher, listener, true);
+            Cache c = Cache.fromURL(source, credentials, inst.getMasterCacheRoot());
+            FilePath cache = null;
+            String rev = "present(" + thingName + ")";
+            WireProtocolClient remote = WireProtocolClient.forSource(source, credentials);
+            if (remote != null) {
+                try {
+                    String id = remote.lookup(thingName); // null for a revset, which only the cache can evaluate
+                    if (id != null) {
+                        cache = c.currentMasterCache(inst, launcher, listener, Collections.singleton(id));
+                        if (cache != null) {
+                            listener.getLogger().println("Cache already has " + thingName + " of " + remote + ", not pulling");
+                            rev = id;
+                        }
+                    }
+                } catch (IOException x) {
+                    listener.getLogger().println("Could not look up " + thingName + " in " + remote + " directly, pulling instead: " + x);
+                }
+            }
+            if (cache == null) {
+                cache = c.repositoryCache(inst, node, launcher, listener, true);
+            }
             if (cache == null) {
                 throw new AbortException("Could not use caches, not fetching revision");
             }
             try (HgExe hg = new HgExe(inst, credentials, launcher, node, listener, new EnvVars())) {
-                String revision = hg.popen(cache, listener, true,
-                        new ArgumentListBuilder("log", "-r", "present(" + thingName + ")", "--template",
-                                "{node} {branch}"));
-                if (revision.isEmpty()) {
+                final String[] first = new String[1];
+                hg.popen(cache, listener, true,
+                        new ArgumentListBuilder("log", "-r", rev, "--template",
+                                "{node} {branch}\\n"), new HgExe.LineHandler() {
+                    @Override public boolean line(String line) {
+                        first[0] = line;
+                        return false;
+                    }
+                });
+                String revision = first[0];
+                if (revision == null || revision.isEmpty()) {
                     return null;
                 }
                 String hash = revision.substring(0, revision.indexOf(' '));
@@ -325,7 +395,7 @@ public final class MercurialSCMSource extends SCMSource {
         return Collections.emptyList();
     }
 
-    private static @NonNull List<? extends StandardUsernameCredentials> availableCredentials(
+    static @NonNull List<? extends StandardUsernameCredentials> availableCredentials(
             @CheckForNull Item context, @CheckForNull String source) {
         return CredentialsProvider.lookupCredentials(StandardUsernameCredentials.class, context, null, URIRequirementBuilder.fromUri(source).build());
     }
@@ -409,6 +479,53 @@ public final class MercurialSCMSource extends SCMSource {
         }
     }
 
+    /**
+     * Checks whether a path exists in each of a set of branch heads, in parallel.
+     * Branch source criteria usually probe the same path (such as {@code Jenkinsfile}) in every branch,
+     * so each probe of a path also starts probes of it in the next {@link #PREFETCH} heads,
+     * which keeps a bounded number running however many branches there are.
+     */
+    private static final class ProbePrefetch {
+        static /* not final */ int PREFETCH = SystemProperties.getInteger(MercurialSCMSource.class.getName() + ".probePrefetch", 8);
+
+        private final HgExe hg;
+        private final FilePath cache;
+        private final List<String> hashes;
+        private final Map<String, CompletableFuture<Boolean>> results = new HashMap<String, CompletableFuture<Boolean>>();
+
+        ProbePrefetch(HgExe hg, FilePath cache, List<String> hashes) {
+            this.hg = hg;
+            this.cache = cache;
+            this.hashes = hashes;
+        }
+
+        boolean exists(String hash, final String path) throws IOException, InterruptedException {
+            CompletableFuture<Boolean> result;
+            synchronized (this) {
+                int index = hashes.indexOf(hash);
+                for (int i = index; i != -1 && i < Math.min(hashes.size(), index + Math.max(1, PREFETCH)); i++) {
+                    final String h = hashes.get(i);
+                    String key = h + '\0' + path;
+                    if (!results.containsKey(key)) {
+                        results.put(key, hg.async(new HgExe.Call<Boolean>() {
+                            @Override public Boolean call() throws IOException, InterruptedException {
+                                return hg.exists(cache, h, path);
+                            }
+                        }));
+                    }
+                }
+                result = results.get(hash + '\0' + path);
+            }
+            return result != null ? HgExe.await(result) : hg.exists(cache, hash, path); // null if not one of the listed heads
+        }
+
+        synchronized void cancel() {
+            for (CompletableFuture<Boolean> result : results.values()) {
+                result.cancel(true);
+            }
+        }
+    }
+
     private static class SCMProbeImpl extends SCMProbe {
         private static final long serialVersionUID = 1L;
         private final transient HgExe hg;
@@ -416,22 +533,29 @@ public final class MercurialSCMSource extends SCMSource {
         private final TaskListener listener;
         private final MercurialRevision revision;
         private final String name;
+        private final transient ProbePrefetch prefetch;
 
         public SCMProbeImpl(HgExe hg, FilePath cache, TaskListener listener, MercurialRevision revision,
                             String name) {
+            this(hg, cache, listener, revision, name, null);
+        }
+
+        SCMProbeImpl(HgExe hg, FilePath cache, TaskListener listener, MercurialRevision revision,
+                     String name, @CheckForNull ProbePrefetch prefetch) {
             this.hg = hg;
             this.cache = cache;
             this.listener = listener;
             this.revision = revision;
             this.name = name;
+            this.prefetch = prefetch;
         }
 
         @Override
         public @NonNull
         SCMProbeStat stat(@NonNull String path) throws IOException {
             try {
-                return SCMProbeStat.fromType(hg.run("locate", "-r", revision.getHash(), "-I", "path:" + path).
-                    pwd(cache).join() == 0 ? SCMFile.Type.REGULAR_FILE : SCMFile.Type.NONEXISTENT);
+                boolean exists = prefetch != null ? prefetch.exists(revision.getHash(), path) : hg.exists(cache, revision.getHash(), path);
+                return SCMProbeStat.fromType(exists ? SCMFile.Type.REGULAR_FILE : SCMFile.Type.NONEXISTENT);
             } catch (InterruptedException e) {
                 throw new IOException(e);
             }
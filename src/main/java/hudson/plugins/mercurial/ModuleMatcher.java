@@ -0,0 +1,138 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Decides whether a file lies within any of the {@link MercurialSCM#getModules modules} of a job.
+ * The prefixes are compiled once into an immutable trie, so a path is checked in time proportional to its length,
+ * however many modules there are.
+ * As before, a module is a plain string prefix: {@code src} also covers {@code src2/x}.
+ * Backslashes in paths are taken as slashes.
+ */
+final class ModuleMatcher {
+
+    private static final Node[] NO_CHILDREN = {};
+    /** Characters with a meaning in Python regular expressions, as used by {@code hg}. */
+    private static final String REGEX_SPECIAL = "\\.^$|?*+()[]{}";
+    /** Reached the end of some prefix; nothing below matters. */
+    private static final Node MATCH = new Node(new char[0], NO_CHILDREN, true);
+
+    private final List<String> prefixes;
+    private final Node root;
+
+    private ModuleMatcher(List<String> prefixes, Node root) {
+        this.prefixes = prefixes;
+        this.root = root;
+    }
+
+    /**
+     * @param prefixes module paths relative to the repository root, using {@code /}
+     */
+    static @NonNull ModuleMatcher compile(@NonNull Collection<String> prefixes) {
+        List<String> sorted = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(prefixes)));
+        return new ModuleMatcher(sorted, sorted.isEmpty() ? new Node(new char[0], NO_CHILDREN, false) : build(sorted, 0, sorted.size(), 0));
+    }
+
+    /**
+     * Builds the node for a range of sorted prefixes which agree on their first {@code depth} characters.
+     */
+    private static Node build(List<String> sorted, int from, int to, int depth) {
+        if (sorted.get(from).length() == depth) {
+            return MATCH; // the shortest sorts first; longer prefixes sharing it are redundant
+        }
+        List<Character> keys = new ArrayList<Character>();
+        List<Node> children = new ArrayList<Node>();
+        int start = from;
+        while (start < to) {
+            char c = sorted.get(start).charAt(depth);
+            int end = start + 1;
+            while (end < to && sorted.get(end).charAt(depth) == c) {
+                end++;
+            }
+            keys.add(c);
+            children.add(build(sorted, start, end, depth + 1));
+            start = end;
+        }
+        char[] k = new char[keys.size()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = keys.get(i);
+        }
+        return new Node(k, children.toArray(NO_CHILDREN), false);
+    }
+
+    /**
+     * @param path a file path relative to the repository root
+     * @return true if it starts with any of the prefixes
+     */
+    boolean matches(@NonNull String path) {
+        Node node = root;
+        for (int i = 0; i < path.length(); i++) {
+            if (node.match) {
+                return true;
+            }
+            char c = path.charAt(i);
+            int idx = Arrays.binarySearch(node.keys, c == '\\' ? '/' : c);
+            if (idx < 0) {
+                return false;
+            }
+            node = node.children[idx];
+        }
+        return node.match;
+    }
+
+    /**
+     * @return the distinct prefixes, sorted
+     */
+    @NonNull List<String> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * Expresses the prefixes as a single Mercurial file pattern, for {@code -I}, so that {@code hg} filters files itself.
+     * Unlike {@code path:}, which matches whole path components, a {@code re:} pattern matches any path it is a prefix of,
+     * so this selects exactly what {@link #matches} does.
+     * @return for example {@code re:(?:doc|src/main)}; matches nothing if there are no prefixes
+     */
+    @NonNull String toIncludePattern() {
+        StringBuilder b = new StringBuilder("re:(?:");
+        for (int i = 0; i < prefixes.size(); i++) {
+            if (i > 0) {
+                b.append('|');
+            }
+            for (char c : prefixes.get(i).toCharArray()) {
+                if (REGEX_SPECIAL.indexOf(c) != -1) {
+                    b.append('\\');
+                }
+                b.append(c);
+            }
+        }
+        if (prefixes.isEmpty()) {
+            b.append("(?!)");
+        }
+        return b.append(')').toString();
+    }
+
+    @Override public String toString() {
+        return prefixes.toString();
+    }
+
+    private static final class Node {
+        /** Sorted, so children can be found by binary search. */
+        final char[] keys;
+        final Node[] children;
+        final boolean match;
+
+        Node(char[] keys, Node[] children, boolean match) {
+            this.keys = keys;
+            this.children = children;
+            this.match = match;
+        }
+    }
+
+}
@@ -0,0 +1,218 @@
+package hudson.plugins.mercurial;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Node;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.security.MasterToSlaveCallable;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Structured Mercurial settings affecting speed, applied by {@link HgExe} ahead of the free-form
+ * {@link MercurialInstallation#getConfig}, which therefore still wins where both set something.
+ * @see MercurialInstallation#getPerformanceProfile
+ * @see PerformanceProfileNodeProperty
+ */
+public class PerformanceProfile extends AbstractDescribableImpl<PerformanceProfile> {
+
+    /**
+     * Connection sharing for {@code ssh}.
+     * {@code %C} is a hash of the host, port and user but not the identity file,
+     * so the key is identified separately lest jobs with different keys share a connection authenticated by one of them.
+     * @param keyFingerprint from {@link SshKeyCache#fingerprint(SSHUserPrivateKey)}, if a key is passed with {@code -i}
+     */
+    static @NonNull String sshMultiplexing(@CheckForNull String keyFingerprint) {
+        // abbreviated since Unix domain socket paths are limited to about 100 characters
+        String key = keyFingerprint != null ? keyFingerprint.substring(0, Math.min(keyFingerprint.length(), 16)) + '-' : "";
+        return "ssh -o ControlMaster=auto -o ControlPath=~/.ssh/jenkins-hg-" + key + "%C -o ControlPersist=60";
+    }
+
+    private boolean parallelUpdate = true;
+    private int workers;
+    private boolean modernFormats;
+    private boolean sshMultiplexing;
+    private boolean isolateConfig;
+
+    @DataBoundConstructor public PerformanceProfile() {}
+
+    /**
+     * Whether {@code hg update} may write files with several worker processes.
+     */
+    public boolean isParallelUpdate() {
+        return parallelUpdate;
+    }
+
+    @DataBoundSetter public void setParallelUpdate(boolean parallelUpdate) {
+        this.parallelUpdate = parallelUpdate;
+    }
+
+    /**
+     * Number of worker processes for {@link #isParallelUpdate}.
+     * @return a positive number, or 0 to divide the cores of the node among its executors
+     */
+    public int getWorkers() {
+        return workers;
+    }
+
+    @DataBoundSetter public void setWorkers(int workers) {
+        this.workers = Math.max(0, workers);
+    }
+
+    /**
+     * Whether new clones and shares should use newer repository formats, whatever the Mercurial defaults.
+     */
+    public boolean isModernFormats() {
+        return modernFormats;
+    }
+
+    @DataBoundSetter public void setModernFormats(boolean modernFormats) {
+        this.modernFormats = modernFormats;
+    }
+
+    /**
+     * Whether {@code ssh} connections to the same server should share one TCP connection and handshake.
+     */
+    public boolean isSshMultiplexing() {
+        return sshMultiplexing;
+    }
+
+    @DataBoundSetter public void setSshMultiplexing(boolean sshMultiplexing) {
+        this.sshMultiplexing = sshMultiplexing;
+    }
+
+    /**
+     * Whether to skip system and user configuration files, and any extensions they load.
+     */
+    public boolean isIsolateConfig() {
+        return isolateConfig;
+    }
+
+    @DataBoundSetter public void setIsolateConfig(boolean isolateConfig) {
+        this.isolateConfig = isolateConfig;
+    }
+
+    /**
+     * Computes settings for a node.
+     * @param node where Mercurial will run
+     * @param config other {@code --config} arguments, which are left to take precedence
+     * @param keyFingerprint identifies the SSH private key credentials in use, if any
+     * @return alternating {@code --config} and {@code section.key=value}
+     */
+    @NonNull List<String> configArguments(@NonNull Node node, @NonNull List<String> config, @CheckForNull String keyFingerprint) throws InterruptedException {
+        List<String> args = new ArrayList<String>();
+        if (parallelUpdate) {
+            add(args, "worker.enabled=true");
+            add(args, "worker.numcpus=" + (workers > 0 ? workers : autoWorkers(node)));
+        } else {
+            add(args, "worker.enabled=false");
+        }
+        if (modernFormats) {
+            add(args, "format.generaldelta=true");
+            add(args, "format.sparse-revlog=true");
+            add(args, "format.use-share-safe=true");
+        }
+        if (sshMultiplexing && !definesSsh(config) && !Boolean.FALSE.equals(isUnix(node))) {
+            add(args, "ui.ssh=" + sshMultiplexing(keyFingerprint));
+        }
+        return args;
+    }
+
+    /**
+     * A value for {@code HGRCPATH} if {@link #isIsolateConfig}: the null device, read as an empty file.
+     * (An empty value would be equivalent, but empty variables are dropped when processes are launched.)
+     */
+    @CheckForNull String hgrcPath(@NonNull Node node) {
+        if (!isolateConfig) {
+            return null;
+        }
+        return Boolean.FALSE.equals(isUnix(node)) ? "NUL" : "/dev/null";
+    }
+
+    private static void add(List<String> args, String setting) {
+        args.add("--config");
+        args.add(setting);
+    }
+
+    private static boolean definesSsh(List<String> config) {
+        for (String arg : config) {
+            if (arg.startsWith("ui.ssh=")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static @CheckForNull Boolean isUnix(Node node) {
+        Computer c = node.toComputer();
+        return c != null ? c.isUnix() : null;
+    }
+
+    /** Processor counts by node, fetched once per connection. */
+    private static final Map<VirtualChannel, Integer> CORES = new WeakHashMap<VirtualChannel, Integer>();
+
+    /**
+     * Divides the processors of a node among its executors, so concurrent checkouts do not oversubscribe it.
+     */
+    static int autoWorkers(@NonNull Node node) throws InterruptedException {
+        return autoWorkers(cores(node), node.getNumExecutors());
+    }
+
+    static int autoWorkers(int cores, int executors) {
+        return Math.max(1, cores / Math.max(1, executors));
+    }
+
+    private static int cores(Node node) throws InterruptedException {
+        VirtualChannel channel = node.getChannel();
+        if (channel == null) {
+            return 1;
+        }
+        synchronized (CORES) {
+            Integer cores = CORES.get(channel);
+            if (cores != null) {
+                return cores;
+            }
+        }
+        int cores;
+        try {
+            cores = channel.call(new CountProcessors());
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not count processors on " + node.getNodeName(), x);
+            return 1;
+        }
+        synchronized (CORES) {
+            CORES.put(channel, cores);
+        }
+        return cores;
+    }
+
+    private static final class CountProcessors extends MasterToSlaveCallable<Integer, RuntimeException> {
+        private static final long serialVersionUID = 1;
+        @Override public Integer call() {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    @Extension public static class DescriptorImpl extends Descriptor<PerformanceProfile> {
+
+        @Override public String getDisplayName() {
+            return Messages.PerformanceProfile_displayName();
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(PerformanceProfile.class.getName());
+
+}
@@ -0,0 +1,47 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Node;
+import hudson.slaves.NodeProperty;
+import hudson.slaves.NodePropertyDescriptor;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Replaces the {@link PerformanceProfile} of every {@link MercurialInstallation} on one node,
+ * for example to use fewer workers on a small agent or to turn off connection sharing where it is not available.
+ */
+public class PerformanceProfileNodeProperty extends NodeProperty<Node> {
+
+    private final PerformanceProfile profile;
+
+    @DataBoundConstructor public PerformanceProfileNodeProperty(PerformanceProfile profile) {
+        this.profile = profile;
+    }
+
+    public PerformanceProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Finds the profile in effect.
+     * @return the node override if any, else that of the installation, else null
+     */
+    static @CheckForNull PerformanceProfile effective(@NonNull Node node, @CheckForNull MercurialInstallation inst) {
+        PerformanceProfileNodeProperty property = node.getNodeProperty(PerformanceProfileNodeProperty.class);
+        if (property != null && property.profile != null) {
+            return property.profile;
+        }
+        return inst != null ? inst.getPerformanceProfile() : null;
+    }
+
+    @Extension public static class DescriptorImpl extends NodePropertyDescriptor {
+
+        @Override public String getDisplayName() {
+            return Messages.PerformanceProfileNodeProperty_displayName();
+        }
+
+    }
+
+}
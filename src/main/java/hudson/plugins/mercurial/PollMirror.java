@@ -0,0 +1,100 @@
+package hudson.plugins.mercurial;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import jenkins.model.Jenkins;
+
+/**
+ * A repository on the controller used only to poll for changes, for installations which do not use caches,
+ * so that polling needs neither an agent nor a workspace.
+ * It has no working copy and pulls only the revisions polled for, so it stays much smaller than a {@link Cache};
+ * nothing is ever cloned or updated from it.
+ * {@link CacheCollector} deletes mirrors no longer polled from.
+ * @see MercurialInstallation#isUsePollMirror
+ */
+final class PollMirror {
+
+    private static final Map<String, ReentrantLock> LOCKS = new HashMap<String, ReentrantLock>();
+
+    private PollMirror() {}
+
+    private static synchronized @NonNull ReentrantLock lockFor(String hash) {
+        ReentrantLock lock = LOCKS.get(hash);
+        if (lock == null) {
+            LOCKS.put(hash, lock = new ReentrantLock(true));
+        }
+        return lock;
+    }
+
+    /**
+     * @return the directory holding all mirrors, which may not yet exist
+     */
+    static @NonNull FilePath root() throws IOException {
+        FilePath rootPath = Jenkins.get().getRootPath();
+        if (rootPath == null) {
+            throw new IOException("Cannot retrieve the root directory of the Jenkins controller node");
+        }
+        return rootPath.child("hgpollmirror");
+    }
+
+    /**
+     * Gets the lock guarding a mirror if nobody holds it, for {@link CacheCollector}.
+     * @param hash the name of the mirror directory
+     * @return the lock, now held by the caller, or null if it is in use
+     */
+    static @CheckForNull ReentrantLock tryLock(@NonNull String hash) {
+        ReentrantLock lock = lockFor(hash);
+        return lock.tryLock() ? lock : null;
+    }
+
+    /**
+     * Creates the mirror of a repository if necessary and pulls into it.
+     * The baseline is not pulled specially: it may no longer exist remotely, which would fail the whole pull,
+     * and a mirror lacking it is handled when listing changes.
+     * @param hg runs on the controller
+     * @param revisions what to pull, along with its ancestors; all heads if empty
+     * @return the mirror
+     */
+    static @NonNull FilePath update(@NonNull HgExe hg, @NonNull String source, @CheckForNull StandardUsernameCredentials credentials,
+            @NonNull List<String> revisions, @NonNull TaskListener listener) throws IOException, InterruptedException {
+        String hash = Cache.hashSource(source, credentials, null);
+        FilePath mirror = root().child(hash);
+        ReentrantLock lock = lockFor(hash);
+        if (lock.isLocked()) {
+            listener.getLogger().println("Waiting for lock on hgpollmirror/" + hash + "...");
+        }
+        lock.lockInterruptibly();
+        try {
+            if (!mirror.child(".hg").isDirectory()) {
+                mirror.deleteRecursive();
+                mirror.mkdirs();
+                if (hg.join(hg.launch(hg.seed(true).add("init")).pwd(mirror), false) != 0) {
+                    throw new AbortException("Failed to create " + mirror);
+                }
+            }
+            ArgumentListBuilder args = hg.seed(true).add("pull");
+            for (String revision : revisions) {
+                args.add("--rev", revision);
+            }
+            args.add(source);
+            if (hg.join(hg.launch(args).pwd(mirror), true) != 0) {
+                throw new AbortException("Failed to update " + mirror + " from " + source);
+            }
+            mirror.touch(System.currentTimeMillis()); // pulling nothing new need not modify it, yet it is in use
+            return mirror;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
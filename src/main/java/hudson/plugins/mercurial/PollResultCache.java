@@ -0,0 +1,167 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+
+/**
+ * Remembers for a short while what a poll found, so that jobs polling the same repository and revision
+ * from the same baseline, typically with different {@link MercurialSCM#getModules}, pull and list changes once between them.
+ * A job arriving while another computes the result waits for it.
+ * Only module filtering is then left to each job.
+ * A job never reuses a result it has already seen, so its next poll always looks again.
+ */
+final class PollResultCache {
+
+    /**
+     * How long a result may be reused, in milliseconds.
+     */
+    static /* not final */ long TTL = SystemProperties.getLong(PollResultCache.class.getName() + ".ttl", TimeUnit.SECONDS.toMillis(30));
+
+    private static final Map<String, CompletableFuture<Result>> RESULTS = new HashMap<String, CompletableFuture<Result>>();
+
+    private PollResultCache() {}
+
+    /**
+     * What a poll found.
+     */
+    static final class Result {
+        /** The current head, or null if it was found to be the baseline without looking it up locally. */
+        final @CheckForNull HgExe.RevisionInfo head;
+        /** All files changed since the baseline. */
+        final @NonNull Set<String> changes;
+        private final long created = System.nanoTime();
+        /** Jobs which have used this result. */
+        private final Set<String> users = new HashSet<String>();
+
+        Result(@CheckForNull HgExe.RevisionInfo head, @NonNull Set<String> changes) {
+            this.head = head;
+            this.changes = Collections.unmodifiableSet(changes);
+        }
+
+        boolean expired(long now) {
+            return now - created > TimeUnit.MILLISECONDS.toNanos(TTL);
+        }
+
+        /**
+         * @return false if the job had already used this result
+         */
+        private boolean use(String job) {
+            synchronized (users) {
+                return users.add(job);
+            }
+        }
+
+        private boolean usedBy(String job) {
+            synchronized (users) {
+                return users.contains(job);
+            }
+        }
+    }
+
+    /**
+     * Computes a {@link Result} when none is available.
+     */
+    interface Computation {
+        @NonNull Result compute() throws IOException, InterruptedException;
+    }
+
+    /**
+     * @param source the remote repository
+     * @param credentialsId the credentials pulled with, if any, since a job may only see what its own credentials can
+     * @param revision the revision expression, with parameters expanded
+     * @param baseline the changeset ID last built
+     */
+    static @NonNull String key(@NonNull String source, @CheckForNull String credentialsId, @NonNull String revision, @NonNull String baseline) {
+        String normalized = source.trim().replaceFirst("/+$", "");
+        if (normalized.matches("(?i)[a-z+]+://.*")) {
+            int host = normalized.indexOf("://") + 3;
+            int path = normalized.indexOf('/', host);
+            normalized = normalized.substring(0, path == -1 ? normalized.length() : path).toLowerCase(Locale.ENGLISH) + (path == -1 ? "" : normalized.substring(path));
+        }
+        if (credentialsId != null) {
+            normalized += '#' + credentialsId;
+        }
+        return normalized + '\n' + revision + '\n' + baseline;
+    }
+
+    /**
+     * Gets a recent result, or computes and remembers one.
+     * If another job is computing the same result, waits for it; should that fail, computes it here instead.
+     * @param job the full name of the polling job
+     */
+    static @NonNull Result get(@NonNull String key, @NonNull String job, @NonNull TaskListener listener, @NonNull Computation computation) throws IOException, InterruptedException {
+        CompletableFuture<Result> future;
+        boolean mine = false;
+        synchronized (RESULTS) {
+            prune();
+            future = RESULTS.get(key);
+            if (future != null && future.isDone() && future.join().usedBy(job)) {
+                future = null; // a later poll of the same job
+            }
+            if (future == null) {
+                future = new CompletableFuture<Result>();
+                RESULTS.put(key, future);
+                mine = true;
+            }
+        }
+        if (mine) {
+            try {
+                Result result = computation.compute();
+                result.use(job);
+                future.complete(result);
+                return result;
+            } catch (IOException | InterruptedException | RuntimeException | Error x) {
+                synchronized (RESULTS) {
+                    RESULTS.remove(key, future);
+                }
+                future.completeExceptionally(x);
+                throw x;
+            }
+        }
+        if (!future.isDone()) {
+            listener.getLogger().println("Waiting for another job polling the same repository...");
+        }
+        Result result;
+        try {
+            result = future.get();
+        } catch (ExecutionException x) {
+            return computation.compute();
+        }
+        if (!result.use(job)) { // polled twice while another job was computing
+            return computation.compute();
+        }
+        listener.getLogger().println("Using the result of polling the same repository "
+                + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - result.created) + " s ago");
+        return result;
+    }
+
+    private static void prune() {
+        long now = System.nanoTime();
+        for (Iterator<CompletableFuture<Result>> it = RESULTS.values().iterator(); it.hasNext();) {
+            CompletableFuture<Result> f = it.next();
+            if (f.isDone() && (f.isCompletedExceptionally() || f.join().expired(now))) {
+                it.remove();
+            }
+        }
+    }
+
+    static void clear() {
+        synchronized (RESULTS) {
+            RESULTS.clear();
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jenkins.util.SystemProperties;
+
+/**
+ * Caps the number of Mercurial processes running at once on each node,
+ * and the number of network operations against each remote host, so that a burst of polling or branch indexing
+ * queues up instead of thrashing the machine or provoking rate limits on the server.
+ * Waiting is first come, first served, and any wait is reported to the listener.
+ */
+final class ProcessLimiter {
+
+    /**
+     * Maximum concurrent {@code hg} processes per node, or 0 for no limit.
+     */
+    static /* not final */ int MAX_PER_NODE = SystemProperties.getInteger(ProcessLimiter.class.getName() + ".maxPerNode", 32);
+
+    /**
+     * Maximum concurrent network operations per remote host, across all nodes, or 0 for no limit.
+     */
+    static /* not final */ int MAX_PER_HOST = SystemProperties.getInteger(ProcessLimiter.class.getName() + ".maxPerHost", 8);
+
+    /** Subcommands which may contact a remote repository. */
+    private static final Set<String> NETWORK_COMMANDS = new HashSet<String>(Arrays.asList("pull", "clone", "identify", "id", "incoming", "in", "outgoing", "out", "push"));
+
+    /** Options of those subcommands, or global options repeated after them, which take a value. */
+    private static final Set<String> OPTIONS_WITH_VALUE = new HashSet<String>(Arrays.asList("-r", "--rev", "-b", "--branch", "-B", "--bookmark", "-u", "--updaterev", "-e", "--ssh", "--remotecmd", "--config", "-R", "--repository", "--cwd"));
+
+    private static final ConcurrentMap<String, Semaphore> NODES = new ConcurrentHashMap<String, Semaphore>();
+    private static final ConcurrentMap<String, Semaphore> HOSTS = new ConcurrentHashMap<String, Semaphore>();
+
+    private ProcessLimiter() {}
+
+    /**
+     * Wraps a launcher so that each process it starts first takes the applicable permits,
+     * and releases them when it is joined or killed.
+     * @param nodeName identifies the node
+     * @param defaultRemote where {@code pull} or {@code incoming} without an explicit source would go, if known
+     */
+    static Launcher decorate(@NonNull Launcher launcher, @NonNull final String nodeName, @NonNull final TaskListener listener, @NonNull final DefaultRemote defaultRemote) {
+        return new Launcher.DecoratedLauncher(launcher) {
+            @Override public Proc launch(Launcher.ProcStarter starter) throws IOException {
+                Permit permit;
+                try {
+                    permit = acquire(nodeName, host(starter.cmds(), defaultRemote.get()), listener);
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting to run hg", x);
+                }
+                try {
+                    return new LimitedProc(super.launch(starter), permit);
+                } catch (IOException | RuntimeException x) {
+                    permit.release();
+                    throw x;
+                }
+            }
+        };
+    }
+
+    /**
+     * Supplies the default path of the repository being worked on.
+     */
+    interface DefaultRemote {
+        @CheckForNull String get();
+    }
+
+    /**
+     * Finds the remote host a command line would contact.
+     * @param cmds a full command line, starting with the executable
+     * @return a lowercase host name, or null for local operations or if none can be determined
+     */
+    static @CheckForNull String host(@NonNull List<String> cmds, @CheckForNull String defaultRemote) {
+        int c = HgExe.subcommandIndex(cmds);
+        if (c == -1 || !NETWORK_COMMANDS.contains(cmds.get(c))) {
+            return null;
+        }
+        String source = null;
+        for (int i = c + 1; i < cmds.size(); i++) {
+            String arg = cmds.get(i);
+            if (arg.startsWith("-")) {
+                if (OPTIONS_WITH_VALUE.contains(arg)) {
+                    i++;
+                }
+                continue;
+            }
+            source = arg;
+            break;
+        }
+        if (source != null && !source.equals("default")) {
+            return hostOf(source);
+        }
+        String command = cmds.get(c);
+        if (command.equals("pull") || command.equals("incoming") || command.equals("in")) {
+            return defaultRemote != null ? hostOf(defaultRemote) : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return the host of a remote URL, or null if it is a local path
+     */
+    static @CheckForNull String hostOf(@NonNull String url) {
+        if (!url.matches("(?i)(https?|ssh)://.+")) {
+            return null;
+        }
+        try {
+            String host = new URI(url).getHost();
+            return host != null ? host.toLowerCase(Locale.ENGLISH) : null;
+        } catch (URISyntaxException x) {
+            return null;
+        }
+    }
+
+    private static Semaphore semaphore(ConcurrentMap<String, Semaphore> semaphores, String key, int permits) {
+        Semaphore s = semaphores.get(key);
+        if (s == null) {
+            Semaphore _s = semaphores.putIfAbsent(key, s = new Semaphore(permits, true));
+            if (_s != null) {
+                s = _s;
+            }
+        }
+        return s;
+    }
+
+    static Permit acquire(@NonNull String nodeName, @CheckForNull String host, @NonNull TaskListener listener) throws InterruptedException {
+        Semaphore node = MAX_PER_NODE > 0 ? semaphore(NODES, nodeName, MAX_PER_NODE) : null;
+        Semaphore remote = host != null && MAX_PER_HOST > 0 ? semaphore(HOSTS, host, MAX_PER_HOST) : null;
+        // take the scarcer, host permit first, so queued network operations do not hold node permits
+        if (remote != null) {
+            await(remote, "a connection to " + host, listener);
+        }
+        if (node != null) {
+            try {
+                await(node, "a Mercurial process slot on " + (nodeName.isEmpty() ? "the built-in node" : nodeName), listener);
+            } catch (InterruptedException x) {
+                if (remote != null) {
+                    remote.release();
+                }
+                throw x;
+            }
+        }
+        return new Permit(node, remote);
+    }
+
+    private static void await(Semaphore semaphore, String what, TaskListener listener) throws InterruptedException {
+        if (semaphore.tryAcquire(0, TimeUnit.SECONDS)) { // unlike tryAcquire(), respects the queue
+            return;
+        }
+        listener.getLogger().println("Waiting for " + what + " (" + semaphore.getQueueLength() + " ahead)...");
+        long start = System.nanoTime();
+        semaphore.acquire();
+        listener.getLogger().println("Waited " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms for " + what);
+    }
+
+    /**
+     * Permits held by one process.
+     */
+    static final class Permit {
+        private final @CheckForNull Semaphore node;
+        private final @CheckForNull Semaphore host;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Permit(@CheckForNull Semaphore node, @CheckForNull Semaphore host) {
+            this.node = node;
+            this.host = host;
+        }
+
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                if (node != null) {
+                    node.release();
+                }
+                if (host != null) {
+                    host.release();
+                }
+            }
+        }
+    }
+
+    private static final class LimitedProc extends Proc {
+        private final Proc delegate;
+        private final Permit permit;
+
+        LimitedProc(Proc delegate, Permit permit) {
+            this.delegate = delegate;
+            this.permit = permit;
+        }
+
+        @Override public boolean isAlive() throws IOException, InterruptedException {
+            return delegate.isAlive();
+        }
+
+        @Override public void kill() throws IOException, InterruptedException {
+            try {
+                delegate.kill();
+            } finally {
+                permit.release();
+            }
+        }
+
+        @Override public int join() throws IOException, InterruptedException {
+            try {
+                return delegate.join();
+            } finally {
+                permit.release();
+            }
+        }
+
+        @Override public InputStream getStdout() {
+            return delegate.getStdout();
+        }
+
+        @Override public InputStream getStderr() {
+            return delegate.getStderr();
+        }
+
+        @Override public OutputStream getStdin() {
+            return delegate.getStdin();
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Separates Mercurial progress bar output from regular output.
+ * Progress updates are carriage-return-terminated segments such as {@code files 1234/5678},
+ * which are reported to {@link #progress} rather than passed through;
+ * newline-terminated lines go to the delegate unchanged.
+ * @see #enable
+ */
+abstract class ProgressOutputStream extends OutputStream {
+
+    private static final String[] ARGUMENTS = {"--config", "progress.assume-tty=true", "--config", "progress.delay=0", "--config", "progress.format=topic number"};
+
+    private static final Pattern PROGRESS = Pattern.compile("\\s*(\\S.*?)\\s+(\\d+)/(\\d+)\\s*");
+
+    private final OutputStream out;
+    private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+    private boolean cr;
+
+    protected ProgressOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Configures a command to print progress in the format we parse, even though it is not attached to a terminal.
+     * @param args arguments after {@link HgExe#seed}
+     * @param env environment variables to be passed to {@link HgExe}, since {@code HGPLAIN} would otherwise suppress progress
+     */
+    static void enable(@NonNull ArgumentListBuilder args, @NonNull EnvVars env) {
+        args.add(ARGUMENTS);
+        env.put("HGPLAINEXCEPT", "progress");
+    }
+
+    /**
+     * Like {@link #enable(ArgumentListBuilder, EnvVars)} but for a command ready to launch.
+     * @return false if progress was already enabled
+     */
+    static boolean enable(@NonNull Launcher.ProcStarter starter) {
+        List<String> cmds = new ArrayList<String>(starter.cmds());
+        if (cmds.isEmpty() || cmds.contains(ARGUMENTS[1])) {
+            return false;
+        }
+        cmds.addAll(1, Arrays.asList(ARGUMENTS));
+        boolean[] masks = starter.masks();
+        starter.cmds(cmds);
+        if (masks != null) { // keep credentials masked in the echoed command line
+            boolean[] shifted = new boolean[masks.length + ARGUMENTS.length];
+            shifted[0] = masks.length > 0 && masks[0];
+            if (masks.length > 1) {
+                System.arraycopy(masks, 1, shifted, 1 + ARGUMENTS.length, masks.length - 1);
+            }
+            starter.masks(shifted);
+        }
+        String[] envs = starter.envs();
+        String[] more = Arrays.copyOf(envs, envs.length + 1);
+        more[envs.length] = "HGPLAINEXCEPT=progress";
+        starter.envs(more);
+        return true;
+    }
+
+    /**
+     * Drops progress updates, passing through only regular output.
+     */
+    static ProgressOutputStream discardProgress(@NonNull OutputStream out) {
+        return new ProgressOutputStream(out) {
+            @Override protected void progress(String topic, long position, long total) {}
+        };
+    }
+
+    /**
+     * Called for each progress update.
+     * @param topic e.g. {@code changesets}, {@code manifests}, {@code files}
+     * @param position how many units are done
+     * @param total the number of units expected
+     */
+    protected abstract void progress(@NonNull String topic, long position, long total);
+
+    @Override public void write(int b) throws IOException {
+        if (cr) {
+            cr = false;
+            if (b == '\n') {
+                line();
+                return;
+            }
+            segment();
+        }
+        if (b == '\r') {
+            cr = true;
+        } else if (b == '\n') {
+            line();
+        } else {
+            buf.write(b);
+        }
+    }
+
+    private void line() throws IOException {
+        buf.write('\n');
+        buf.writeTo(out);
+        buf.reset();
+    }
+
+    private void segment() {
+        Matcher m = PROGRESS.matcher(buf.toString(Charset.defaultCharset()));
+        buf.reset();
+        if (m.matches()) {
+            try {
+                progress(m.group(1), Long.parseLong(m.group(2)), Long.parseLong(m.group(3)));
+            } catch (NumberFormatException x) {
+                // absurdly large number, ignore
+            }
+        }
+    }
+
+    @Override public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Passes through a final line lacking a newline, without closing the delegate, which may be shared.
+     */
+    void finish() throws IOException {
+        if (cr) {
+            cr = false;
+            segment();
+        }
+        if (buf.size() > 0) {
+            buf.writeTo(out);
+            buf.reset();
+        }
+        out.flush();
+    }
+
+    @Override public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+}
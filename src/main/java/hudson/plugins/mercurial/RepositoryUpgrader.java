@@ -0,0 +1,399 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.ExtensionList;
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.slaves.WorkspaceList;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.DirScanner;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.SystemProperties;
+
+/**
+ * Upgrades {@link Cache} repositories and reused workspaces to current store formats using {@code hg debugupgraderepo},
+ * for installations with {@link MercurialInstallation#isUpgradeFormats}.
+ * Caches are only touched while their lock is free, and are upgraded as a copy which replaces the original once verified,
+ * since some readers of a controller cache do not take its lock; workspaces only while no build holds them.
+ */
+@Extension
+public class RepositoryUpgrader extends AsyncPeriodicWork {
+
+    static /* not final */ long RECURRENCE_PERIOD = SystemProperties.getLong(RepositoryUpgrader.class.getName() + ".recurrencePeriod", TimeUnit.HOURS.toMillis(24));
+
+    /**
+     * Requirements (as in {@code .hg/requires}) we would like every repository to have, mapped to the option requesting them.
+     */
+    private static final Map<String, String> DESIRED = new LinkedHashMap<String, String>();
+    static {
+        DESIRED.put("generaldelta", "format.generaldelta=yes");
+        DESIRED.put("sparserevlog", "format.sparse-revlog=yes");
+        DESIRED.put("revlog-compression-zstd", "format.revlog-compression=zstd,zlib");
+        DESIRED.put("dirstate-v2", "format.use-dirstate-v2=yes");
+        DESIRED.put("share-safe", "format.use-share-safe=yes");
+    }
+
+    private static final int HISTORY = 50;
+
+    /**
+     * Workspaces found outdated during checkout, by node name, mapped to the installation name.
+     */
+    private static final Map<String, Map<String, String>> OUTDATED_WORKSPACES = new HashMap<String, Map<String, String>>();
+
+    /**
+     * Repositories (node name plus path) for which {@code hg debugupgraderepo} had nothing to add with the current requirements,
+     * mapped to those requirements, so that we do not keep retrying formats this Mercurial cannot produce.
+     */
+    private static final Map<String, Set<String>> UNREACHABLE = new HashMap<String, Set<String>>();
+
+    private final List<String> results = Collections.synchronizedList(new LinkedList<String>());
+
+    public RepositoryUpgrader() {
+        super("Mercurial repository format upgrader");
+    }
+
+    static RepositoryUpgrader get() {
+        return ExtensionList.lookupSingleton(RepositoryUpgrader.class);
+    }
+
+    @Override public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    /**
+     * @return recent upgrade reports, newest first
+     */
+    public List<String> getResults() {
+        synchronized (results) {
+            return new ArrayList<String>(results);
+        }
+    }
+
+    /**
+     * Reads the requirements of a repository.
+     * @param repo a repository root
+     * @return the contents of {@code .hg/requires} plus {@code .hg/store/requires} if present, or null if this is not a repository
+     */
+    static @CheckForNull Set<String> requirements(FilePath repo) throws IOException, InterruptedException {
+        FilePath requires = repo.child(".hg/requires");
+        if (!requires.exists()) {
+            return null;
+        }
+        Set<String> result = new TreeSet<String>(Arrays.asList(requires.readToString().split("\\s+")));
+        FilePath storeRequires = repo.child(".hg/store/requires");
+        if (storeRequires.exists()) {
+            result.addAll(Arrays.asList(storeRequires.readToString().split("\\s+")));
+        }
+        result.remove("");
+        return result;
+    }
+
+    /**
+     * Computes which desirable requirements a repository lacks.
+     * @param requirements as from {@link #requirements}
+     * @param useSharing whether the repository is the source of shares, in which case {@code share-safe} is not wanted
+     * @param hasWorkingCopy whether the repository is a workspace, or may become one as the source of shares,
+     *                       in which case {@code dirstate-v2} is not wanted since {@link WorkspaceInspector} only reads version 1
+     */
+    static @NonNull Set<String> missing(@NonNull Set<String> requirements, boolean useSharing, boolean hasWorkingCopy) {
+        Set<String> missing = new TreeSet<String>(DESIRED.keySet());
+        missing.removeAll(requirements);
+        if (useSharing || requirements.contains("shared")) {
+            missing.remove("share-safe");
+        }
+        if (hasWorkingCopy || useSharing || requirements.contains("shared")) {
+            missing.remove("dirstate-v2");
+        }
+        return missing;
+    }
+
+    /**
+     * Called after a workspace is reused for a checkout, to remember it for upgrade later if it is outdated.
+     */
+    static void noteWorkspace(@NonNull MercurialInstallation inst, @NonNull Node node, @NonNull FilePath repository, @NonNull TaskListener listener) {
+        try {
+            if (repository.child(".hg/sharedpath").exists()) {
+                return; // the store belongs to the cache
+            }
+            Set<String> requirements = requirements(repository);
+            if (requirements == null || isUnreachable(node, repository, requirements)) {
+                return;
+            }
+            Set<String> missing = missing(requirements, false, true);
+            if (!missing.isEmpty()) {
+                listener.getLogger().println("Workspace repository lacks " + missing + "; it will be upgraded once idle");
+                synchronized (OUTDATED_WORKSPACES) {
+                    Map<String, String> paths = OUTDATED_WORKSPACES.get(node.getNodeName());
+                    if (paths == null) {
+                        OUTDATED_WORKSPACES.put(node.getNodeName(), paths = new HashMap<String, String>());
+                    }
+                    paths.put(repository.getRemote(), inst.getName());
+                }
+            }
+        } catch (IOException x) {
+            LOGGER.log(Level.FINE, "could not check format of " + repository, x);
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isUnreachable(Node node, FilePath repo, Set<String> requirements) {
+        synchronized (UNREACHABLE) {
+            return requirements.equals(UNREACHABLE.get(node.getNodeName() + ':' + repo.getRemote()));
+        }
+    }
+
+    @Override protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        Jenkins jenkins = Jenkins.get();
+        Map<String, MercurialInstallation> owners = owners();
+        for (Map.Entry<String, MercurialInstallation> entry : owners.entrySet()) {
+            MercurialInstallation inst = entry.getValue();
+            for (FilePath root : Cache.masterCacheRoots(inst.getMasterCacheRoot())) {
+                FilePath cache = root.child(entry.getKey());
+                if (cache.isDirectory()) {
+                    upgradeCache(inst, jenkins, cache, Cache.masterLockFor(cache.getName()), listener);
+                }
+            }
+        }
+        for (Node node : jenkins.getNodes()) {
+            Computer c = node.toComputer();
+            if (c == null || c.isOffline() || !c.isIdle()) {
+                continue;
+            }
+            if (!owners.isEmpty()) {
+                FilePath root = Cache.slaveNodeCaches(node);
+                if (root.isDirectory()) {
+                    for (FilePath cache : root.listDirectories()) {
+                        MercurialInstallation inst = owners.get(cache.getName());
+                        if (inst != null) {
+                            upgradeCache(inst, node, cache, Cache.slaveNodeLockFor(cache.getName(), node.getNodeName()), listener);
+                        }
+                    }
+                }
+            }
+            Map<String, String> workspaces;
+            synchronized (OUTDATED_WORKSPACES) {
+                workspaces = OUTDATED_WORKSPACES.remove(node.getNodeName());
+            }
+            if (workspaces != null) {
+                for (Map.Entry<String, String> entry : workspaces.entrySet()) {
+                    upgradeWorkspace(MercurialSCM.findInstallation(entry.getValue()), node, c, new FilePath(c.getChannel(), entry.getKey()), listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds which installation should upgrade each cache.
+     * An agent cache has the same name as the controller cache it was made from, which in turn lives under the roots of the installation using it,
+     * so the installation (and its tool location on the agent) is the one that created the cache.
+     * Caches of installations without {@link MercurialInstallation#isUpgradeFormats} are left out;
+     * where installations share cache roots, the first one with upgrades enabled wins.
+     * @return cache directory names mapped to installations
+     */
+    static @NonNull Map<String, MercurialInstallation> owners() throws IOException, InterruptedException {
+        Map<String, MercurialInstallation> owners = new LinkedHashMap<String, MercurialInstallation>();
+        for (MercurialInstallation inst : MercurialInstallation.allInstallations()) {
+            if (!inst.isUseCaches() || !inst.isUpgradeFormats()) {
+                continue;
+            }
+            for (FilePath root : Cache.masterCacheRoots(inst.getMasterCacheRoot())) {
+                if (root.isDirectory()) {
+                    for (FilePath cache : root.listDirectories()) {
+                        if (cache.getName().indexOf('.') != -1) {
+                            continue; // left over from an interrupted move or upgrade
+                        }
+                        if (!owners.containsKey(cache.getName())) {
+                            owners.put(cache.getName(), inst);
+                        }
+                    }
+                }
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * Upgrades a copy of a cache and swaps it in, so that readers not holding the lock never see a repository mid-upgrade.
+     */
+    private void upgradeCache(MercurialInstallation inst, Node node, FilePath cache, ReentrantLock lock, TaskListener listener) throws IOException, InterruptedException {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            if (node instanceof Jenkins) {
+                if (Cache.isSlaveNodeLocked(cache.getName())) {
+                    return; // an agent may be reading it to make a bundle
+                }
+                Computer c = ((Jenkins) node).toComputer();
+                if (c != null && !c.isIdle()) {
+                    return; // builds on the controller may share its store
+                }
+            }
+            Set<String> requirements = requirements(cache);
+            if (requirements == null || isUnreachable(node, cache, requirements) || missing(requirements, inst.isUseSharing(), false).isEmpty()) {
+                return;
+            }
+            FilePath copy = cache.sibling(cache.getName() + ".upgrading");
+            FilePath old = cache.sibling(cache.getName() + ".old");
+            copy.deleteRecursive();
+            old.deleteRecursive();
+            try {
+                // default excludes would skip .hg
+                cache.copyRecursiveTo(new DirScanner.Glob("**/*", null, false), copy, "Mercurial cache");
+                if (upgrade(inst, node, copy, cache, inst.isUseSharing(), false, listener)) {
+                    cache.renameTo(old);
+                    copy.renameTo(cache);
+                }
+            } finally {
+                if (!cache.exists()) {
+                    old.renameTo(cache); // the swap failed halfway
+                }
+                copy.deleteRecursive();
+                if (cache.exists()) {
+                    old.deleteRecursive();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void upgradeWorkspace(@CheckForNull MercurialInstallation inst, Node node, Computer c, FilePath workspace, TaskListener listener) throws IOException, InterruptedException {
+        if (inst == null || !workspace.isDirectory()) {
+            return;
+        }
+        WorkspaceList.Lease lease = c.getWorkspaceList().tryAcquire(workspace);
+        if (lease == null) {
+            // Busy again; try next time.
+            synchronized (OUTDATED_WORKSPACES) {
+                Map<String, String> paths = OUTDATED_WORKSPACES.get(node.getNodeName());
+                if (paths == null) {
+                    OUTDATED_WORKSPACES.put(node.getNodeName(), paths = new HashMap<String, String>());
+                }
+                paths.put(workspace.getRemote(), inst.getName());
+            }
+            return;
+        }
+        try {
+            upgrade(inst, node, workspace, workspace, false, true, listener);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Upgrades one repository, which the caller has locked, keeping the backup made by Mercurial unless the result checks out.
+     * @param repo the repository to upgrade
+     * @param original the repository as known to users, which differs from {@code repo} if that is a copy
+     * @return true if it was upgraded and verified
+     */
+    private boolean upgrade(MercurialInstallation inst, Node node, FilePath repo, FilePath original, boolean useSharing, boolean hasWorkingCopy, TaskListener listener) throws IOException, InterruptedException {
+        Set<String> requirements = requirements(repo);
+        if (requirements == null || isUnreachable(node, original, requirements)) {
+            return false;
+        }
+        Set<String> missing = missing(requirements, useSharing, hasWorkingCopy);
+        if (missing.isEmpty()) {
+            return false;
+        }
+        try (HgExe hg = new HgExe(inst, null, node.createLauncher(listener), node, listener, new EnvVars())) {
+            ArgumentListBuilder args = new ArgumentListBuilder("debugupgraderepo");
+            for (String requirement : missing) {
+                args.add("--config", DESIRED.get(requirement));
+            }
+            String plan = hg.popen(repo, listener, true, args.clone());
+            if (!plan.contains("added:")) {
+                listener.getLogger().println(original + " lacks " + missing + " but this Mercurial cannot add any of them");
+                synchronized (UNREACHABLE) {
+                    UNREACHABLE.put(node.getNodeName() + ':' + original.getRemote(), requirements);
+                }
+                return false;
+            }
+            FilePath store = repo.child(".hg/store");
+            long sizeBefore = store.act(new CacheCollector.DiskUsage());
+            String headsBefore = heads(hg, repo, listener);
+            long timeBefore = benchmark(hg, repo, hasWorkingCopy, listener);
+            listener.getLogger().println("Upgrading " + original + " on " + nameOf(node) + " to add " + missing);
+            if (hg.join(hg.launch(hg.seed(true).add(args.add("--run").toCommandArray())).pwd(repo), true) != 0) {
+                listener.error("Failed to upgrade " + original);
+                return false;
+            }
+            Set<String> after = requirements(repo);
+            if (after == null || after.equals(requirements) || !headsBefore.equals(heads(hg, repo, listener))) {
+                listener.error("Upgrade of " + original + " did not check out; Mercurial's backup is kept in " + repo.child(".hg"));
+                return false;
+            }
+            for (FilePath dir : repo.child(".hg").listDirectories()) {
+                if (dir.getName().startsWith("upgradebackup.")) {
+                    dir.deleteRecursive();
+                }
+            }
+            long sizeAfter = store.act(new CacheCollector.DiskUsage());
+            long timeAfter = benchmark(hg, repo, hasWorkingCopy, listener);
+            if (!missing(after, useSharing, hasWorkingCopy).isEmpty()) {
+                synchronized (UNREACHABLE) {
+                    UNREACHABLE.put(node.getNodeName() + ':' + original.getRemote(), after);
+                }
+            }
+            String report = String.format("%s on %s: store %s -> %s, hg %s %d ms -> %d ms (added %s)",
+                    original.getRemote(), nameOf(node),
+                    Functions.humanReadableByteSize(sizeBefore), Functions.humanReadableByteSize(sizeAfter),
+                    hasWorkingCopy ? "status" : "heads", timeBefore, timeAfter, missing);
+            listener.getLogger().println(report);
+            LOGGER.info(report);
+            synchronized (results) {
+                results.add(0, report);
+                while (results.size() > HISTORY) {
+                    results.remove(results.size() - 1);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Lists heads and the working copy parent, which an upgrade must not change.
+     */
+    private static String heads(HgExe hg, FilePath repo, TaskListener listener) throws IOException, InterruptedException {
+        return hg.popen(repo, listener, true, new ArgumentListBuilder("log", "--rev", "heads(all()) or .", "--template", "{node}\\n"));
+    }
+
+    /**
+     * Times a typical read operation in milliseconds: {@code status} for a workspace, {@code heads} for a cache.
+     */
+    private static long benchmark(HgExe hg, FilePath repo, boolean hasWorkingCopy, TaskListener listener) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        hg.popen(repo, listener, true, hasWorkingCopy ? new ArgumentListBuilder("status", "--quiet") : new ArgumentListBuilder("heads", "--template", "{node}\\n"));
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static String nameOf(Node node) {
+        return node instanceof Jenkins ? "controller" : node.getNodeName();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RepositoryUpgrader.class.getName());
+
+}
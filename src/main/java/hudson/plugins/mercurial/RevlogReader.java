@@ -0,0 +1,862 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.remoting.VirtualChannel;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Reads the changelog and caches of a local repository directly, without running {@code hg},
+ * to answer simple queries: heads, branch heads, and identification of a single revision.
+ * Only formats known to be safe are read; anything else (obsolescence markers, hidden phases, unknown requirements,
+ * revision expressions more complex than a name) makes the query return null so that the caller runs {@code hg} instead.
+ * @see <a href="https://www.mercurial-scm.org/wiki/RevlogNG">RevlogNG</a>
+ */
+final class RevlogReader {
+
+    /**
+     * Requirements which do not affect how the changelog, phases, bookmarks, tags and branch caches are read.
+     */
+    private static final Set<String> SUPPORTED_REQUIREMENTS = new HashSet<String>(Arrays.asList(
+            "revlogv1", "store", "fncache", "dotencode", "generaldelta", "sparserevlog", "revlog-compression-zstd",
+            "dirstate-v2", "share-safe", "persistent-nodemap", "shared", "relshared", "treemanifest"));
+
+    private static final int ENTRY_SIZE = 64;
+    private static final int FLAG_INLINE_DATA = 1 << 16;
+    private static final int FLAG_GENERALDELTA = 1 << 17;
+    private static final int PHASE_SECRET = 2;
+    private static final int PHASE_ARCHIVED = 32;
+
+    /**
+     * Maximum number of changesets decoded to bring a stale or missing branch cache up to date.
+     */
+    static /* not final */ int MAX_BRANCH_UPDATE = 10000;
+
+    private static final Pattern NODE = Pattern.compile("[0-9a-f]{40}");
+    private static final Pattern REV = Pattern.compile("0|[1-9][0-9]{0,9}");
+    /** Names which a revset parser would read as a single symbol. */
+    private static final Pattern SYMBOL = Pattern.compile("[\\w./-]+", Pattern.UNICODE_CHARACTER_CLASS);
+
+    private final File hg;
+    private final File store;
+    private final File bookmarks;
+    private final File cache;
+    private final ByteBuffer index;
+    private final int[] positions;
+    private final boolean inline, generaldelta;
+    private final Map<String, Integer> phaseRoots;
+    private Map<String, Integer> revs;
+    private RandomAccessFile data;
+    private int cachedRev = -1;
+    private byte[] cachedText;
+
+    private RevlogReader(File hg, File store, File bookmarks, File cache, ByteBuffer index, Map<String, Integer> phaseRoots) {
+        this.hg = hg;
+        this.store = store;
+        this.bookmarks = bookmarks;
+        this.cache = cache;
+        this.index = index;
+        this.phaseRoots = phaseRoots;
+        int header = index.limit() >= 4 ? index.getInt(0) : 0;
+        inline = (header & FLAG_INLINE_DATA) != 0;
+        generaldelta = (header & FLAG_GENERALDELTA) != 0;
+        List<Integer> p = new ArrayList<Integer>();
+        if (inline) {
+            for (int pos = 0; pos + ENTRY_SIZE <= index.limit(); pos += ENTRY_SIZE + index.getInt(pos + 8)) {
+                p.add(pos);
+            }
+            positions = new int[p.size()];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = p.get(i);
+            }
+        } else {
+            positions = new int[index.limit() / ENTRY_SIZE];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = i * ENTRY_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Opens a repository for reading.
+     * @param repository the repository root (containing {@code .hg})
+     * @return a reader, or null if the repository uses a format or feature this class cannot handle
+     */
+    static @CheckForNull RevlogReader open(@NonNull File repository) throws IOException {
+        File hg = new File(repository, ".hg");
+        Set<String> requirements = lines(new File(hg, "requires"));
+        if (requirements == null) {
+            return null;
+        }
+        File source = hg;
+        if (requirements.contains("shared") || requirements.contains("relshared")) {
+            File sharedpath = new File(hg, "sharedpath");
+            if (!sharedpath.isFile()) {
+                return null;
+            }
+            String path = new String(Files.readAllBytes(sharedpath.toPath()), StandardCharsets.UTF_8).trim();
+            source = requirements.contains("relshared") ? new File(hg, path) : new File(path);
+        }
+        File store = requirements.contains("store") ? new File(source, "store") : source;
+        if (requirements.contains("share-safe")) {
+            Set<String> storeRequirements = lines(new File(store, "requires"));
+            if (storeRequirements != null) {
+                requirements.addAll(storeRequirements);
+            }
+        }
+        if (!SUPPORTED_REQUIREMENTS.containsAll(requirements) || !requirements.contains("revlogv1")) {
+            return null;
+        }
+        if (new File(store, "obsstore").length() > 0) {
+            return null; // would need to compute hidden changesets
+        }
+        Map<String, Integer> phaseRoots = new HashMap<String, Integer>();
+        Set<String> phaseLines = lines(new File(store, "phaseroots"));
+        if (phaseLines != null) {
+            for (String line : phaseLines) {
+                String[] fields = line.split(" ", 2);
+                if (fields.length != 2 || !NODE.matcher(fields[1]).matches()) {
+                    return null;
+                }
+                int phase;
+                try {
+                    phase = Integer.parseInt(fields[0]);
+                } catch (NumberFormatException x) {
+                    return null;
+                }
+                if (phase >= PHASE_ARCHIVED) {
+                    return null; // hidden
+                }
+                if (phase > 0) {
+                    phaseRoots.put(fields[1], phase);
+                }
+            }
+        }
+        File indexFile = new File(store, "00changelog.i");
+        ByteBuffer index;
+        if (!indexFile.isFile()) {
+            index = ByteBuffer.allocate(0);
+        } else {
+            // read rather than mapped: on Windows a mapping would keep hg from replacing or renaming the index until collected
+            index = ByteBuffer.wrap(Files.readAllBytes(indexFile.toPath()));
+            if (index.limit() >= 4 && (index.getInt(0) & 0xFFFF) != 1) {
+                return null; // not RevlogNG
+            }
+        }
+        Set<String> shared = lines(new File(hg, "shared"));
+        File bookmarks = new File(shared != null && shared.contains("bookmarks") ? source : hg, "bookmarks");
+        return new RevlogReader(hg, store, bookmarks, new File(source, "cache"), index, phaseRoots);
+    }
+
+    private static @CheckForNull Set<String> lines(File f) throws IOException {
+        if (!f.isFile()) {
+            return null;
+        }
+        Set<String> lines = new HashSet<String>();
+        for (String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * @return the number of changesets, so also the revision number of {@code tip} plus one
+     */
+    int count() {
+        return positions.length;
+    }
+
+    /**
+     * @return the 40-character hexadecimal node ID of a revision
+     */
+    @NonNull String node(int rev) {
+        StringBuilder b = new StringBuilder(40);
+        int pos = positions[rev] + 32;
+        for (int i = 0; i < 20; i++) {
+            int v = index.get(pos + i) & 0xFF;
+            b.append(Character.forDigit(v >> 4, 16)).append(Character.forDigit(v & 0xF, 16));
+        }
+        return b.toString();
+    }
+
+    /**
+     * @return the revision number of a full node ID, or -1 if unknown
+     */
+    int rev(@NonNull String node) {
+        if (revs == null) {
+            revs = new HashMap<String, Integer>(positions.length * 2);
+            for (int rev = 0; rev < positions.length; rev++) {
+                revs.put(node(rev), rev);
+            }
+        }
+        Integer rev = revs.get(node);
+        return rev != null ? rev : -1;
+    }
+
+    /**
+     * @return first and second parent revision numbers, -1 for none
+     */
+    int[] parents(int rev) {
+        int pos = positions[rev];
+        return new int[] {index.getInt(pos + 24), index.getInt(pos + 28)};
+    }
+
+    /**
+     * Finds changesets with no children, as {@code hg heads --topo --closed}.
+     * @return node IDs, newest first
+     */
+    @NonNull List<String> heads() {
+        boolean[] hasChild = new boolean[positions.length];
+        for (int rev = 0; rev < positions.length; rev++) {
+            for (int parent : parents(rev)) {
+                if (parent >= 0) {
+                    hasChild[parent] = true;
+                }
+            }
+        }
+        List<String> heads = new ArrayList<String>();
+        for (int rev = positions.length - 1; rev >= 0; rev--) {
+            if (!hasChild[rev]) {
+                heads.add(node(rev));
+            }
+        }
+        return heads;
+    }
+
+    /**
+     * Fields of a changeset needed by the plugin.
+     */
+    static final class Changeset {
+        final String branch;
+        final boolean closed;
+        /** Milliseconds since the epoch. */
+        final long date;
+        /** Seconds west of UTC, as in {@code hgdate}. */
+        final int timezone;
+        Changeset(String branch, boolean closed, long date, int timezone) {
+            this.branch = branch;
+            this.closed = closed;
+            this.date = date;
+            this.timezone = timezone;
+        }
+    }
+
+    /**
+     * Decodes a changeset.
+     * @return the changeset, or null if it is stored in a form this class cannot read (such as zstd compression)
+     */
+    @CheckForNull Changeset changeset(int rev) throws IOException {
+        byte[] text = text(rev);
+        return text != null ? parseChangeset(text) : null;
+    }
+
+    /**
+     * Parses the header of changelog text: manifest, user, then {@code time tz extra}.
+     */
+    static @CheckForNull Changeset parseChangeset(byte[] text) {
+        int start = 0;
+        for (int line = 0; line < 2; line++) {
+            while (start < text.length && text[start] != '\n') {
+                start++;
+            }
+            start++;
+        }
+        int end = start;
+        while (end < text.length && text[end] != '\n') {
+            end++;
+        }
+        if (start >= text.length) {
+            return null;
+        }
+        String[] fields = new String(text, start, end - start, StandardCharsets.UTF_8).split(" ", 3);
+        long date;
+        int timezone;
+        try {
+            date = (long) Double.parseDouble(fields[0]) * 1000;
+            timezone = fields.length >= 2 ? Integer.parseInt(fields[1]) : 0;
+        } catch (NumberFormatException x) {
+            return null;
+        }
+        Map<String, String> extra = fields.length == 3 ? parseExtra(fields[2]) : Collections.<String, String>emptyMap();
+        String branch = extra.get("branch");
+        return new Changeset(branch != null && !branch.isEmpty() ? branch : "default", extra.containsKey("close"), date, timezone);
+    }
+
+    /**
+     * Parses NUL-separated {@code key:value} pairs, each escaped as by Mercurial's {@code changelog._string_escape}.
+     */
+    static @NonNull Map<String, String> parseExtra(@NonNull String extra) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        for (String item : extra.split("\0")) {
+            String unescaped = unescape(item);
+            int colon = unescaped.indexOf(':');
+            if (colon > 0) {
+                result.put(unescaped.substring(0, colon), unescaped.substring(colon + 1));
+            }
+        }
+        return result;
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') == -1) {
+            return s;
+        }
+        StringBuilder b = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i == s.length() - 1) {
+                b.append(c);
+                continue;
+            }
+            char next = s.charAt(++i);
+            switch (next) {
+            case 'n': b.append('\n'); break;
+            case 'r': b.append('\r'); break;
+            case 't': b.append('\t'); break;
+            case '0': b.append('\0'); break;
+            case 'x':
+                if (i + 2 < s.length()) {
+                    b.append((char) Integer.parseInt(s.substring(i + 1, i + 3), 16));
+                    i += 2;
+                    break;
+                }
+                b.append(next);
+                break;
+            default: b.append(next);
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * Reconstructs the full text of a revision by applying its delta chain.
+     * The last text is kept since neighboring revisions usually share most of their chain.
+     */
+    private @CheckForNull byte[] text(int rev) throws IOException {
+        List<Integer> chain = new ArrayList<Integer>();
+        byte[] text = null;
+        int r = rev;
+        while (true) {
+            if (r == cachedRev) {
+                text = cachedText;
+                break;
+            }
+            chain.add(r);
+            int base = index.getInt(positions[r] + 16);
+            if (base == r) {
+                break;
+            }
+            r = generaldelta ? base : r - 1;
+            if (r < 0) {
+                return null;
+            }
+        }
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            byte[] chunk = chunk(chain.get(i));
+            if (chunk == null) {
+                return null;
+            }
+            text = text == null ? chunk : patch(text, chunk);
+        }
+        cachedRev = rev;
+        cachedText = text;
+        return text;
+    }
+
+    /**
+     * Reads and decompresses the stored data of one revision.
+     * @return the data, or null if compressed in an unsupported way or flagged as special
+     */
+    private @CheckForNull byte[] chunk(int rev) throws IOException {
+        int pos = positions[rev];
+        if ((index.getShort(pos + 6) & 0xFFFF) != 0) {
+            return null; // censored, externally stored, etc.
+        }
+        int length = index.getInt(pos + 8);
+        byte[] chunk = new byte[length];
+        if (inline) {
+            ByteBuffer b = index.duplicate();
+            b.position(pos + ENTRY_SIZE);
+            b.get(chunk);
+        } else {
+            if (data == null) {
+                data = new RandomAccessFile(new File(store, "00changelog.d"), "r");
+            }
+            long offset = rev == 0 ? 0 : index.getLong(pos) >>> 16;
+            data.seek(offset);
+            data.readFully(chunk);
+        }
+        if (length == 0) {
+            return chunk;
+        }
+        switch (chunk[0]) {
+        case 0:
+            return chunk;
+        case 'u':
+            return Arrays.copyOfRange(chunk, 1, length);
+        case 'x':
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(chunk);
+                ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(index.getInt(pos + 12), 16));
+                byte[] buf = new byte[8192];
+                while (!inflater.finished()) {
+                    int n = inflater.inflate(buf);
+                    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("truncated changelog data at revision " + rev);
+                    }
+                    out.write(buf, 0, n);
+                }
+                return out.toByteArray();
+            } catch (DataFormatException x) {
+                throw new IOException("corrupt changelog data at revision " + rev, x);
+            } finally {
+                inflater.end();
+            }
+        default:
+            return null; // zstd or unknown
+        }
+    }
+
+    /**
+     * Applies a binary delta as produced by Mercurial's {@code bdiff}:
+     * a series of hunks, each a big-endian start, end and length followed by replacement data.
+     */
+    static @NonNull byte[] patch(@NonNull byte[] text, @NonNull byte[] delta) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(text.length + delta.length);
+        ByteBuffer d = ByteBuffer.wrap(delta);
+        int last = 0;
+        while (d.remaining() >= 12) {
+            int start = d.getInt();
+            int end = d.getInt();
+            int length = d.getInt();
+            out.write(text, last, start - last);
+            out.write(delta, d.position(), length);
+            d.position(d.position() + length);
+            last = end;
+        }
+        out.write(text, last, text.length - last);
+        return out.toByteArray();
+    }
+
+    /**
+     * Branch heads, as kept in {@code .hg/cache/branch2-*}.
+     */
+    static final class BranchMap {
+        /** Heads per branch, oldest first. */
+        final Map<String, List<Integer>> heads = new TreeMap<String, List<Integer>>();
+        final Set<Integer> closed = new HashSet<Integer>();
+
+        /**
+         * @return the newest open head, or if all are closed the newest head, or -1 for an unknown branch
+         */
+        int tip(String branch) {
+            List<Integer> h = heads.get(branch);
+            if (h == null || h.isEmpty()) {
+                return -1;
+            }
+            for (int i = h.size() - 1; i >= 0; i--) {
+                if (!closed.contains(h.get(i))) {
+                    return h.get(i);
+                }
+            }
+            return h.get(h.size() - 1);
+        }
+    }
+
+    /**
+     * Loads the branch cache for the {@code visible} view (or {@code served}, if no changesets are secret),
+     * bringing it up to date with any newer changesets.
+     * @return the branch heads, or null if there is no usable cache and too many changesets to compute it
+     */
+    @CheckForNull BranchMap branchMap() throws IOException {
+        BranchMap map = null;
+        int from = 0;
+        List<String> filters = new ArrayList<String>(Collections.singletonList("visible"));
+        if (!phaseRoots.containsValue(PHASE_SECRET)) {
+            filters.add("served");
+        }
+        for (String filter : filters) {
+            File f = new File(cache, "branch2-" + filter);
+            if (!f.isFile()) {
+                continue;
+            }
+            List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty()) {
+                continue;
+            }
+            String[] header = lines.get(0).split(" ");
+            if (header.length != 2 || !NODE.matcher(header[0]).matches() || !REV.matcher(header[1]).matches()) {
+                continue; // filtered hash present, or malformed
+            }
+            int tiprev = Integer.parseInt(header[1]);
+            if (tiprev >= positions.length || !node(tiprev).equals(header[0])) {
+                continue; // stripped since
+            }
+            BranchMap candidate = new BranchMap();
+            boolean valid = true;
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(" ", 3);
+                int rev = fields.length == 3 ? rev(fields[0]) : -1;
+                if (rev == -1 || rev > tiprev) {
+                    valid = false;
+                    break;
+                }
+                List<Integer> h = candidate.heads.get(fields[2]);
+                if (h == null) {
+                    candidate.heads.put(fields[2], h = new ArrayList<Integer>());
+                }
+                h.add(rev);
+                if (fields[1].equals("c")) {
+                    candidate.closed.add(rev);
+                }
+            }
+            if (valid) {
+                map = candidate;
+                from = tiprev + 1;
+                break;
+            }
+        }
+        if (map == null) {
+            map = new BranchMap();
+        }
+        if (positions.length - from > MAX_BRANCH_UPDATE) {
+            return null;
+        }
+        Map<String, List<Integer>> added = new HashMap<String, List<Integer>>();
+        for (int rev = from; rev < positions.length; rev++) {
+            Changeset cs = changeset(rev);
+            if (cs == null) {
+                return null;
+            }
+            List<Integer> revs = added.get(cs.branch);
+            if (revs == null) {
+                added.put(cs.branch, revs = new ArrayList<Integer>());
+            }
+            revs.add(rev);
+            if (cs.closed) {
+                map.closed.add(rev);
+            }
+        }
+        if (!added.isEmpty()) {
+            update(map, added);
+        }
+        for (List<Integer> h : map.heads.values()) {
+            Collections.sort(h);
+        }
+        return map;
+    }
+
+    /**
+     * Adds new changesets to branch heads as Mercurial's {@code branchcache.update} does:
+     * a head is dropped if it has a descendant on the same branch, even through other branches,
+     * so anything not a topological head is checked against the ancestors of the new changesets.
+     * @param added new revisions by branch, in increasing order
+     */
+    private void update(BranchMap map, Map<String, List<Integer>> added) {
+        boolean[] hasChild = new boolean[positions.length];
+        for (int rev = 0; rev < positions.length; rev++) {
+            for (int parent : parents(rev)) {
+                if (parent >= 0) {
+                    hasChild[parent] = true;
+                }
+            }
+        }
+        for (Map.Entry<String, List<Integer>> entry : added.entrySet()) {
+            List<Integer> h = map.heads.get(entry.getKey());
+            if (h == null) {
+                map.heads.put(entry.getKey(), h = new ArrayList<Integer>());
+            }
+            Set<Integer> heads = new HashSet<Integer>(h);
+            heads.addAll(entry.getValue());
+            int floor = Integer.MAX_VALUE;
+            for (int rev : heads) {
+                if (hasChild[rev]) {
+                    floor = Math.min(floor, rev);
+                }
+            }
+            if (floor != Integer.MAX_VALUE) {
+                heads.removeAll(ancestors(entry.getValue(), floor));
+            }
+            h.clear();
+            h.addAll(heads);
+        }
+    }
+
+    /**
+     * @return strict ancestors of some revisions (and any of them descending from another), no lower than a given revision
+     */
+    private Set<Integer> ancestors(List<Integer> revs, int floor) {
+        Set<Integer> result = new HashSet<Integer>();
+        List<Integer> queue = new ArrayList<Integer>(revs);
+        while (!queue.isEmpty()) {
+            int rev = queue.remove(queue.size() - 1);
+            for (int parent : parents(rev)) {
+                if (parent >= floor && result.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Loads tags as cached in {@code .hg/cache/tags2-*} plus local tags.
+     * @return node ID to sorted tag names (not including {@code tip}), or null if the cache is missing or stale
+     */
+    @CheckForNull Map<String, List<String>> tags() throws IOException {
+        List<String> filters = new ArrayList<String>(Collections.singletonList("visible"));
+        if (!phaseRoots.containsValue(PHASE_SECRET)) {
+            filters.add("served");
+        }
+        for (String filter : filters) {
+            File f = new File(cache, "tags2-" + filter);
+            if (!f.isFile()) {
+                continue;
+            }
+            List<String> lines = Files.readAllLines(f.toPath(), StandardCharsets.UTF_8);
+            if (lines.isEmpty()) {
+                continue;
+            }
+            String[] header = lines.get(0).split(" ");
+            int tip = positions.length - 1;
+            if (header.length != 2 || !header[0].equals(Integer.toString(tip)) || tip < 0 || !header[1].equals(node(tip))) {
+                continue;
+            }
+            Map<String, String> byName = new HashMap<String, String>();
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(" ", 2);
+                if (fields.length == 2) {
+                    byName.put(fields[1], fields[0]); // last entry is current, earlier ones history
+                }
+            }
+            Set<String> local = lines(new File(hg, "localtags"));
+            if (local != null) {
+                for (String line : local) {
+                    String[] fields = line.split(" ", 2);
+                    if (fields.length == 2) {
+                        byName.put(fields[1].trim(), fields[0]);
+                    }
+                }
+            }
+            Map<String, List<String>> byNode = new HashMap<String, List<String>>();
+            for (Map.Entry<String, String> entry : byName.entrySet()) {
+                String node = entry.getValue();
+                if (rev(node) == -1) {
+                    continue; // deleted (null node) or unknown
+                }
+                List<String> names = byNode.get(node);
+                if (names == null) {
+                    byNode.put(node, names = new ArrayList<String>());
+                }
+                names.add(entry.getKey());
+            }
+            for (List<String> names : byNode.values()) {
+                Collections.sort(names);
+            }
+            return byNode;
+        }
+        return null;
+    }
+
+    /**
+     * Computes the phase of a revision from the phase roots.
+     */
+    @NonNull String phase(int rev) {
+        if (phaseRoots.isEmpty()) {
+            return "public";
+        }
+        int[] phases = new int[rev + 1];
+        int min = rev + 1;
+        for (Map.Entry<String, Integer> root : phaseRoots.entrySet()) {
+            int r = rev(root.getKey());
+            if (r >= 0 && r <= rev) {
+                phases[r] = Math.max(phases[r], root.getValue());
+                min = Math.min(min, r);
+            }
+        }
+        for (int r = min; r <= rev; r++) {
+            for (int parent : parents(r)) {
+                if (parent >= 0) {
+                    phases[r] = Math.max(phases[r], phases[parent]);
+                }
+            }
+        }
+        switch (phases[rev]) {
+        case 0: return "public";
+        case 1: return "draft";
+        default: return "secret";
+        }
+    }
+
+    /**
+     * Resolves a revision symbol the way {@code hg log -r} would:
+     * {@code tip}, revision number, full node ID, bookmark, tag, then branch.
+     * @param symbol a revision symbol, or null for the working copy parent (not supported)
+     * @return a revision number, or -1 if the symbol is not one this class can resolve with certainty
+     */
+    int lookup(@CheckForNull String symbol) throws IOException {
+        if (symbol == null || positions.length == 0) {
+            return -1;
+        }
+        if (symbol.equals("tip")) {
+            return positions.length - 1;
+        }
+        if (REV.matcher(symbol).matches()) {
+            long rev = Long.parseLong(symbol);
+            return rev < positions.length ? (int) rev : -1;
+        }
+        if (NODE.matcher(symbol).matches()) {
+            return rev(symbol);
+        }
+        if (symbol.equals(".") || symbol.equals("null") || !SYMBOL.matcher(symbol).matches()) {
+            return -1;
+        }
+        Set<String> marks = lines(bookmarks);
+        if (marks != null) {
+            for (String line : marks) {
+                String[] fields = line.split(" ", 2);
+                if (fields.length == 2 && fields[1].equals(symbol)) {
+                    return rev(fields[0]);
+                }
+            }
+        }
+        Map<String, List<String>> tags = tags();
+        if (tags == null) {
+            return -1; // might be a tag
+        }
+        for (Map.Entry<String, List<String>> entry : tags.entrySet()) {
+            if (entry.getValue().contains(symbol)) {
+                return rev(entry.getKey());
+            }
+        }
+        BranchMap branches = branchMap();
+        return branches != null ? branches.tip(symbol) : -1;
+    }
+
+    /**
+     * Formats a revision as {@link HgExe#REVISION_INFO_TEMPLATE} would.
+     * @return the record, or null if some information is unavailable
+     */
+    @CheckForNull String revisionInfo(int rev) throws IOException {
+        Changeset cs = changeset(rev);
+        Map<String, List<String>> tags = tags();
+        if (cs == null || tags == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<String>();
+        List<String> nodeTags = tags.get(node(rev));
+        if (nodeTags != null) {
+            names.addAll(nodeTags);
+        }
+        if (rev == positions.length - 1) {
+            names.add("tip");
+            Collections.sort(names);
+        }
+        int[] parents = parents(rev);
+        return node(rev) + '\u001f' + rev + '\u001f' + cs.branch + '\u001f' + phase(rev) + '\u001f' + (cs.date / 1000) + " " + cs.timezone + '\u001f'
+                + (parents[0] >= 0 ? node(parents[0]) : "") + '\u001f' + (parents[1] >= 0 ? node(parents[1]) : "") + '\u001f'
+                + String.join(" ", names) + '\u001e';
+    }
+
+    /**
+     * Lists open branch heads as {@code hg heads --template "{node} {branch}\n"} would.
+     * @return output lines, or null if unavailable
+     */
+    @CheckForNull List<String> branchHeads() throws IOException {
+        BranchMap map = branchMap();
+        if (map == null) {
+            return null;
+        }
+        TreeMap<Integer, String> open = new TreeMap<Integer, String>(Collections.reverseOrder());
+        for (Map.Entry<String, List<Integer>> entry : map.heads.entrySet()) {
+            for (int rev : entry.getValue()) {
+                if (!map.closed.contains(rev)) {
+                    open.put(rev, entry.getKey());
+                }
+            }
+        }
+        List<String> lines = new ArrayList<String>(open.size());
+        for (Map.Entry<Integer, String> entry : open.entrySet()) {
+            lines.add(node(entry.getKey()) + ' ' + entry.getValue());
+        }
+        return lines;
+    }
+
+    void close() throws IOException {
+        if (data != null) {
+            data.close();
+        }
+    }
+
+    /**
+     * Kinds of {@link Query}.
+     */
+    enum QueryType {
+        /** {@code hg heads --topo --closed --template "{node}\n"} */
+        HEADS,
+        /** {@code hg heads --template "{node} {branch}\n"} */
+        BRANCH_HEADS,
+        /** {@code hg log -r <rev> --template REVISION_INFO_TEMPLATE} for a single symbol */
+        REVISION_INFO
+    }
+
+    /**
+     * Runs a query next to the repository.
+     * Returns output as {@code hg} would have printed it, or null if {@code hg} must be run instead.
+     */
+    static final class Query extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1;
+        private final QueryType type;
+        private final String rev;
+        Query(QueryType type, String rev) {
+            this.type = type;
+            this.rev = rev;
+        }
+        @Override public String invoke(File repository, VirtualChannel channel) throws IOException, InterruptedException {
+            RevlogReader reader = open(repository);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                switch (type) {
+                case HEADS:
+                    return String.join("\n", reader.heads()) + "\n";
+                case BRANCH_HEADS:
+                    List<String> lines = reader.branchHeads();
+                    return lines != null ? String.join("\n", lines) + "\n" : null;
+                case REVISION_INFO:
+                    int r = reader.lookup(rev);
+                    return r >= 0 ? reader.revisionInfo(r) : null;
+                default:
+                    throw new AssertionError(type);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+}
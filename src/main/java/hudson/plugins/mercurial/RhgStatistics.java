@@ -0,0 +1,118 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Records how long commands eligible for {@code rhg} take with each executable, since startup.
+ * The time saved by a command is estimated as the number of {@code rhg} runs
+ * times the difference between the mean {@code hg} and mean {@code rhg} durations.
+ */
+@Restricted(NoExternalUse.class)
+public final class RhgStatistics {
+
+    private static final ConcurrentMap<String, Command> COMMANDS = new ConcurrentHashMap<String, Command>();
+
+    private RhgStatistics() {}
+
+    /**
+     * Timings of one subcommand.
+     */
+    public static final class Command {
+        private final String name;
+        private final AtomicLong rhgRuns = new AtomicLong();
+        private final AtomicLong rhgNanos = new AtomicLong();
+        private final AtomicLong fallbacks = new AtomicLong();
+        private final AtomicLong hgRuns = new AtomicLong();
+        private final AtomicLong hgNanos = new AtomicLong();
+
+        Command(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getRhgRuns() {
+            return rhgRuns.get();
+        }
+
+        /**
+         * @return how often {@code rhg} declined or failed and {@code hg} was run instead
+         */
+        public long getFallbacks() {
+            return fallbacks.get();
+        }
+
+        public long getHgRuns() {
+            return hgRuns.get();
+        }
+
+        public long getMeanRhgMillis() {
+            return mean(rhgNanos, rhgRuns) / 1000000;
+        }
+
+        public long getMeanHgMillis() {
+            return mean(hgNanos, hgRuns) / 1000000;
+        }
+
+        /**
+         * @return the estimated time saved, or 0 if {@code hg} has not been timed yet
+         */
+        public long getSavedMillis() {
+            long runs = rhgRuns.get();
+            if (runs == 0 || hgRuns.get() == 0) {
+                return 0;
+            }
+            return Math.max(0, runs * (mean(hgNanos, hgRuns) - mean(rhgNanos, rhgRuns)) / 1000000);
+        }
+
+        private static long mean(AtomicLong nanos, AtomicLong runs) {
+            long n = runs.get();
+            return n == 0 ? 0 : nanos.get() / n;
+        }
+    }
+
+    private static Command command(String name) {
+        Command c = COMMANDS.get(name);
+        if (c == null) {
+            Command _c = COMMANDS.putIfAbsent(name, c = new Command(name));
+            if (_c != null) {
+                c = _c;
+            }
+        }
+        return c;
+    }
+
+    static void rhg(String command, long nanos) {
+        Command c = command(command);
+        c.rhgRuns.incrementAndGet();
+        c.rhgNanos.addAndGet(nanos);
+    }
+
+    static void fallback(String command) {
+        command(command).fallbacks.incrementAndGet();
+    }
+
+    static void hg(String command, long nanos) {
+        Command c = command(command);
+        c.hgRuns.incrementAndGet();
+        c.hgNanos.addAndGet(nanos);
+    }
+
+    /**
+     * @return commands seen so far, for display
+     */
+    static @NonNull List<Command> all() {
+        return new ArrayList<Command>(new TreeMap<String, Command>(COMMANDS).values());
+    }
+
+}
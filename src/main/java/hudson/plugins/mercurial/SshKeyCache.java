@@ -0,0 +1,242 @@
+package hudson.plugins.mercurial;
+
+import com.cloudbees.jenkins.plugins.sshcredentials.SSHUserPrivateKey;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.KeyPair;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Node;
+import hudson.model.PeriodicWork;
+import hudson.remoting.VirtualChannel;
+import hudson.util.Secret;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.util.SystemProperties;
+
+/**
+ * Keeps decrypted SSH private keys materialized on agents for a short while,
+ * so that consecutive {@link HgExe}s using the same credentials share one key file.
+ * Entries are reference counted, keyed by node, credentials ID and a fingerprint of the key and passphrase
+ * (so an edited credential gets a fresh file), and deleted once unused for {@link #TTL}.
+ */
+final class SshKeyCache {
+
+    /**
+     * How long an unused key file is kept.
+     */
+    static /* not final */ long TTL = SystemProperties.getLong(SshKeyCache.class.getName() + ".ttl", TimeUnit.MINUTES.toMillis(2));
+
+    private static final class Entry {
+        final String nodeAndId;
+        final FilePath file;
+        int refs;
+        long lastReleased;
+        boolean stale;
+        Entry(String nodeAndId, FilePath file) {
+            this.nodeAndId = nodeAndId;
+            this.file = file;
+        }
+    }
+
+    /** By node name, credentials ID and fingerprint. */
+    private static final Map<String, Entry> ENTRIES = new HashMap<String, Entry>();
+    /** By remote path of the file, for {@link #release}. */
+    private static final Map<String, Entry> BY_FILE = new HashMap<String, Entry>();
+
+    private SshKeyCache() {}
+
+    /**
+     * Gets a private key file for the given credentials on a node, creating it if necessary.
+     * Each call must be balanced by {@link #release}.
+     * @return a file readable only by the agent user, containing the unencrypted key
+     */
+    static @NonNull FilePath acquire(@NonNull Node node, @NonNull SSHUserPrivateKey credentials) throws IOException, InterruptedException {
+        List<String> keys = credentials.getPrivateKeys();
+        if (keys.isEmpty()) {
+            throw new IOException("No private key available");
+        } else if (keys.size() > 1) {
+            throw new IOException("Multiple private keys found.");
+        }
+        String key = keys.get(0);
+        Secret passphrase = credentials.getPassphrase();
+        String nodeAndId = node.getNodeName() + '\0' + credentials.getId();
+        String cacheKey = nodeAndId + '\0' + fingerprint(key, passphrase);
+        VirtualChannel channel = node.getChannel();
+        List<Entry> obsolete = new ArrayList<Entry>();
+        synchronized (ENTRIES) {
+            Entry entry = ENTRIES.get(cacheKey);
+            if (entry != null && entry.file.getChannel() == channel) {
+                entry.refs++;
+                return entry.file;
+            }
+            if (entry != null) {
+                // agent reconnected; the old file went away with the old agent process, or will soon
+                remove(entry, obsolete);
+            }
+            for (Entry other : ENTRIES.values()) {
+                if (other.nodeAndId.equals(nodeAndId)) {
+                    // credentials changed; delete the old key file once nobody uses it
+                    other.stale = true;
+                }
+            }
+        }
+        delete(obsolete);
+        FilePath file = materialize(node, key, passphrase);
+        synchronized (ENTRIES) {
+            Entry entry = ENTRIES.get(cacheKey);
+            if (entry != null && entry.file.getChannel() == channel) {
+                // lost a race, use the other one
+                entry.refs++;
+                obsolete.add(new Entry(nodeAndId, file));
+            } else {
+                entry = new Entry(nodeAndId, file);
+                entry.refs = 1;
+                ENTRIES.put(cacheKey, entry);
+                BY_FILE.put(file.getRemote(), entry);
+            }
+            file = entry.file;
+        }
+        delete(obsolete);
+        return file;
+    }
+
+    /**
+     * Indicates that a file from {@link #acquire} is no longer in use by the caller.
+     */
+    static void release(@NonNull FilePath file) throws IOException, InterruptedException {
+        List<Entry> obsolete = new ArrayList<Entry>();
+        synchronized (ENTRIES) {
+            Entry entry = BY_FILE.get(file.getRemote());
+            if (entry == null) {
+                obsolete.add(new Entry(null, file));
+            } else if (--entry.refs == 0) {
+                entry.lastReleased = System.currentTimeMillis();
+                if (entry.stale || TTL <= 0) {
+                    remove(entry, obsolete);
+                }
+            }
+        }
+        delete(obsolete);
+    }
+
+    private static void remove(Entry entry, List<Entry> obsolete) {
+        ENTRIES.values().remove(entry);
+        BY_FILE.values().remove(entry);
+        obsolete.add(entry);
+    }
+
+    private static void delete(List<Entry> obsolete) throws InterruptedException {
+        for (Entry entry : obsolete) {
+            try {
+                entry.file.delete();
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not delete " + entry.file, x);
+            }
+        }
+    }
+
+    /**
+     * Identifies the key material of credentials without revealing it, as in the cache key.
+     */
+    static @NonNull String fingerprint(@NonNull SSHUserPrivateKey credentials) {
+        return fingerprint(String.join("\n", credentials.getPrivateKeys()), credentials.getPassphrase());
+    }
+
+    private static String fingerprint(String key, Secret passphrase) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(key.getBytes(StandardCharsets.UTF_8));
+            if (passphrase != null) {
+                digest.update((byte) 0);
+                digest.update(passphrase.getPlainText().getBytes(StandardCharsets.UTF_8));
+            }
+            return Util.toHexString(digest.digest());
+        } catch (NoSuchAlgorithmException x) {
+            throw new AssertionError(x);
+        }
+    }
+
+    private static FilePath materialize(Node node, String key, Secret passphrase) throws IOException, InterruptedException {
+        byte[] keyData = key.getBytes(StandardCharsets.US_ASCII);
+        if (passphrase != null && /* TODO JENKINS-21283 */ passphrase.getPlainText().length() > 0) {
+            try {
+                KeyPair kp = KeyPair.load(new JSch(), keyData, null);
+                if (!kp.decrypt(passphrase.getPlainText())) {
+                    throw new IOException("Passphrase did not decrypt SSH private key");
+                }
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                kp.writePrivateKey(baos);
+                keyData = baos.toByteArray();
+            } catch (JSchException x) {
+                throw new IOException("Did not manage to decrypt SSH private key: " + x, x);
+            }
+        }
+        FilePath slaveRoot = node.getRootPath();
+        if (slaveRoot == null) {
+            throw new IOException(node.getDisplayName() + " is offline");
+        }
+        FilePath sshPrivateKey = slaveRoot.createTempFile("jenkins-mercurial", ".sshkey");
+        sshPrivateKey.chmod(0600);
+        // just in case agent goes offline during command; createTempFile fails to do it:
+        sshPrivateKey.act(new DeleteOnExit());
+        try (OutputStream os = sshPrivateKey.write()) {
+            os.write(keyData);
+        }
+        return sshPrivateKey;
+    }
+
+    private static final class DeleteOnExit extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1;
+        @Override public Void invoke(File f, VirtualChannel channel) throws IOException, InterruptedException {
+            f.deleteOnExit();
+            return null;
+        }
+    }
+
+    /**
+     * Deletes key files unused for longer than {@link #TTL}.
+     */
+    @Extension public static final class Reaper extends PeriodicWork {
+
+        @Override public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override protected void doRun() throws Exception {
+            long cutoff = System.currentTimeMillis() - TTL;
+            List<Entry> obsolete = new ArrayList<Entry>();
+            synchronized (ENTRIES) {
+                for (Iterator<Entry> it = ENTRIES.values().iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (entry.refs == 0 && entry.lastReleased < cutoff) {
+                        it.remove();
+                        BY_FILE.values().remove(entry);
+                        obsolete.add(entry);
+                    }
+                }
+            }
+            delete(obsolete);
+        }
+
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(SshKeyCache.class.getName());
+
+}
@@ -0,0 +1,263 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Kills an {@code hg} process which has printed nothing for a while,
+ * such as one stuck at an SSH prompt, on a server which stopped sending, or waiting for a repository lock.
+ * Queries are left alone: they print no progress, may legitimately compute for long before printing anything,
+ * and are bounded by {@link Timeouts#getQueryMinutes} instead.
+ * Any output on standard output or error counts as progress, including progress bars, which are turned on for transfers
+ * but kept out of the log; Mercurial reports lock waits on standard error once and then stays silent, so those are caught too.
+ * Before killing, the command, its running time and the holders of the repository locks are logged.
+ * @see Timeouts#getIdleMinutes
+ */
+final class StallWatchdog implements Runnable {
+
+    /** Lock files whose holders are worth reporting, relative to the repository root. */
+    private static final String[] LOCKS = {".hg/store/lock", ".hg/wlock"};
+
+    private final long idleNanos;
+    private final TaskListener listener;
+    private final String description;
+    private final @CheckForNull FilePath repository;
+    private final long start = System.nanoTime();
+    private volatile long lastActivity = start;
+    private final AtomicBoolean fired = new AtomicBoolean();
+    private volatile Proc proc;
+    private volatile Future<?> checker;
+
+    /**
+     * @param description the command, without arguments which might include credentials
+     * @param repository the working directory, if any, which is checked for lock holders
+     */
+    StallWatchdog(long idleMillis, @NonNull TaskListener listener, @NonNull String description, @CheckForNull FilePath repository) {
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.listener = listener;
+        this.description = description;
+        this.repository = repository;
+    }
+
+    /**
+     * Wraps a launcher so that each process it starts, other than a query, is watched.
+     * @param idleMillis how long a process may stay silent
+     */
+    static Launcher decorate(@NonNull Launcher launcher, final long idleMillis, @NonNull final TaskListener listener) {
+        return new Launcher.DecoratedLauncher(launcher) {
+            @Override public Proc launch(Launcher.ProcStarter starter) throws IOException {
+                List<String> cmds = starter.cmds();
+                int i = HgExe.subcommandIndex(cmds);
+                if (Timeouts.classify(i != -1 ? cmds.get(i) : null) == Timeouts.Operation.QUERY) {
+                    return super.launch(starter); // nothing to show until done; the query limit bounds it
+                }
+                StallWatchdog watchdog = new StallWatchdog(idleMillis, listener, "hg " + (i != -1 ? cmds.get(i) : ""), starter.pwd());
+                OutputStream out = starter.stdout();
+                OutputStream err = starter.stderr();
+                // transfers may be quiet for long unless progress is printed; callers already showing progress handle it themselves
+                boolean quiet = out != null && ProgressOutputStream.enable(starter);
+                ProgressOutputStream outFilter = quiet ? ProgressOutputStream.discardProgress(out) : null;
+                ProgressOutputStream errFilter = quiet && err != null ? ProgressOutputStream.discardProgress(err) : null;
+                if (out != null) {
+                    starter.stdout(watchdog.monitor(outFilter != null ? outFilter : out));
+                }
+                if (err != null) {
+                    starter.stderr(watchdog.monitor(errFilter != null ? errFilter : err));
+                }
+                Proc proc = super.launch(starter);
+                watchdog.start(proc);
+                return new WatchedProc(proc, watchdog, out == null, outFilter, errFilter);
+            }
+        };
+    }
+
+    /**
+     * Notes that the process did something.
+     */
+    void touch() {
+        lastActivity = System.nanoTime();
+    }
+
+    /**
+     * Whether the process has been silent for too long.
+     */
+    boolean stalled(long now) {
+        return now - lastActivity > idleNanos;
+    }
+
+    OutputStream monitor(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override public void write(int b) throws IOException {
+                touch();
+                out.write(b);
+            }
+            @Override public void write(byte[] b, int off, int len) throws IOException {
+                touch();
+                out.write(b, off, len);
+            }
+        };
+    }
+
+    InputStream monitor(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override public int read() throws IOException {
+                int b = super.read();
+                touch();
+                return b;
+            }
+            @Override public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                touch();
+                return n;
+            }
+        };
+    }
+
+    void start(Proc proc) {
+        this.proc = proc;
+        long period = Math.max(TimeUnit.SECONDS.toNanos(1), idleNanos / 10);
+        checker = Timer.get().scheduleWithFixedDelay(this, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    void stop() {
+        Future<?> c = checker;
+        if (c != null) {
+            c.cancel(false);
+        }
+    }
+
+    @Override public void run() {
+        long now = System.nanoTime();
+        if (!stalled(now) || !fired.compareAndSet(false, true)) {
+            return;
+        }
+        stop();
+        String message = "No output from " + description + (repository != null ? " in " + repository.getRemote() : "")
+                + " for " + Timeouts.format(TimeUnit.NANOSECONDS.toMillis(now - lastActivity))
+                + " after running " + Timeouts.format(TimeUnit.NANOSECONDS.toMillis(now - start)) + "; killing it";
+        listener.error(message);
+        LOGGER.warning(message);
+        if (repository != null) {
+            for (String holder : lockHolders(repository)) {
+                listener.getLogger().println(holder);
+                LOGGER.warning(holder);
+            }
+        }
+        try {
+            proc.kill();
+        } catch (IOException | InterruptedException x) {
+            LOGGER.log(Level.WARNING, "could not kill stalled process", x);
+        }
+    }
+
+    /**
+     * Describes who holds the locks of a repository.
+     * Mercurial writes {@code host:pid} as the target of a symbolic link, or as file content where links are unavailable.
+     * @return one message per held lock
+     */
+    static @NonNull List<String> lockHolders(@NonNull FilePath repository) {
+        List<String> holders = new ArrayList<String>();
+        for (String name : LOCKS) {
+            FilePath lock = repository.child(name);
+            try {
+                String holder = lock.readLink();
+                if (holder == null && lock.exists()) {
+                    holder = lock.readToString().trim();
+                }
+                if (holder != null) {
+                    holders.add(name + " is held by " + holder);
+                }
+            } catch (IOException x) {
+                LOGGER.log(Level.FINE, "could not read " + lock, x);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return holders;
+    }
+
+    private static final class WatchedProc extends Proc {
+        private final Proc delegate;
+        private final StallWatchdog watchdog;
+        private final InputStream stdout;
+        /** Progress filters to finish once the process is over, so a last line without a newline is not lost. */
+        private final List<ProgressOutputStream> filters = new ArrayList<ProgressOutputStream>();
+
+        WatchedProc(Proc delegate, StallWatchdog watchdog, boolean reverseStdout, ProgressOutputStream... filters) {
+            this.delegate = delegate;
+            this.watchdog = watchdog;
+            InputStream in = delegate.getStdout();
+            this.stdout = reverseStdout && in != null ? watchdog.monitor(in) : in;
+            for (ProgressOutputStream filter : Arrays.asList(filters)) {
+                if (filter != null) {
+                    this.filters.add(filter);
+                }
+            }
+        }
+
+        @Override public boolean isAlive() throws IOException, InterruptedException {
+            return delegate.isAlive();
+        }
+
+        @Override public void kill() throws IOException, InterruptedException {
+            watchdog.stop();
+            try {
+                delegate.kill();
+            } finally {
+                finish();
+            }
+        }
+
+        @Override public int join() throws IOException, InterruptedException {
+            try {
+                return delegate.join();
+            } finally {
+                watchdog.stop();
+                finish();
+            }
+        }
+
+        private void finish() throws IOException {
+            synchronized (filters) {
+                for (ProgressOutputStream filter : filters) {
+                    filter.finish();
+                }
+                filters.clear(); // join after kill
+            }
+        }
+
+        @Override public InputStream getStdout() {
+            return stdout;
+        }
+
+        @Override public InputStream getStderr() {
+            return delegate.getStderr();
+        }
+
+        @Override public OutputStream getStdin() {
+            return delegate.getStdin();
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(StallWatchdog.class.getName());
+
+}
@@ -0,0 +1,285 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Time limits for {@code hg} processes by kind of operation, optionally tightened from recent durations.
+ * Limits apply only outside builds, where nothing else would stop a hung process, unless {@link #isLimitQueriesInBuilds} is set.
+ * @see MercurialInstallation#getTimeouts
+ */
+public class Timeouts extends AbstractDescribableImpl<Timeouts> {
+
+    /**
+     * Kinds of operation with separate limits.
+     */
+    public enum Operation {
+        /** Read-only commands. */
+        QUERY,
+        /** Network transfers and other commands writing to an existing repository, such as {@code update}. */
+        PULL,
+        /** Creating a repository from another. */
+        CLONE
+    }
+
+    /** Commands known not to write or transfer much; anything else, such as an extension's command, counts as a pull. */
+    private static final Set<String> QUERY_COMMANDS = new HashSet<String>(Arrays.asList(
+            "log", "heads", "identify", "id", "status", "st", "files", "locate", "cat", "manifest", "parents", "tip",
+            "paths", "root", "showconfig", "config", "version", "debuginstall", "summary", "diff", "annotate", "help"));
+
+    /** Number of recent durations kept per repository and operation. */
+    static /* not final */ int HISTORY = SystemProperties.getInteger(Timeouts.class.getName() + ".history", 20);
+    /** Minimum number of recent durations before {@link #isAdaptive} takes effect. */
+    static /* not final */ int MIN_SAMPLES = SystemProperties.getInteger(Timeouts.class.getName() + ".minSamples", 5);
+    /** Multiple of the longest recent duration allowed in adaptive mode. */
+    static /* not final */ int FACTOR = SystemProperties.getInteger(Timeouts.class.getName() + ".factor", 5);
+    /** Adaptive limits are never shorter than this. */
+    static /* not final */ long FLOOR = SystemProperties.getLong(Timeouts.class.getName() + ".floor", TimeUnit.MINUTES.toMillis(2));
+
+    private static final Map<String, Deque<Long>> DURATIONS = new LinkedHashMap<String, Deque<Long>>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Deque<Long>> eldest) {
+            return size() > 1000;
+        }
+    };
+
+    private int queryMinutes = 10;
+    private int pullMinutes = 30;
+    private int cloneMinutes = 120;
+    private boolean limitQueriesInBuilds;
+    private boolean adaptive;
+    private int idleMinutes = 5;
+
+    @DataBoundConstructor public Timeouts() {}
+
+    /**
+     * @return minutes, or 0 for no limit
+     */
+    public int getQueryMinutes() {
+        return queryMinutes;
+    }
+
+    @DataBoundSetter public void setQueryMinutes(int queryMinutes) {
+        this.queryMinutes = Math.max(0, queryMinutes);
+    }
+
+    /**
+     * @return minutes, or 0 for no limit
+     */
+    public int getPullMinutes() {
+        return pullMinutes;
+    }
+
+    @DataBoundSetter public void setPullMinutes(int pullMinutes) {
+        this.pullMinutes = Math.max(0, pullMinutes);
+    }
+
+    /**
+     * @return minutes, or 0 for no limit
+     */
+    public int getCloneMinutes() {
+        return cloneMinutes;
+    }
+
+    @DataBoundSetter public void setCloneMinutes(int cloneMinutes) {
+        this.cloneMinutes = Math.max(0, cloneMinutes);
+    }
+
+    /**
+     * Whether the query limit also applies to commands run by builds, which otherwise run without a limit as they always did.
+     */
+    public boolean isLimitQueriesInBuilds() {
+        return limitQueriesInBuilds;
+    }
+
+    @DataBoundSetter public void setLimitQueriesInBuilds(boolean limitQueriesInBuilds) {
+        this.limitQueriesInBuilds = limitQueriesInBuilds;
+    }
+
+    /**
+     * Whether to lower limits for repositories whose recent operations of the same kind were all much shorter.
+     */
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    @DataBoundSetter public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * How long a process other than a query may go without printing anything before {@link StallWatchdog} kills it.
+     * @return minutes, or 0 for no limit
+     */
+    public int getIdleMinutes() {
+        return idleMinutes;
+    }
+
+    @DataBoundSetter public void setIdleMinutes(int idleMinutes) {
+        this.idleMinutes = Math.max(0, idleMinutes);
+    }
+
+    /**
+     * @param subcommand as from {@link HgExe#subcommandIndex}, or null for none, as with {@code hg --version}
+     */
+    static @NonNull Operation classify(@CheckForNull String subcommand) {
+        if (subcommand == null || QUERY_COMMANDS.contains(subcommand)) {
+            return Operation.QUERY;
+        }
+        if ("clone".equals(subcommand) || "share".equals(subcommand)) {
+            return Operation.CLONE;
+        }
+        return Operation.PULL;
+    }
+
+    /**
+     * A limit for one process.
+     */
+    static final class Limit {
+        final Operation operation;
+        final long millis;
+        final @CheckForNull String key;
+        /** The longest recent duration, if the limit was derived from it. */
+        final long adaptedFrom;
+
+        Limit(Operation operation, long millis, @CheckForNull String key, long adaptedFrom) {
+            this.operation = operation;
+            this.millis = millis;
+            this.key = key;
+            this.adaptedFrom = adaptedFrom;
+        }
+
+        /**
+         * Records a successful run, for adaptive limits.
+         */
+        void record(long duration) {
+            if (key == null) {
+                return;
+            }
+            synchronized (DURATIONS) {
+                Deque<Long> durations = DURATIONS.get(key);
+                if (durations == null) {
+                    DURATIONS.put(key, durations = new ArrayDeque<Long>());
+                }
+                durations.addLast(duration);
+                while (durations.size() > HISTORY) {
+                    durations.removeFirst();
+                }
+            }
+        }
+
+        /**
+         * Records a timeout.
+         * Only successes are recorded otherwise, so an adapted limit could never grow again
+         * once the repository needs longer; forgetting them lets the next attempt run to the configured limit.
+         */
+        void expired() {
+            if (key == null) {
+                return;
+            }
+            synchronized (DURATIONS) {
+                DURATIONS.remove(key);
+            }
+        }
+
+        /**
+         * Explains a timeout.
+         * @param command the command line
+         */
+        String describe(String command) {
+            StringBuilder b = new StringBuilder("Timed out after ").append(format(millis)).append(" running ").append(command)
+                    .append(": exceeded the ").append(operation.name().toLowerCase(java.util.Locale.ENGLISH)).append(" limit");
+            if (adaptedFrom > 0) {
+                b.append(", set to ").append(FACTOR).append(" times the longest recent run here (").append(format(adaptedFrom))
+                        .append("), so the next attempt will be allowed the configured limit");
+            }
+            return b.append("; the process was killed").toString();
+        }
+    }
+
+    /**
+     * Computes the limit for a process.
+     * @param operation the kind of operation
+     * @param useTimeout whether the caller is outside a build
+     * @param key identifies the repository and node for adaptive limits, or null if there is none
+     * @return a limit, or null for none
+     */
+    @CheckForNull Limit limit(@NonNull Operation operation, boolean useTimeout, @CheckForNull String key) {
+        if (!useTimeout && !(operation == Operation.QUERY && limitQueriesInBuilds)) {
+            return null;
+        }
+        int minutes = operation == Operation.QUERY ? queryMinutes : operation == Operation.PULL ? pullMinutes : cloneMinutes;
+        if (minutes == 0) {
+            return null;
+        }
+        long millis = TimeUnit.MINUTES.toMillis(minutes);
+        String historyKey = key != null ? operation + "\n" + key : null;
+        if (adaptive && historyKey != null) {
+            long longest = longest(historyKey);
+            if (longest > 0) {
+                long adapted = Math.max(FLOOR, longest * FACTOR);
+                if (adapted < millis) {
+                    return new Limit(operation, adapted, historyKey, longest);
+                }
+            }
+        }
+        return new Limit(operation, millis, historyKey, 0);
+    }
+
+    /**
+     * @return the longest recent duration, or 0 if there are too few
+     */
+    private static long longest(String key) {
+        synchronized (DURATIONS) {
+            Deque<Long> durations = DURATIONS.get(key);
+            if (durations == null || durations.size() < MIN_SAMPLES) {
+                return 0;
+            }
+            long longest = 0;
+            for (long d : durations) {
+                longest = Math.max(longest, d);
+            }
+            return longest;
+        }
+    }
+
+    /**
+     * The limit used when an installation configures none: an hour outside builds, as always.
+     */
+    static @CheckForNull Limit legacy(@NonNull Operation operation, boolean useTimeout) {
+        return useTimeout ? new Limit(operation, TimeUnit.HOURS.toMillis(1), null, 0) : null;
+    }
+
+    static String format(long millis) {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(millis);
+        return seconds < 120 ? seconds + " s" : TimeUnit.SECONDS.toMinutes(seconds) + " min";
+    }
+
+    static void clearHistory() {
+        synchronized (DURATIONS) {
+            DURATIONS.clear();
+        }
+    }
+
+    @Extension public static class DescriptorImpl extends Descriptor<Timeouts> {
+
+        @Override public String getDisplayName() {
+            return Messages.Timeouts_displayName();
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package hudson.plugins.mercurial;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+/**
+ * CLI equivalent of {@link MercurialManagementLink#doWarm}.
+ * Example: {@code java -jar jenkins-cli.jar mercurial-warm-cache -label linux -wait https://hg/repo1 https://hg/repo2}
+ */
+@Extension
+public class WarmCacheCommand extends CLICommand {
+
+    @Argument(metaVar = "URL", usage = "Repository URLs to warm up.", required = true, multiValued = true)
+    public List<String> urls = new ArrayList<String>();
+
+    @Option(name = "-installation", usage = "Name of the caching Mercurial installation; defaults to the first one.")
+    public String installation;
+
+    @Option(name = "-credentials", usage = "ID of credentials used to pull.")
+    public String credentialsId;
+
+    @Option(name = "-label", usage = "Also refresh the caches of online agents matching this label.")
+    public String label;
+
+    @Option(name = "-wait", usage = "Wait for the warm-up to finish and print its log.")
+    public boolean wait;
+
+    @Override public String getName() {
+        return "mercurial-warm-cache";
+    }
+
+    @Override public String getShortDescription() {
+        return Messages.WarmCacheCommand_shortDescription();
+    }
+
+    @Override protected int run() throws Exception {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+        if (CacheWarmupTask.findCachingInstallation(installation) == null) {
+            stderr.println("No suitable Mercurial installation with caching enabled");
+            return 3;
+        }
+        List<CacheWarmupTask> tasks = CacheWarmupTask.schedule(urls, installation, credentialsId, label);
+        int status = 0;
+        for (CacheWarmupTask task : tasks) {
+            if (!wait) {
+                stdout.println("Scheduled #" + task.getId() + " " + task.getSource());
+                continue;
+            }
+            while (!task.isDone()) {
+                Thread.sleep(1000);
+            }
+            stdout.print(task.getLog());
+            stdout.println(task.getSource() + ": " + task.getState());
+            if (task.getState() != CacheWarmupTask.State.SUCCEEDED) {
+                status = 1;
+            }
+        }
+        return status;
+    }
+
+}
@@ -0,0 +1,255 @@
+package hudson.plugins.mercurial;
+
+import com.cloudbees.plugins.credentials.common.StandardUsernameCredentials;
+import com.cloudbees.plugins.credentials.common.UsernamePasswordCredentials;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.ProxyConfiguration;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import jenkins.util.SystemProperties;
+
+/**
+ * Asks a repository served over HTTP about its heads without running Mercurial,
+ * using single requests of the version 1 wire protocol understood by {@code hg serve} and hgweb.
+ * This lets callers skip a pull when they already have everything the remote has.
+ * Repositories reached over SSH, or with SSH credentials, are not supported.
+ */
+final class WireProtocolClient {
+
+    /**
+     * Whether to use this at all, rather than always pulling.
+     */
+    static /* not final */ boolean ENABLED = SystemProperties.getBoolean(WireProtocolClient.class.getName() + ".enabled", true);
+
+    /**
+     * Connect and read timeout in seconds.
+     */
+    static /* not final */ int TIMEOUT = SystemProperties.getInteger(WireProtocolClient.class.getName() + ".timeout", 30);
+
+    private final String url;
+    private final @CheckForNull String authorization;
+
+    /**
+     * @param url the repository, which may include a user name and password
+     * @param username used instead of any in the URL, or null
+     * @param password goes with {@code username}
+     */
+    WireProtocolClient(@NonNull String url, @CheckForNull String username, @CheckForNull String password) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException x) {
+            throw new IOException(x);
+        }
+        String userInfo = uri.getRawUserInfo();
+        if (username == null && userInfo != null) {
+            int colon = userInfo.indexOf(':');
+            username = decode(colon == -1 ? userInfo : userInfo.substring(0, colon));
+            password = colon == -1 ? null : decode(userInfo.substring(colon + 1));
+        }
+        this.authorization = username == null ? null : "Basic " + Base64.getEncoder().encodeToString(
+                (username + ':' + (password != null ? password : "")).getBytes(StandardCharsets.UTF_8));
+        try {
+            this.url = new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), uri.getPath(), null, null).toString();
+        } catch (URISyntaxException x) {
+            throw new IOException(x);
+        }
+    }
+
+    /**
+     * Creates a client if a repository can be queried this way.
+     * @param source a repository URL as configured in a job
+     * @param credentials as configured in the job
+     * @return a client, or null if {@link #ENABLED disabled}, not an HTTP URL, or using SSH credentials
+     */
+    static @CheckForNull WireProtocolClient forSource(@NonNull String source, @CheckForNull StandardUsernameCredentials credentials) {
+        if (!ENABLED || !source.matches("(?i)https?://.+")) {
+            return null;
+        }
+        String username = null;
+        String password = null;
+        if (credentials instanceof UsernamePasswordCredentials) {
+            username = ((UsernamePasswordCredentials) credentials).getUsername();
+            password = ((UsernamePasswordCredentials) credentials).getPassword().getPlainText();
+        } else if (credentials != null) {
+            return null;
+        }
+        try {
+            return new WireProtocolClient(source, username, password);
+        } catch (IOException x) {
+            return null;
+        }
+    }
+
+    /**
+     * @return for example {@code lookup}, {@code branchmap}, {@code httpheader=1024}
+     */
+    @NonNull Set<String> capabilities() throws IOException {
+        return new LinkedHashSet<String>(Arrays.asList(call("capabilities").trim().split(" +")));
+    }
+
+    /**
+     * @return the topological heads, as 40-character hexadecimal IDs
+     */
+    @NonNull List<String> heads() throws IOException {
+        return nodes(call("heads"));
+    }
+
+    /**
+     * Lists the heads of each named branch, including closed heads.
+     * @return branch names mapped to heads, in the order sent by the server
+     */
+    @NonNull Map<String, List<String>> branchmap() throws IOException {
+        return parseBranchmap(call("branchmap"));
+    }
+
+    /**
+     * Resolves a revision as {@code hg identify -r} would on the server.
+     * @param key a branch, bookmark, tag or (possibly abbreviated) changeset ID
+     * @return the full changeset ID, or null if the server does not know the revision
+     */
+    @CheckForNull String lookup(@NonNull String key) throws IOException {
+        return parseLookup(call("lookup", "key", key));
+    }
+
+    /**
+     * @param namespace for example {@code bookmarks} or {@code phases}
+     * @return keys mapped to values; for bookmarks, names mapped to changeset IDs
+     */
+    @NonNull Map<String, String> listkeys(@NonNull String namespace) throws IOException {
+        return parseListkeys(call("listkeys", "namespace", namespace));
+    }
+
+    static @NonNull List<String> nodes(@NonNull String response) throws IOException {
+        List<String> nodes = new ArrayList<String>();
+        for (String node : response.trim().split("\\s+")) {
+            if (node.isEmpty()) {
+                continue;
+            }
+            if (!HgExe.NODEID_PATTERN.matcher(node).matches()) {
+                throw new IOException("unexpected response: " + response);
+            }
+            nodes.add(node);
+        }
+        return nodes;
+    }
+
+    static @NonNull Map<String, List<String>> parseBranchmap(@NonNull String response) throws IOException {
+        Map<String, List<String>> branches = new LinkedHashMap<String, List<String>>();
+        for (String line : response.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int space = line.indexOf(' ');
+            if (space == -1) {
+                throw new IOException("unexpected response: " + line);
+            }
+            branches.put(decode(line.substring(0, space)), nodes(line.substring(space + 1)));
+        }
+        return branches;
+    }
+
+    static @CheckForNull String parseLookup(@NonNull String response) throws IOException {
+        String r = response.trim();
+        if (r.startsWith("0 ")) {
+            return null;
+        }
+        if (r.startsWith("1 ") && HgExe.NODEID_PATTERN.matcher(r.substring(2)).matches()) {
+            return r.substring(2);
+        }
+        throw new IOException("unexpected response: " + response);
+    }
+
+    static @NonNull Map<String, String> parseListkeys(@NonNull String response) throws IOException {
+        if (response.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> keys = new LinkedHashMap<String, String>();
+        for (String line : response.split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            int tab = line.indexOf('\t');
+            if (tab == -1) {
+                throw new IOException("unexpected response: " + line);
+            }
+            keys.put(line.substring(0, tab), line.substring(tab + 1));
+        }
+        return keys;
+    }
+
+    /**
+     * Runs one command.
+     * @param args alternating argument names and values
+     * @return the response body
+     */
+    private String call(String command, String... args) throws IOException {
+        StringBuilder u = new StringBuilder(url).append("?cmd=").append(command);
+        for (int i = 0; i < args.length; i += 2) {
+            u.append('&').append(args[i]).append('=').append(URLEncoder.encode(args[i + 1], "UTF-8"));
+        }
+        URLConnection c = ProxyConfiguration.open(new URL(u.toString()));
+        if (!(c instanceof HttpURLConnection)) {
+            throw new IOException("not an HTTP URL: " + url);
+        }
+        HttpURLConnection conn = (HttpURLConnection) c;
+        conn.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT));
+        conn.setReadTimeout((int) TimeUnit.SECONDS.toMillis(TIMEOUT));
+        conn.setInstanceFollowRedirects(true);
+        conn.setRequestProperty("Accept", "application/mercurial-0.1");
+        if (authorization != null) {
+            conn.setRequestProperty("Authorization", authorization);
+        }
+        try {
+            int status = conn.getResponseCode();
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + status + " from " + url + " for " + command);
+            }
+            String type = conn.getContentType();
+            if (type == null || !type.startsWith("application/mercurial-")) {
+                throw new IOException(url + " does not look like a Mercurial repository (" + type + ")");
+            }
+            try (InputStream in = conn.getInputStream()) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream();
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    body.write(buf, 0, n);
+                }
+                return body.toString(StandardCharsets.UTF_8.name());
+            }
+        } finally {
+            conn.disconnect();
+        }
+    }
+
+    private static String decode(String s) throws UnsupportedEncodingException {
+        return URLDecoder.decode(s.replace("+", "%2B"), "UTF-8");
+    }
+
+    @Override public String toString() {
+        return url;
+    }
+
+}
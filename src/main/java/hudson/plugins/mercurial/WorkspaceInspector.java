@@ -0,0 +1,279 @@
+package hudson.plugins.mercurial;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.remoting.VirtualChannel;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Describes a workspace repository in one remoting call, by reading files under {@code .hg} rather than running {@code hg}:
+ * whether it is shared, its default path, the working copy parents and branch, and optionally whether tracked files are unmodified.
+ * Any field which cannot be determined with certainty is left null, so callers fall back to {@code hg}.
+ */
+final class WorkspaceInspector extends MasterToSlaveFileCallable<WorkspaceInspector.Workspace> {
+
+    private static final long serialVersionUID = 1;
+
+    private static final String DIRSTATE_V2 = "dirstate-v2\n";
+    private static final String NULL_NODE = "0000000000000000000000000000000000000000";
+    /** Mercurial stores sizes and times modulo 2^31. */
+    private static final long RANGE_MASK = 0x7FFFFFFF;
+
+    private final boolean checkClean;
+    private final boolean readRevlog;
+    private final @CheckForNull String target;
+
+    /**
+     * @param checkClean whether to compare tracked files against the dirstate
+     * @param readRevlog whether to use {@link RevlogReader} to describe the parent and resolve {@code target}
+     * @param target a revision symbol to resolve, if any
+     */
+    WorkspaceInspector(boolean checkClean, boolean readRevlog, @CheckForNull String target) {
+        this.checkClean = checkClean;
+        this.readRevlog = readRevlog;
+        this.target = target;
+    }
+
+    /**
+     * What was found.
+     */
+    static final class Workspace implements Serializable {
+        private static final long serialVersionUID = 1;
+        /** Whether there is a {@code .hg} directory at all. */
+        boolean repository;
+        /** Whether the store is shared from elsewhere ({@code .hg/sharedpath}). */
+        boolean shared;
+        /** Whether {@code .hg/hgrc} exists. */
+        boolean hgrc;
+        /** {@code paths.default} from {@code .hg/hgrc}, or null if unset there or not determinable. */
+        @CheckForNull String defaultPath;
+        /** Node IDs of the working copy parents, or null if the dirstate could not be read. */
+        @CheckForNull List<String> parents;
+        /** Revision number of the first parent, if {@link RevlogReader} could read it. */
+        @CheckForNull String parentRev;
+        /** Branch of the first parent, if {@link RevlogReader} could read it. */
+        @CheckForNull String parentBranch;
+        /** Node ID of the requested target, if {@link RevlogReader} could resolve it. */
+        @CheckForNull String targetNode;
+        /** Branch of the requested target, if {@link RevlogReader} could resolve it. */
+        @CheckForNull String targetBranch;
+        /** Branch of the working copy ({@code .hg/branch}), which {@code hg branch} may have set apart from the parent's. */
+        @CheckForNull String branch;
+        /** Whether all tracked files are unmodified and no merge is in progress, or null if not checked or not determinable. */
+        @CheckForNull Boolean clean;
+
+        /**
+         * @return whether the working copy has a single parent which is the requested target, on its branch, with no local modifications
+         */
+        boolean isCleanAt() {
+            return Boolean.TRUE.equals(clean) && parents != null && parents.size() == 1 && parents.get(0).equals(targetNode)
+                    && branch != null && branch.equals(targetBranch);
+        }
+    }
+
+    @Override public Workspace invoke(File repository, VirtualChannel channel) throws IOException, InterruptedException {
+        Workspace ws = new Workspace();
+        File hg = new File(repository, ".hg");
+        if (!hg.isDirectory()) {
+            return ws;
+        }
+        ws.repository = true;
+        ws.shared = new File(hg, "sharedpath").isFile();
+        File hgrc = new File(hg, "hgrc");
+        if (hgrc.isFile()) {
+            ws.hgrc = true;
+            ws.defaultPath = defaultPath(Files.readAllLines(hgrc.toPath(), StandardCharsets.UTF_8));
+        }
+        File branch = new File(hg, "branch");
+        ws.branch = branch.isFile() ? new String(Files.readAllBytes(branch.toPath()), StandardCharsets.UTF_8).trim() : "";
+        if (ws.branch.isEmpty()) {
+            ws.branch = "default";
+        }
+        File dirstate = new File(hg, "dirstate");
+        if (dirstate.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dirstate.toPath())))) {
+                byte[] marker = new byte[DIRSTATE_V2.length()];
+                in.readFully(marker);
+                boolean v2 = new String(marker, StandardCharsets.US_ASCII).equals(DIRSTATE_V2);
+                String p1, p2;
+                if (v2) {
+                    // docket: marker, then each parent padded to 32 bytes
+                    p1 = hex(in, 20);
+                    in.readFully(new byte[12]);
+                    p2 = hex(in, 20);
+                } else {
+                    // parents are the first 40 bytes
+                    p1 = hex(marker, 12, in, 20);
+                    p2 = hex(in, 20);
+                }
+                List<String> parents = new ArrayList<String>(2);
+                if (!p1.equals(NULL_NODE)) {
+                    parents.add(p1);
+                }
+                if (!p2.equals(NULL_NODE)) {
+                    parents.add(p2);
+                }
+                ws.parents = Collections.unmodifiableList(parents);
+                if (checkClean && !v2) {
+                    if (parents.size() == 2 || new File(hg, "merge").exists()) {
+                        ws.clean = false; // uncommitted merge, or unresolved conflicts from an update or rebase
+                    } else if (!new File(repository, ".hgsub").exists()) {
+                        ws.clean = clean(repository.toPath(), in);
+                    }
+                }
+            } catch (EOFException x) {
+                // truncated, leave unknown
+            }
+        } else {
+            ws.parents = Collections.emptyList(); // fresh clone with --noupdate
+            if (checkClean) {
+                ws.clean = true;
+            }
+        }
+        if (readRevlog) {
+            RevlogReader reader = RevlogReader.open(repository);
+            if (reader != null) {
+                try {
+                    if (ws.parents != null && !ws.parents.isEmpty()) {
+                        int rev = reader.rev(ws.parents.get(0));
+                        RevlogReader.Changeset cs = rev >= 0 ? reader.changeset(rev) : null;
+                        if (cs != null) {
+                            ws.parentRev = Integer.toString(rev);
+                            ws.parentBranch = cs.branch;
+                        }
+                    }
+                    if (target != null) {
+                        int rev = reader.lookup(target);
+                        if (rev >= 0) {
+                            ws.targetNode = reader.node(rev);
+                            RevlogReader.Changeset cs = reader.changeset(rev);
+                            if (cs != null) {
+                                ws.targetBranch = cs.branch;
+                            }
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+        }
+        return ws;
+    }
+
+    /**
+     * Finds {@code default} in the {@code [paths]} section of an {@code hgrc}.
+     * @return the value, or null if unset or if the file uses {@code %include} or {@code %unset}, which could affect it
+     */
+    static @CheckForNull String defaultPath(List<String> lines) {
+        String section = null;
+        String value = null;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            String trimmed = line.trim();
+            if (trimmed.startsWith("%include") || trimmed.startsWith("%unset")) {
+                return null;
+            }
+            if (trimmed.isEmpty() || trimmed.startsWith("#") || trimmed.startsWith(";") || Character.isWhitespace(line.charAt(0))) {
+                continue; // blank, comment, or continuation of a value we do not care about
+            }
+            if (trimmed.startsWith("[") && trimmed.endsWith("]")) {
+                section = trimmed.substring(1, trimmed.length() - 1).trim();
+                continue;
+            }
+            int eq = line.indexOf('=');
+            if (eq == -1 || !"paths".equals(section) || !line.substring(0, eq).trim().equals("default")) {
+                continue;
+            }
+            StringBuilder b = new StringBuilder(line.substring(eq + 1).trim());
+            while (i + 1 < lines.size() && !lines.get(i + 1).isEmpty() && Character.isWhitespace(lines.get(i + 1).charAt(0)) && !lines.get(i + 1).trim().isEmpty()) {
+                b.append('\n').append(lines.get(++i).trim());
+            }
+            value = b.toString(); // last definition wins
+        }
+        return value;
+    }
+
+    /**
+     * Compares version 1 dirstate entries with the files on disk, as {@code hg status} does before reading contents.
+     * @return true if no tracked file can have changed, false if one has, or null if a file would need its contents compared
+     */
+    private static @CheckForNull Boolean clean(Path root, DataInputStream in) throws IOException {
+        boolean posix = root.getFileSystem().supportedFileAttributeViews().contains("posix");
+        while (true) {
+            int state = in.read();
+            if (state == -1) {
+                return true;
+            }
+            int mode = in.readInt();
+            int size = in.readInt();
+            int mtime = in.readInt();
+            int length = in.readInt();
+            byte[] name = new byte[length];
+            in.readFully(name);
+            if (state != 'n') {
+                return false; // added, removed or merged
+            }
+            if (size < 0 || mtime == -1) {
+                return null; // dirstate itself is unsure
+            }
+            String file = new String(name, StandardCharsets.UTF_8);
+            int nul = file.indexOf('\0');
+            if (nul != -1) {
+                file = file.substring(0, nul); // copy source follows
+            }
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(root.resolve(file), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException x) {
+                return false; // missing
+            }
+            if (!attrs.isRegularFile()) {
+                return null; // symlink or replaced by a directory
+            }
+            if (attrs.size() != size) {
+                return false;
+            }
+            if ((int) ((attrs.lastModifiedTime().toMillis() / 1000) & RANGE_MASK) != mtime) {
+                return null; // touched; contents may or may not differ
+            }
+            if (posix && ((mode & 0100) != 0) != Files.isExecutable(root.resolve(file))) {
+                return false;
+            }
+        }
+    }
+
+    private static String hex(DataInputStream in, int length) throws IOException {
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return hex(b, 0, length);
+    }
+
+    private static String hex(byte[] head, int headLength, DataInputStream in, int length) throws IOException {
+        byte[] b = new byte[length];
+        System.arraycopy(head, 0, b, 0, headLength);
+        in.readFully(b, headLength, length - headLength);
+        return hex(b, 0, length);
+    }
+
+    private static String hex(byte[] b, int offset, int length) {
+        StringBuilder s = new StringBuilder(length * 2);
+        for (int i = offset; i < offset + length; i++) {
+            s.append(Character.forDigit((b[i] >> 4) & 0xF, 16)).append(Character.forDigit(b[i] & 0xF, 16));
+        }
+        return s.toString();
+    }
+
+}
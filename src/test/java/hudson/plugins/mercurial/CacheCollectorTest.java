@@ -0,0 +1,169 @@
+package hudson.plugins.mercurial;
+
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CacheCollectorTest {
+
+    private static final long OLD = System.currentTimeMillis() - CacheCollector.MINIMUM_AGE - TimeUnit.MINUTES.toMillis(5);
+
+    @TempDir
+    private File tmp;
+
+    @Test
+    void isIncomplete() throws Exception {
+        FilePath cache = new FilePath(tmp).child("c");
+        FilePath store = cache.child(".hg/store");
+        store.mkdirs();
+        assertTrue(CacheCollector.isIncomplete(cache), "just initialized");
+        store.child("00changelog.i").write("x", "UTF-8");
+        assertFalse(CacheCollector.isIncomplete(cache));
+        store.child("journal").write("x", "UTF-8");
+        assertTrue(CacheCollector.isIncomplete(cache), "interrupted transaction");
+    }
+
+    @Test
+    void deletesOldIncompleteCaches() throws Exception {
+        FilePath empty = cache("empty", false, false);
+        FilePath journal = cache("journal", true, true);
+        age(empty);
+        age(journal);
+        assertTrue(CacheCollector.collect(empty, new ReentrantLock(), "xfer.hg", true, TaskListener.NULL) > 0);
+        assertFalse(empty.exists());
+        assertTrue(CacheCollector.collect(journal, new ReentrantLock(), "xfer.hg", true, TaskListener.NULL) > 0);
+        assertFalse(journal.exists());
+    }
+
+    @Test
+    void keepsIncompleteCachesUnlessAllowed() throws Exception {
+        FilePath empty = cache("empty", false, false);
+        age(empty);
+        assertEquals(0, CacheCollector.collect(empty, new ReentrantLock(), "xfer-*.hg", false, TaskListener.NULL));
+        assertTrue(empty.exists());
+    }
+
+    @Test
+    void keepsYoungIncompleteCaches() throws Exception {
+        FilePath empty = cache("empty", false, false);
+        assertEquals(0, CacheCollector.collect(empty, new ReentrantLock(), "xfer.hg", true, TaskListener.NULL));
+        assertTrue(empty.exists());
+    }
+
+    @Test
+    void deletesOnlyOldBundles() throws Exception {
+        FilePath complete = cache("complete", true, false);
+        FilePath old = complete.child("xfer-agent1.hg");
+        old.write("12345", "UTF-8");
+        old.touch(OLD);
+        FilePath young = complete.child("xfer-agent2.hg");
+        young.write("12345", "UTF-8");
+        age(complete);
+        assertEquals(5, CacheCollector.collect(complete, new ReentrantLock(), "xfer-*.hg", false, TaskListener.NULL));
+        assertFalse(old.exists());
+        assertTrue(young.exists());
+        assertTrue(complete.child(".hg/store/00changelog.i").exists());
+    }
+
+    @Test
+    void skipsLockedCaches() throws Exception {
+        FilePath empty = cache("empty", false, false);
+        FilePath bundle = empty.child("xfer.hg");
+        bundle.write("12345", "UTF-8");
+        bundle.touch(OLD);
+        age(empty);
+        final ReentrantLock lock = new ReentrantLock();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            lock.lock();
+            try {
+                locked.countDown();
+                done.await();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        });
+        holder.start();
+        try {
+            locked.await();
+            assertEquals(0, CacheCollector.collect(empty, lock, "xfer.hg", true, TaskListener.NULL));
+            assertTrue(bundle.exists());
+        } finally {
+            done.countDown();
+            holder.join();
+        }
+        assertTrue(CacheCollector.collect(empty, lock, "xfer.hg", true, TaskListener.NULL) > 0);
+        assertFalse(empty.exists());
+    }
+
+    @Test
+    void deletesOnlyStaleMirrors() throws Exception {
+        FilePath stale = cache("stale-mirror", true, false);
+        stale.touch(System.currentTimeMillis() - CacheCollector.MIRROR_MAXIMUM_AGE - TimeUnit.MINUTES.toMillis(5));
+        FilePath recent = cache("recent-mirror", true, false);
+        recent.touch(OLD);
+        assertTrue(CacheCollector.collectMirror(stale, TaskListener.NULL) > 0);
+        assertFalse(stale.exists());
+        assertEquals(0, CacheCollector.collectMirror(recent, TaskListener.NULL));
+        assertTrue(recent.exists());
+    }
+
+    @Test
+    void skipsLockedMirrors() throws Exception {
+        FilePath mirror = cache("locked-mirror", true, false);
+        mirror.touch(System.currentTimeMillis() - CacheCollector.MIRROR_MAXIMUM_AGE - TimeUnit.MINUTES.toMillis(5));
+        ReentrantLock lock = PollMirror.tryLock(mirror.getName());
+        assertNotNull(lock);
+        try {
+            // held by this thread here, but by a polling thread in practice
+            final long[] reclaimed = {-1};
+            Thread other = new Thread(() -> {
+                try {
+                    reclaimed[0] = CacheCollector.collectMirror(mirror, TaskListener.NULL);
+                } catch (Exception x) {
+                    x.printStackTrace();
+                }
+            });
+            other.start();
+            other.join();
+            assertEquals(0, reclaimed[0]);
+            assertTrue(mirror.exists());
+        } finally {
+            lock.unlock();
+        }
+        assertTrue(CacheCollector.collectMirror(mirror, TaskListener.NULL) > 0);
+        assertFalse(mirror.exists());
+    }
+
+    private FilePath cache(String name, boolean changelog, boolean journal) throws Exception {
+        FilePath cache = new FilePath(tmp).child(name);
+        FilePath store = cache.child(".hg/store");
+        store.mkdirs();
+        if (changelog) {
+            store.child("00changelog.i").write("x", "UTF-8");
+        }
+        if (journal) {
+            store.child("journal").write("x", "UTF-8");
+        }
+        return cache;
+    }
+
+    /** Backdates the cache directory itself, which is what {@link CacheCollector} checks for incomplete caches. */
+    private static void age(FilePath cache) throws Exception {
+        cache.touch(OLD);
+    }
+
+}
@@ -4,6 +4,8 @@ import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.cloudbees.plugins.credentials.impl.BaseStandardCredentials;
 import hudson.util.Secret;
+import java.io.File;
+import java.util.Arrays;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
@@ -24,6 +26,14 @@ class CacheTest {
 				Cache.hashSource("http://hg.netbeans.org/core-main/", new MockUsernamePasswordCredentials(CredentialsScope.GLOBAL, "what-ever", "bob@nowhere.net"),null));
     }
 
+    @Test
+    void hashSourceStableWhenAddingRoots() {
+        String both = "/var/tmp/hgcache" + File.pathSeparator + "/mnt/disk2/hgcache";
+        assertEquals(Cache.hashSource("ssh://dudette@math.utexas.edu/some/project/", null, "/var/tmp/hgcache"),
+                Cache.hashSource("ssh://dudette@math.utexas.edu/some/project/", null, both));
+        assertEquals(Arrays.asList("/var/tmp/hgcache", "/mnt/disk2/hgcache"), MercurialInstallation.parseMasterCacheRoots(both + File.pathSeparator));
+    }
+
     @Issue("JENKINS-12544")
     @Test
     void hashSource2() {
@@ -0,0 +1,124 @@
+package hudson.plugins.mercurial;
+
+import hudson.cli.CLICommandInvoker;
+import java.io.File;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.htmlunit.HttpMethod;
+import org.htmlunit.Page;
+import org.htmlunit.WebRequest;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.MockAuthorizationStrategy;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.startsWith;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+@WithJenkins
+class CacheWarmupTaskTest {
+
+    private static final String CACHING_INSTALLATION = "caching";
+
+    private JenkinsRule j;
+    private MercurialTestUtil m;
+    @TempDir
+    private File repo;
+
+    @BeforeEach
+    void beforeEach(JenkinsRule rule) {
+        j = rule;
+        m = new MercurialTestUtil(j);
+        j.jenkins.getDescriptorByType(MercurialInstallation.DescriptorImpl.class).setInstallations(
+                new MercurialInstallation(CACHING_INSTALLATION, "", "hg", false, true, false, Collections.emptyList()));
+        j.jenkins.setSecurityRealm(j.createDummySecurityRealm());
+        j.jenkins.setAuthorizationStrategy(new MockAuthorizationStrategy()
+                .grant(Jenkins.READ).everywhere().to("bob")
+                .grant(Jenkins.ADMINISTER).everywhere().to("alice"));
+    }
+
+    @Test
+    void restRequiresAdminister() throws Exception {
+        int before = CacheWarmupTask.all().size();
+        JenkinsRule.WebClient wc = j.createWebClient().login("bob");
+        wc.setThrowExceptionOnFailingStatusCode(false);
+        Page page = wc.getPage(warmRequest(wc));
+        assertEquals(403, page.getWebResponse().getStatusCode());
+        page = wc.goTo("manage/" + MercurialManagementLink.URL_NAME + "/tasks", null);
+        assertEquals(403, page.getWebResponse().getStatusCode());
+        assertEquals(before, CacheWarmupTask.all().size());
+    }
+
+    @Test
+    void cliRequiresAdminister() {
+        int before = CacheWarmupTask.all().size();
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, new WarmCacheCommand()).asUser("bob").invokeWithArgs(repo.getPath());
+        assertThat(result, CLICommandInvoker.Matcher.failedWith(6));
+        assertThat(result.stderr(), containsString(Jenkins.ADMINISTER.name));
+        assertEquals(before, CacheWarmupTask.all().size());
+    }
+
+    @Test
+    void restWarmsControllerCache() throws Exception {
+        m.hg(repo, "init");
+        m.touchAndCommit(repo, "a");
+        JenkinsRule.WebClient wc = j.createWebClient().login("alice");
+        Page page = wc.getPage(warmRequest(wc));
+        JSONArray scheduled = JSONObject.fromObject(page.getWebResponse().getContentAsString(StandardCharsets.UTF_8)).getJSONArray("data");
+        assertEquals(1, scheduled.size());
+        CacheWarmupTask task = CacheWarmupTask.get(scheduled.getJSONObject(0).getLong("id"));
+        assertNotNull(task);
+        awaitDone(task);
+        assertEquals(CacheWarmupTask.State.SUCCEEDED, task.getState(), task.getLog());
+        Page status = wc.goTo("manage/" + MercurialManagementLink.URL_NAME + "/task?id=" + task.getId(), "application/json");
+        assertThat(status.getWebResponse().getContentAsString(), containsString("\"SUCCEEDED\""));
+    }
+
+    @Test
+    void cliWarmsControllerCache() throws Exception {
+        m.hg(repo, "init");
+        m.touchAndCommit(repo, "a");
+        CLICommandInvoker.Result result = new CLICommandInvoker(j, new WarmCacheCommand()).asUser("alice").invokeWithArgs("-wait", repo.getPath());
+        assertThat(result, CLICommandInvoker.Matcher.succeeded());
+        assertThat(result.stdout(), containsString(": SUCCEEDED"));
+    }
+
+    @Test
+    void logKeepsOnlyTail() {
+        CacheWarmupTask.BoundedLog log = new CacheWarmupTask.BoundedLog(10);
+        byte[] line = "0123456789\n".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 100; i++) {
+            log.write(line, 0, line.length);
+        }
+        String text = log.getText();
+        assertThat(text, startsWith("[earlier output truncated]\n"));
+        assertEquals("123456789\n", text.substring(text.indexOf('\n') + 1));
+        CacheWarmupTask.BoundedLog small = new CacheWarmupTask.BoundedLog(10);
+        small.write('x');
+        assertEquals("x", small.getText());
+        assertFalse(small.getText().contains("truncated"));
+    }
+
+    private WebRequest warmRequest(JenkinsRule.WebClient wc) throws Exception {
+        WebRequest req = new WebRequest(new URL(j.getURL(), "manage/" + MercurialManagementLink.URL_NAME + "/warm?installation=" + CACHING_INSTALLATION + "&url=" + URLEncoder.encode(repo.getPath(), StandardCharsets.UTF_8)), HttpMethod.POST);
+        return wc.addCrumb(req);
+    }
+
+    private static void awaitDone(CacheWarmupTask task) throws InterruptedException {
+        while (!task.isDone()) {
+            Thread.sleep(100);
+        }
+    }
+
+}
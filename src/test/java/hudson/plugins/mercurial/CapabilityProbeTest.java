@@ -0,0 +1,92 @@
+package hudson.plugins.mercurial;
+
+import hudson.slaves.DumbSlave;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CapabilityProbeTest {
+
+    private static final String VERSION_OUTPUT = "Mercurial Distributed SCM (version 6.5.2)\n"
+            + "(see https://mercurial-scm.org for more information)\n"
+            + "\n"
+            + "Copyright (C) 2005-2023 Olivia Mackall and others\n"
+            + "This is free software; see the source for copying conditions.\n"
+            + "\n"
+            + "Enabled extensions:\n"
+            + "\n"
+            + "  share       internal  \n"
+            + "  purge       internal  \n"
+            + "  largefiles  internal  \n"
+            + "  evolve      external  11.0.2\n";
+
+    @Test
+    void parseVersion() {
+        assertEquals("6.5.2", CapabilityProbe.parseVersion(VERSION_OUTPUT));
+        assertEquals("4.4+12-abcdef", CapabilityProbe.parseVersion("Mercurial Distributed SCM (version 4.4+12-abcdef)\n"));
+        assertNull(CapabilityProbe.parseVersion("hg: unknown command 'version'\n"));
+    }
+
+    @Test
+    void parseExtensions() {
+        assertEquals(new TreeSet<String>(Arrays.asList("largefiles", "purge", "share")), CapabilityProbe.parseExtensions(VERSION_OUTPUT));
+        assertEquals(Collections.emptySet(), CapabilityProbe.parseExtensions("Mercurial Distributed SCM (version 6.5.2)\n"));
+    }
+
+    @Test
+    void parseCompressionEngines() {
+        assertEquals(new TreeSet<String>(Arrays.asList("none", "zlib", "zstd")), CapabilityProbe.parseCompressionEngines("zlib, zstd, none\n"));
+        assertEquals(Collections.emptySet(), CapabilityProbe.parseCompressionEngines(""));
+    }
+
+    @WithJenkins
+    @Test
+    void forgetsDeletedNodes(JenkinsRule r) throws Exception {
+        DumbSlave kept = r.createSlave(), deleted = r.createSlave();
+        String keptKey = CapabilityProbe.key(kept, null, "hg"), deletedKey = CapabilityProbe.key(deleted, null, "hg");
+        CapabilityProbe.remember(keptKey, new CapabilityProbe.Capabilities(kept.getNodeName(), "", "6.5", new TreeSet<String>(), new TreeSet<String>(), null, null));
+        CapabilityProbe.remember(deletedKey, new CapabilityProbe.Capabilities(deleted.getNodeName(), "", "6.5", new TreeSet<String>(), new TreeSet<String>(), null, null));
+        assertTrue(nodes().contains(deleted.getNodeName()));
+        r.jenkins.removeNode(deleted);
+        assertFalse(nodes().contains(deleted.getNodeName()));
+        assertTrue(nodes().contains(kept.getNodeName()));
+    }
+
+    private static Set<String> nodes() {
+        Set<String> nodes = new TreeSet<String>();
+        for (CapabilityProbe.Capabilities caps : CapabilityProbe.all()) {
+            nodes.add(caps.getNode());
+        }
+        return nodes;
+    }
+
+    @Test
+    void atLeast() {
+        CapabilityProbe.Capabilities caps = capabilities("5.9.3", "zstd");
+        assertTrue(caps.atLeast("3.3"));
+        assertTrue(caps.atLeast("5.9.3"));
+        assertFalse(caps.atLeast("6.0"));
+        assertFalse(capabilities(null).atLeast("1.5"));
+    }
+
+    @Test
+    void bundleType() {
+        assertEquals("zstd-v2", CapabilityProbe.bundleType(capabilities("6.5", "zlib", "zstd"), capabilities("5.0", "zstd")));
+        assertNull(CapabilityProbe.bundleType(capabilities("6.5", "zlib", "zstd"), capabilities("5.0", "zlib")));
+        assertNull(CapabilityProbe.bundleType(capabilities("6.5", "zstd"), capabilities(null)));
+    }
+
+    private static CapabilityProbe.Capabilities capabilities(String version, String... engines) {
+        return new CapabilityProbe.Capabilities("agent", "default", version, new TreeSet<String>(), new TreeSet<String>(Arrays.asList(engines)), null, null);
+    }
+
+}
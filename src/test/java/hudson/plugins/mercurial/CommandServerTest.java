@@ -0,0 +1,194 @@
+package hudson.plugins.mercurial;
+
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.model.TaskListener;
+import hudson.remoting.Channel;
+import hudson.util.ArgumentListBuilder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CommandServerTest {
+
+    private static final byte[] HELLO = "capabilities: getencoding runcommand\nencoding: UTF-8".getBytes(StandardCharsets.UTF_8);
+
+    @TempDir
+    private File tmp;
+
+    @Test
+    void runcommand() throws Exception {
+        Script server = new Script().message('o', HELLO)
+                .message('o', "abc\n".getBytes(StandardCharsets.UTF_8))
+                .message('d', "debug noise".getBytes(StandardCharsets.UTF_8))
+                .message('e', "warning\n".getBytes(StandardCharsets.UTF_8))
+                .request('I', 4096)
+                .request('L', 4096)
+                .message('o', "def\n".getBytes(StandardCharsets.UTF_8))
+                .result(1);
+        FakeProc proc = new FakeProc(server.bytes(), false);
+        CommandServer cs = CommandServer.connect("k", proc);
+        ByteArrayOutputStream error = new ByteArrayOutputStream();
+        CommandServer.Result result = cs.runcommand(Arrays.asList("log", "--rev", "tip"), error);
+        assertEquals(1, result.exitCode);
+        assertEquals("abc\ndef\n", new String(result.output, StandardCharsets.UTF_8));
+        assertEquals("warning\n", error.toString(StandardCharsets.UTF_8));
+        DataInputStream sent = new DataInputStream(new ByteArrayInputStream(proc.stdin.toByteArray()));
+        byte[] header = new byte["runcommand\n".length()];
+        sent.readFully(header);
+        assertEquals("runcommand\n", new String(header, StandardCharsets.US_ASCII));
+        byte[] command = new byte[sent.readInt()];
+        sent.readFully(command);
+        assertArrayEquals("log\0--rev\0tip".getBytes(StandardCharsets.UTF_8), command);
+        assertEquals(0, sent.readInt(), "end of input for I");
+        assertEquals(0, sent.readInt(), "end of input for L");
+        assertEquals(-1, sent.read());
+    }
+
+    @Test
+    void badGreeting() throws Exception {
+        FakeProc proc = new FakeProc(new Script().message('o', "capabilities: getencoding".getBytes(StandardCharsets.UTF_8)).bytes(), false);
+        assertThrows(IOException.class, () -> CommandServer.connect("k", proc));
+        assertEquals(0, proc.killed.getCount(), "killed after failed greeting");
+    }
+
+    @Test
+    void unsupportedRequiredChannel() throws Exception {
+        CommandServer cs = CommandServer.connect("k", new FakeProc(new Script().message('o', HELLO).message('X', new byte[0]).bytes(), false));
+        assertThrows(IOException.class, () -> cs.runcommand(Arrays.asList("id"), new ByteArrayOutputStream()));
+    }
+
+    @Test
+    void serverExits() throws Exception {
+        CommandServer cs = CommandServer.connect("k", new FakeProc(new Script().message('o', HELLO).message('o', "partial".getBytes(StandardCharsets.UTF_8)).bytes(), false));
+        assertThrows(EOFException.class, () -> cs.runcommand(Arrays.asList("id"), new ByteArrayOutputStream()));
+    }
+
+    @WithJenkins
+    @Test
+    void fallsBackWhenServerFails(JenkinsRule r) throws Exception {
+        FakeProc proc = new FakeProc(new Script().message('o', "not a command server".getBytes(StandardCharsets.UTF_8)).bytes(), false);
+        assertNull(CommandServer.run(r.jenkins, new FakeLauncher(proc), new ArgumentListBuilder("hg"), new EnvVars(), new FilePath(tmp),
+                new ArgumentListBuilder("id"), new ByteArrayOutputStream(), null));
+    }
+
+    @WithJenkins
+    @Test
+    void killsHungServer(JenkinsRule r) throws Exception {
+        FakeProc proc = new FakeProc(new Script().message('o', HELLO).bytes(), true);
+        Timeouts.Limit limit = new Timeouts.Limit(Timeouts.Operation.QUERY, 500, null, 0);
+        AbortException x = assertThrows(AbortException.class, () -> CommandServer.run(r.jenkins, new FakeLauncher(proc), new ArgumentListBuilder("hg"), new EnvVars(),
+                new FilePath(tmp), new ArgumentListBuilder("heads"), new ByteArrayOutputStream(), limit));
+        assertThat(x.getMessage(), containsString("hg heads in " + tmp));
+        assertEquals(0, proc.killed.getCount());
+    }
+
+    /**
+     * Builds what a command server would print.
+     */
+    private static final class Script {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(buf);
+        Script message(char channel, byte[] payload) throws IOException {
+            out.write(channel);
+            out.writeInt(payload.length);
+            out.write(payload);
+            return this;
+        }
+        Script request(char channel, int size) throws IOException {
+            out.write(channel);
+            out.writeInt(size);
+            return this;
+        }
+        Script result(int exitCode) throws IOException {
+            ByteArrayOutputStream code = new ByteArrayOutputStream();
+            new DataOutputStream(code).writeInt(exitCode);
+            return message('r', code.toByteArray());
+        }
+        byte[] bytes() {
+            return buf.toByteArray();
+        }
+    }
+
+    private static final class FakeProc extends Proc {
+        final CountDownLatch killed = new CountDownLatch(1);
+        final ByteArrayOutputStream stdin = new ByteArrayOutputStream();
+        private final InputStream stdout;
+        /**
+         * @param hang whether to block after the scripted output until killed, rather than reaching end of file
+         */
+        FakeProc(byte[] script, boolean hang) {
+            InputStream scripted = new ByteArrayInputStream(script);
+            stdout = hang ? new SequenceInputStream(scripted, new InputStream() {
+                @Override public int read() throws IOException {
+                    try {
+                        killed.await();
+                    } catch (InterruptedException x) {
+                        throw new IOException(x);
+                    }
+                    return -1;
+                }
+            }) : scripted;
+        }
+        @Override public boolean isAlive() {
+            return killed.getCount() > 0;
+        }
+        @Override public void kill() {
+            killed.countDown();
+        }
+        @Override public int join() throws InterruptedException {
+            killed.await();
+            return 0;
+        }
+        @Override public InputStream getStdout() {
+            return stdout;
+        }
+        @Override public InputStream getStderr() {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        @Override public OutputStream getStdin() {
+            return stdin;
+        }
+    }
+
+    private static final class FakeLauncher extends Launcher {
+        private final Proc proc;
+        FakeLauncher(Proc proc) {
+            super(TaskListener.NULL, null);
+            this.proc = proc;
+        }
+        @Override public Proc launch(ProcStarter starter) {
+            return proc;
+        }
+        @Override public Channel launchChannel(String[] cmd, OutputStream out, FilePath workDir, Map<String, String> envVars) {
+            throw new UnsupportedOperationException();
+        }
+        @Override public void kill(Map<String, String> modelEnvVars) {}
+    }
+
+}
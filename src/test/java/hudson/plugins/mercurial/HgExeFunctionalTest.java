@@ -28,13 +28,17 @@ import com.cloudbees.jenkins.plugins.sshcredentials.impl.BasicSSHUserPrivateKey;
 import com.cloudbees.plugins.credentials.CredentialsScope;
 import com.cloudbees.plugins.credentials.impl.UsernamePasswordCredentialsImpl;
 import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Functions;
 import hudson.Launcher;
 import hudson.model.TaskListener;
 import hudson.util.ArgumentListBuilder;
 import hudson.util.StreamTaskListener;
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -42,11 +46,18 @@ import org.apache.commons.io.FileUtils;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
 
 
 @WithJenkins
@@ -59,6 +70,8 @@ class HgExeFunctionalTest {
     private TaskListener listener;
     private Launcher launcher;
     private EnvVars vars;
+    @TempDir
+    private File tmp;
 
     @BeforeEach
     void beforeEach(JenkinsRule rule) {
@@ -107,6 +120,139 @@ class HgExeFunctionalTest {
         }
     }
 
+    @Test
+    void credentialsSSHKeyFileShared() throws Exception {
+        BasicSSHUserPrivateKey credentials = new BasicSSHUserPrivateKey(
+                CredentialsScope.GLOBAL, "shared", "testuser", new BasicSSHUserPrivateKey.DirectEntryPrivateKeySource("test key\n"), null, null);
+        BasicSSHUserPrivateKey edited = new BasicSSHUserPrivateKey(
+                CredentialsScope.GLOBAL, "shared", "testuser", new BasicSSHUserPrivateKey.DirectEntryPrivateKeySource("new key\n"), null, null);
+        try (HgExe hg1 = new HgExe(mercurialInstallation, credentials, launcher, j.jenkins, listener, vars);
+             HgExe hg2 = new HgExe(mercurialInstallation, credentials, launcher, j.jenkins, listener, vars);
+             HgExe hg3 = new HgExe(mercurialInstallation, edited, launcher, j.jenkins, listener, vars)) {
+            String file1 = hg1.seed(false).toCommandArray()[2];
+            assertEquals(file1, hg2.seed(false).toCommandArray()[2]);
+            assertNotEquals(file1, hg3.seed(false).toCommandArray()[2]);
+        }
+    }
+
+    @Test
+    void sshMultiplexingSeparatesKeys() throws Exception {
+        assumeFalse(Functions.isWindows());
+        PerformanceProfile profile = new PerformanceProfile();
+        profile.setSshMultiplexing(true);
+        mercurialInstallation.setPerformanceProfile(profile);
+        BasicSSHUserPrivateKey one = new BasicSSHUserPrivateKey(
+                CredentialsScope.GLOBAL, "one", "testuser", new BasicSSHUserPrivateKey.DirectEntryPrivateKeySource("key one\n"), null, null);
+        BasicSSHUserPrivateKey two = new BasicSSHUserPrivateKey(
+                CredentialsScope.GLOBAL, "two", "testuser", new BasicSSHUserPrivateKey.DirectEntryPrivateKeySource("key two\n"), null, null);
+        try (HgExe hg1 = new HgExe(mercurialInstallation, one, launcher, j.jenkins, listener, vars);
+             HgExe hg2 = new HgExe(mercurialInstallation, two, launcher, j.jenkins, listener, vars);
+             HgExe anonymous = new HgExe(mercurialInstallation, null, launcher, j.jenkins, listener, vars)) {
+            String path1 = controlPath(hg1), path2 = controlPath(hg2), path = controlPath(anonymous);
+            assertNotEquals(path1, path2);
+            assertNotEquals(path, path1);
+            assertTrue(path1.endsWith("%C"), path1);
+        }
+    }
+
+    private static String controlPath(HgExe hg) {
+        String ssh = null;
+        for (String arg : hg.seed(false).toList()) {
+            if (arg.startsWith("ui.ssh=")) {
+                ssh = arg; // the last one wins
+            }
+        }
+        Matcher matcher = Pattern.compile("ControlPath=(\\S+)").matcher(String.valueOf(ssh));
+        assertTrue(matcher.find(), ssh);
+        return matcher.group(1);
+    }
+
+    @Test
+    void adaptiveTimeoutRetriesWithConfiguredLimit() throws Exception {
+        assumeFalse(Functions.isWindows());
+        // stands in for hg: sleeps for as many seconds as its .delay file says
+        File fake = new File(tmp, "fakehg");
+        FileUtils.writeStringToFile(fake, "#!/bin/sh\nexec sleep \"$(cat \"$0.delay\")\"\n", StandardCharsets.US_ASCII);
+        assertTrue(fake.setExecutable(true));
+        File delay = new File(tmp, "fakehg.delay");
+        Timeouts timeouts = new Timeouts();
+        timeouts.setAdaptive(true);
+        timeouts.setPullMinutes(1);
+        MercurialInstallation inst = new MercurialInstallation(INSTALLATION, "", fake.getAbsolutePath(), false, false, false, Collections.emptyList());
+        inst.setTimeouts(timeouts);
+        FilePath ws = new FilePath(tmp);
+        long floor = Timeouts.FLOOR;
+        Timeouts.FLOOR = 500;
+        try (HgExe hg = new HgExe(inst, null, launcher, j.jenkins, listener, vars)) {
+            FileUtils.writeStringToFile(delay, "0", StandardCharsets.US_ASCII);
+            for (int i = 0; i < Timeouts.MIN_SAMPLES; i++) {
+                assertEquals(0, hg.join(hg.launch(hg.seed(false).add("pull")).pwd(ws), true));
+            }
+            FileUtils.writeStringToFile(delay, "2", StandardCharsets.US_ASCII);
+            assertNotEquals(0, hg.join(hg.launch(hg.seed(false).add("pull")).pwd(ws), true), "killed at the adapted limit");
+            assertEquals(0, hg.join(hg.launch(hg.seed(false).add("pull")).pwd(ws), true), "allowed the configured limit next time");
+        } finally {
+            Timeouts.FLOOR = floor;
+            Timeouts.clearHistory();
+        }
+    }
+
+    @Test
+    void popenKillsProcessWhenHandlerThrows() throws Exception {
+        assumeFalse(Functions.isWindows());
+        // `yes log` prints lines forever, so the process only ends if killed
+        MercurialInstallation endless = new MercurialInstallation(INSTALLATION, "", "yes", false, false, false, null, null);
+        try (HgExe hgexe = new HgExe(endless, null, launcher, j.jenkins, listener, vars)) {
+            FilePath dir = new FilePath(tmp);
+            assertTimeoutPreemptively(Duration.ofMinutes(1), () -> {
+                // more than the node may run at once, so a leaked ProcessLimiter permit would block
+                for (int i = 0; i <= ProcessLimiter.MAX_PER_NODE; i++) {
+                    IOException x = assertThrows(IOException.class, () -> hgexe.popen(dir, listener, false, new ArgumentListBuilder("log"), line -> {
+                        throw new IOException("handler failed on " + line);
+                    }));
+                    assertEquals("handler failed on log", x.getMessage());
+                }
+                assertFalse(hgexe.popen(dir, listener, false, new ArgumentListBuilder("log"), line -> false));
+            });
+        }
+    }
+
+    @Test
+    void existsWithRhg() throws Exception {
+        MercurialTestUtil m = new MercurialTestUtil(j);
+        FilePath repo = new FilePath(tmp).child("repo");
+        repo.mkdirs();
+        m.hg(repo, "init");
+        m.touchAndCommit(repo, "dir/a", "b");
+        try (HgExe plain = new HgExe(mercurialInstallation, null, launcher, j.jenkins, listener, vars)) {
+            long hgRuns = files().getHgRuns();
+            assertTrue(plain.exists(repo, "tip", "dir"));
+            assertFalse(plain.exists(repo, "tip", "c"));
+            assertEquals(hgRuns, files().getHgRuns(), "not timed without rhg to compare against");
+        }
+        // hg accepts the same command line, including the rhg.on-unsupported setting
+        mercurialInstallation.setRhg("hg");
+        try (HgExe hg = new HgExe(mercurialInstallation, null, launcher, j.jenkins, listener, vars)) {
+            long rhgRuns = files().getRhgRuns(), fallbacks = files().getFallbacks();
+            assertTrue(hg.exists(repo, "tip", "dir"));
+            assertTrue(hg.exists(repo, "tip", "dir/a"));
+            assertTrue(hg.exists(repo, "tip", "b"));
+            assertFalse(hg.exists(repo, "tip", "c"));
+            assertFalse(hg.exists(repo, "tip", "di"));
+            assertEquals(rhgRuns + 5, files().getRhgRuns());
+            assertEquals(fallbacks, files().getFallbacks(), "no match is an answer, not a reason to run hg");
+        }
+    }
+
+    private static RhgStatistics.Command files() {
+        for (RhgStatistics.Command command : RhgStatistics.all()) {
+            if (command.getName().equals("files")) {
+                return command;
+            }
+        }
+        return new RhgStatistics.Command("files"); // not yet run
+    }
+
     @Issue("JENKINS-5723")
     @Test
     void customConfiguration() throws Exception {
@@ -24,8 +24,13 @@
 
 package hudson.plugins.mercurial;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 
@@ -47,4 +52,35 @@ class HgExeTest {
             assertFalse(HgExe.pathEquals("/var/hg/other", "file:/var/hg/stuff"));
         }
     }
+
+    @Test
+    void parseRevisionInfo() {
+        String a = "5703b34f17d5fec7bbff2f360c0b6c3d0b952f65", b = "9c2cb3c3a6b8f2d0d1f43c5e3e1bd8a8c4b0a2a1", c = "0123456789abcdef0123456789abcdef01234567";
+        String nul = "0000000000000000000000000000000000000000";
+        List<HgExe.RevisionInfo> infos = HgExe.parseRevisionInfo(
+                a + "\u001f0\u001fdefault\u001fpublic\u001f1300000000 -3600\u001f" + nul + "\u001f" + nul + "\u001f\u001e"
+                + b + "\u001f1\u001fstable\u001fdraft\u001f1300000100 0\u001f" + a + "\u001f" + c + "\u001ftip 1.0\u001e");
+        assertEquals(2, infos.size());
+        HgExe.RevisionInfo root = infos.get(0);
+        assertEquals(a, root.node);
+        assertEquals("0", root.rev);
+        assertEquals("default", root.branch);
+        assertEquals("public", root.phase);
+        assertEquals(1300000000000L, root.date);
+        assertEquals(Collections.emptyList(), root.parents);
+        assertEquals(Collections.emptyList(), root.tags);
+        HgExe.RevisionInfo merge = infos.get(1);
+        assertEquals("stable", merge.branch);
+        assertEquals(Arrays.asList(a, c), merge.parents);
+        assertEquals(Arrays.asList("tip", "1.0"), merge.tags);
+        assertEquals(Collections.emptyList(), HgExe.parseRevisionInfo(""));
+        // empty repository or --noupdate clone
+        List<HgExe.RevisionInfo> none = HgExe.parseRevisionInfo(nul + "\u001f-1\u001fdefault\u001fpublic\u001f0 0\u001f" + nul + "\u001f" + nul + "\u001f\u001e");
+        assertEquals(1, none.size());
+        assertEquals("-1", none.get(0).rev);
+        assertTrue(none.get(0).isNull());
+        assertFalse(root.isNull());
+        assertEquals(Collections.emptyList(), none.get(0).parents);
+        assertThrows(IllegalArgumentException.class, () -> HgExe.parseRevisionInfo("abort: unknown revision 'foo'!\n"));
+    }
 }
@@ -0,0 +1,58 @@
+package hudson.plugins.mercurial;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times {@link ModuleMatcher} against the former scan over all modules, for a merge touching many files.
+ * Not run as part of the build; start {@link #main} from an IDE or with {@code java -cp target/classes:target/test-classes}.
+ */
+public final class ModuleMatcherBenchmark {
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int modules = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        Set<String> prefixes = new HashSet<String>();
+        for (int i = 0; i < modules; i++) {
+            prefixes.add("components/module" + i + "/src/");
+        }
+        List<String> paths = new ArrayList<String>();
+        for (int i = 0; i < files; i++) {
+            paths.add("components/module" + (i % (modules * 2)) + "/src/main/java/org/example/File" + i + ".java");
+        }
+        ModuleMatcher matcher = ModuleMatcher.compile(prefixes);
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            int scanned = 0;
+            for (String path : paths) {
+                if (path.matches("[.]hg(ignore|tags)")) {
+                    continue;
+                }
+                String unix = path.replace('\\', '/');
+                for (String prefix : prefixes) {
+                    if (unix.startsWith(prefix)) {
+                        scanned++;
+                        break;
+                    }
+                }
+            }
+            long middle = System.nanoTime();
+            int matched = 0;
+            for (String path : paths) {
+                if (!path.equals(".hgignore") && !path.equals(".hgtags") && matcher.matches(path)) {
+                    matched++;
+                }
+            }
+            long end = System.nanoTime();
+            if (scanned != matched) {
+                throw new AssertionError(scanned + " vs. " + matched);
+            }
+            System.out.printf("%d files, %d modules: scan %d ms, trie %d ms%n", files, modules,
+                    TimeUnit.NANOSECONDS.toMillis(middle - start), TimeUnit.NANOSECONDS.toMillis(end - middle));
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package hudson.plugins.mercurial;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ModuleMatcherTest {
+
+    @Test
+    void matches() {
+        ModuleMatcher m = ModuleMatcher.compile(Arrays.asList("src/main", "doc", "src/main/java", "lib/a b/"));
+        assertTrue(m.matches("src/main/Foo.java"));
+        assertTrue(m.matches("src/main"));
+        assertTrue(m.matches("src\\main\\Foo.java"), "backslashes as in the old polling code");
+        assertTrue(m.matches("docs/index.html"), "plain string prefix");
+        assertTrue(m.matches("lib/a b/x.jar"));
+        assertFalse(m.matches("lib/a b"));
+        assertFalse(m.matches("src/mai"));
+        assertFalse(m.matches("src/test/Foo.java"));
+        assertFalse(m.matches(""));
+        assertEquals(Arrays.asList("doc", "lib/a b/", "src/main", "src/main/java"), m.getPrefixes());
+        assertFalse(ModuleMatcher.compile(Collections.<String>emptySet()).matches("x"));
+    }
+
+    /**
+     * Compares with the loop over {@link String#startsWith} which this replaced.
+     */
+    @Test
+    void parity() {
+        Random r = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            List<String> prefixes = new ArrayList<String>();
+            for (int i = r.nextInt(20); i >= 0; i--) {
+                prefixes.add(randomPath(r));
+            }
+            ModuleMatcher m = ModuleMatcher.compile(prefixes);
+            for (int i = 0; i < 1000; i++) {
+                String path = randomPath(r) + randomPath(r);
+                boolean expected = false;
+                for (String prefix : prefixes) {
+                    expected |= path.replace('\\', '/').startsWith(prefix);
+                }
+                assertEquals(expected, m.matches(path), path + " against " + prefixes);
+            }
+        }
+    }
+
+    /**
+     * Mercurial anchors {@code re:} patterns at the start of the path, as {@link Matcher#lookingAt} does.
+     */
+    @Test
+    void includePattern() {
+        assertEquals("re:(?:doc|lib/a b/|src/main\\.\\(x\\))", ModuleMatcher.compile(Arrays.asList("src/main.(x)", "doc", "lib/a b/")).toIncludePattern());
+        Random r = new Random(42);
+        for (int round = 0; round < 50; round++) {
+            List<String> prefixes = new ArrayList<String>();
+            for (int i = r.nextInt(20); i >= 0; i--) {
+                prefixes.add(randomPath(r).replace('\\', '/') + "+(*");
+            }
+            ModuleMatcher m = ModuleMatcher.compile(prefixes);
+            Pattern p = Pattern.compile(m.toIncludePattern().substring("re:".length()));
+            for (int i = 0; i < 1000; i++) {
+                String path = (randomPath(r) + "+(*" + randomPath(r)).replace('\\', '/');
+                assertEquals(m.matches(path), p.matcher(path).lookingAt(), path + " against " + prefixes);
+            }
+        }
+        assertFalse(Pattern.compile(ModuleMatcher.compile(Collections.<String>emptySet()).toIncludePattern().substring(3)).matcher("x").lookingAt());
+    }
+
+    private static String randomPath(Random r) {
+        StringBuilder b = new StringBuilder();
+        for (int i = r.nextInt(4); i >= 0; i--) {
+            b.append("ab/\\.".charAt(r.nextInt(5)));
+        }
+        return b.toString().replace('\\', r.nextBoolean() ? '\\' : '/');
+    }
+
+}
@@ -0,0 +1,17 @@
+package hudson.plugins.mercurial;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class PerformanceProfileTest {
+
+    @Test
+    void autoWorkers() {
+        assertEquals(8, PerformanceProfile.autoWorkers(8, 1));
+        assertEquals(4, PerformanceProfile.autoWorkers(16, 4));
+        assertEquals(1, PerformanceProfile.autoWorkers(2, 4));
+        assertEquals(8, PerformanceProfile.autoWorkers(8, 0), "built-in node with no executors");
+    }
+
+}
@@ -0,0 +1,22 @@
+package hudson.plugins.mercurial;
+
+import java.util.Collections;
+import org.junit.jupiter.api.BeforeEach;
+
+class PollMirrorSCMTest extends SCMTestBase {
+
+    private static final String POLL_MIRROR_INSTALLATION = "pollMirror";
+
+    @BeforeEach
+    void beforeEach() {
+        MercurialInstallation inst = new MercurialInstallation(POLL_MIRROR_INSTALLATION, "", "hg", false, false, false, Collections.emptyList());
+        inst.setUsePollMirror(true);
+        j.jenkins.getDescriptorByType(MercurialInstallation.DescriptorImpl.class).setInstallations(inst);
+    }
+
+    @Override
+    protected String hgInstallation() {
+        return POLL_MIRROR_INSTALLATION;
+    }
+
+}
@@ -0,0 +1,118 @@
+package hudson.plugins.mercurial;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PollResultCacheTest {
+
+    private final TaskListener listener = StreamTaskListener.fromStdout();
+
+    @AfterEach
+    void clear() {
+        PollResultCache.clear();
+    }
+
+    @Test
+    void key() {
+        assertEquals(PollResultCache.key("https://HG.example.com/repo/", null, "default", "abc"), PollResultCache.key(" https://hg.example.com/repo", null, "default", "abc"));
+        assertNotEquals(PollResultCache.key("https://hg.example.com/Repo", null, "default", "abc"), PollResultCache.key("https://hg.example.com/repo", null, "default", "abc"));
+        assertNotEquals(PollResultCache.key("https://hg.example.com/repo", null, "stable", "abc"), PollResultCache.key("https://hg.example.com/repo", null, "default", "abc"));
+        assertNotEquals(PollResultCache.key("https://hg.example.com/repo", null, "default", "def"), PollResultCache.key("https://hg.example.com/repo", null, "default", "abc"));
+        assertNotEquals(PollResultCache.key("https://hg.example.com/repo", "alice", "default", "abc"), PollResultCache.key("https://hg.example.com/repo", null, "default", "abc"), "credentials");
+        assertNotEquals(PollResultCache.key("https://hg.example.com/repo", "alice", "default", "abc"), PollResultCache.key("https://hg.example.com/repo", "bob", "default", "abc"));
+        assertEquals(PollResultCache.key("https://HG.example.com/repo", "alice", "default", "abc"), PollResultCache.key("https://hg.example.com/repo/", "alice", "default", "abc"));
+    }
+
+    @Test
+    void concurrentPollsShareOneComputation() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final PollResultCache.Computation slow = () -> {
+            computations.incrementAndGet();
+            started.countDown();
+            proceed.await();
+            return new PollResultCache.Result(null, Collections.singleton("src/Main.java"));
+        };
+        final PollResultCache.Result[] results = new PollResultCache.Result[2];
+        Thread first = new Thread(() -> {
+            try {
+                results[0] = PollResultCache.get("k", "a", listener, slow);
+            } catch (Exception x) {
+                throw new AssertionError(x);
+            }
+        });
+        first.start();
+        started.await();
+        Thread second = new Thread(() -> {
+            try {
+                results[1] = PollResultCache.get("k", "b", listener, slow);
+            } catch (Exception x) {
+                throw new AssertionError(x);
+            }
+        });
+        second.start();
+        proceed.countDown();
+        first.join();
+        second.join();
+        assertEquals(1, computations.get());
+        assertSame(results[0], results[1]);
+        assertEquals(Collections.singleton("src/Main.java"), results[1].changes);
+    }
+
+    @Test
+    void sameJobLooksAgain() throws Exception {
+        final AtomicInteger computations = new AtomicInteger();
+        PollResultCache.Computation count = () -> {
+            computations.incrementAndGet();
+            return new PollResultCache.Result(null, Collections.<String>emptySet());
+        };
+        PollResultCache.get("k", "a", listener, count);
+        PollResultCache.get("k", "b", listener, count);
+        assertEquals(1, computations.get());
+        PollResultCache.get("k", "a", listener, count);
+        assertEquals(2, computations.get(), "a polled again");
+        PollResultCache.get("k", "b", listener, count);
+        assertEquals(2, computations.get(), "b reuses the newer result");
+    }
+
+    @Test
+    void failuresAreNotRemembered() throws Exception {
+        assertThrows(IOException.class, () -> PollResultCache.get("k", "a", listener, () -> {
+            throw new IOException("pull failed");
+        }));
+        PollResultCache.Result result = new PollResultCache.Result(null, Collections.<String>emptySet());
+        assertSame(result, PollResultCache.get("k", "b", listener, () -> result));
+    }
+
+    @Test
+    void expiry() throws Exception {
+        long ttl = PollResultCache.TTL;
+        PollResultCache.TTL = 0;
+        try {
+            final AtomicInteger computations = new AtomicInteger();
+            PollResultCache.Computation count = () -> {
+                computations.incrementAndGet();
+                return new PollResultCache.Result(null, Collections.<String>emptySet());
+            };
+            PollResultCache.get("k", "a", listener, count);
+            Thread.sleep(1);
+            PollResultCache.get("k", "b", listener, count);
+            assertEquals(2, computations.get());
+        } finally {
+            PollResultCache.TTL = ttl;
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package hudson.plugins.mercurial;
+
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProcessLimiterTest {
+
+    @Test
+    void host() {
+        assertEquals("hg.example.com", ProcessLimiter.host(Arrays.asList("hg", "--config", "paths.x=https://elsewhere/", "clone", "--noupdate", "https://HG.example.com/repo", "/cache/x"), null));
+        assertEquals("hg.example.com", ProcessLimiter.host(Arrays.asList("hg", "pull", "--rev", "default"), "ssh://hg@hg.example.com/repo"));
+        assertNull(ProcessLimiter.host(Arrays.asList("hg", "pull", "/var/cache/x"), "ssh://hg@hg.example.com/repo"), "from a local cache");
+        assertNull(ProcessLimiter.host(Arrays.asList("hg", "pull"), null));
+        assertNull(ProcessLimiter.host(Arrays.asList("hg", "update", "--rev", "https://not.a.remote/"), null));
+        assertNull(ProcessLimiter.host(Arrays.asList("hg", "id", "--branch"), "https://hg.example.com/repo"));
+    }
+
+    @Test
+    void waitsAreReported() throws Exception {
+        int maxPerHost = ProcessLimiter.MAX_PER_HOST;
+        ProcessLimiter.MAX_PER_HOST = 1;
+        try {
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            final StreamTaskListener listener = new StreamTaskListener(log, StandardCharsets.UTF_8);
+            final ProcessLimiter.Permit first = ProcessLimiter.acquire("test-node", "waits.example.com", listener);
+            Thread releaser = new Thread(() -> {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException x) {
+                    return;
+                }
+                first.release();
+            });
+            releaser.start();
+            ProcessLimiter.acquire("test-node", "waits.example.com", listener).release();
+            releaser.join();
+            listener.getLogger().flush();
+            String output = log.toString(StandardCharsets.UTF_8.name());
+            assertTrue(output.contains("Waiting for a connection to waits.example.com"), output);
+            assertTrue(output.contains("ms for a connection to waits.example.com"), output);
+        } finally {
+            ProcessLimiter.MAX_PER_HOST = maxPerHost;
+        }
+    }
+
+}
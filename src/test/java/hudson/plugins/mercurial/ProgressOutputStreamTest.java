@@ -0,0 +1,55 @@
+package hudson.plugins.mercurial;
+
+import hudson.Launcher;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ProgressOutputStreamTest {
+
+    @Test
+    void separatesProgressFromOutput() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final List<String> progress = new ArrayList<String>();
+        try (ProgressOutputStream pos = new ProgressOutputStream(out) {
+            @Override protected void progress(String topic, long position, long total) {
+                progress.add(topic + ":" + position + ":" + total);
+            }
+        }) {
+            pos.write(("requesting all changes\n"
+                    + "\rchangesets  1/120\rchangesets 120/120\r                    \r"
+                    + "adding manifests\n"
+                    + "\rfiles   7/3456\r              \r"
+                    + "added 120 changesets with 3456 changes to 3456 files\r\n"
+                    + "new changesets 0123456789ab").getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("requesting all changes\nadding manifests\nadded 120 changesets with 3456 changes to 3456 files\nnew changesets 0123456789ab",
+                out.toString(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("changesets:1:120", "changesets:120:120", "files:7:3456"), progress);
+    }
+
+    @Test
+    void enableKeepsMasks() {
+        ArgumentListBuilder args = new ArgumentListBuilder("hg", "--config").addMasked("auth.jenkins.password=s3cr3t").add("pull");
+        Launcher.ProcStarter starter = new Launcher.LocalLauncher(StreamTaskListener.fromStdout()).launch().cmds(args).envs("HGPLAIN=true");
+        assertTrue(ProgressOutputStream.enable(starter));
+        List<String> cmds = starter.cmds();
+        assertEquals("progress.assume-tty=true", cmds.get(2));
+        int secret = cmds.indexOf("auth.jenkins.password=s3cr3t");
+        assertTrue(starter.masks()[secret]);
+        assertFalse(starter.masks()[secret + 1]);
+        assertEquals(cmds.size(), starter.masks().length);
+        assertEquals(Arrays.asList("HGPLAIN=true", "HGPLAINEXCEPT=progress"), Arrays.asList(starter.envs()));
+        assertFalse(ProgressOutputStream.enable(starter), "already enabled");
+    }
+
+}
@@ -0,0 +1,102 @@
+package hudson.plugins.mercurial;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RepositoryUpgraderTest {
+
+    @TempDir
+    private File tmp;
+
+    @Test
+    void requirements() throws Exception {
+        FilePath repo = new FilePath(tmp);
+        assertNull(RepositoryUpgrader.requirements(repo));
+        repo.child(".hg/requires").write("dotencode\nfncache\nshare-safe\nstore\n", "UTF-8");
+        repo.child(".hg/store/requires").write("generaldelta\nrevlogv1\n", "UTF-8");
+        assertEquals(new TreeSet<String>(Arrays.asList("dotencode", "fncache", "generaldelta", "revlogv1", "share-safe", "store")), RepositoryUpgrader.requirements(repo));
+    }
+
+    @Test
+    void missing() {
+        Set<String> old = new TreeSet<String>(Arrays.asList("dotencode", "fncache", "revlogv1", "store"));
+        assertEquals(new TreeSet<String>(Arrays.asList("dirstate-v2", "generaldelta", "revlog-compression-zstd", "share-safe", "sparserevlog")), RepositoryUpgrader.missing(old, false, false));
+        assertEquals(new TreeSet<String>(Arrays.asList("generaldelta", "revlog-compression-zstd", "share-safe", "sparserevlog")), RepositoryUpgrader.missing(old, false, true));
+        assertEquals(new TreeSet<String>(Arrays.asList("generaldelta", "revlog-compression-zstd", "sparserevlog")), RepositoryUpgrader.missing(old, true, false));
+        Set<String> shared = new TreeSet<String>(old);
+        shared.add("shared");
+        assertEquals(RepositoryUpgrader.missing(old, true, false), RepositoryUpgrader.missing(shared, false, true));
+    }
+
+    @WithJenkins
+    @Test
+    void ownersFollowCacheRoots(JenkinsRule r) throws Exception {
+        MercurialInstallation a = installation("a", "rootA", true);
+        MercurialInstallation b = installation("b", "rootB", true);
+        MercurialInstallation c = installation("c", "rootC", false);
+        MercurialInstallation sharesA = installation("sharesA", "rootA", true);
+        r.jenkins.getDescriptorByType(MercurialInstallation.DescriptorImpl.class).setInstallations(a, b, c, sharesA);
+        new File(tmp, "rootA/X").mkdirs();
+        new File(tmp, "rootB/Y").mkdirs();
+        new File(tmp, "rootC/Z").mkdirs();
+        Map<String, MercurialInstallation> owners = RepositoryUpgrader.owners();
+        assertEquals(new TreeSet<String>(Arrays.asList("X", "Y")), owners.keySet());
+        assertSame(a, owners.get("X"));
+        assertSame(b, owners.get("Y"));
+    }
+
+    @WithJenkins
+    @Test
+    void upgradesCacheAsCopy(JenkinsRule r) throws Exception {
+        MercurialInstallation inst = installation("a", "root", true);
+        r.jenkins.getDescriptorByType(MercurialInstallation.DescriptorImpl.class).setInstallations(inst);
+        MercurialTestUtil m = new MercurialTestUtil(r);
+        FilePath root = new FilePath(tmp).child("root");
+        FilePath cache = root.child("abc");
+        cache.mkdirs();
+        m.hg(cache, "--config", "format.generaldelta=no", "--config", "format.sparse-revlog=no", "init");
+        m.touchAndCommit(cache, "a");
+        String head = m.getLastChangesetId(cache);
+        assertFalse(RepositoryUpgrader.requirements(cache).contains("generaldelta"));
+        RepositoryUpgrader.get().execute(StreamTaskListener.fromStdout());
+        assertTrue(RepositoryUpgrader.requirements(cache).contains("generaldelta"));
+        assertEquals(head, m.getLastChangesetId(cache));
+        assertEquals(Collections.singletonList("abc"), names(root.listDirectories()), "copy swapped in, original gone");
+        for (FilePath dir : cache.child(".hg").listDirectories()) {
+            assertFalse(dir.getName().startsWith("upgradebackup."), "backup dropped once verified");
+        }
+    }
+
+    private static List<String> names(List<FilePath> files) {
+        List<String> names = new ArrayList<String>();
+        for (FilePath f : files) {
+            names.add(f.getName());
+        }
+        return names;
+    }
+
+    private MercurialInstallation installation(String name, String root, boolean upgradeFormats) {
+        MercurialInstallation inst = new MercurialInstallation(name, "", "hg", false, true, new File(tmp, root).getAbsolutePath(), false, null, null);
+        inst.setUpgradeFormats(upgradeFormats);
+        return inst;
+    }
+
+}
@@ -0,0 +1,219 @@
+package hudson.plugins.mercurial;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RevlogReaderTest {
+
+    private static final String MANIFEST = "0123456789abcdef0123456789abcdef01234567";
+    private static final String TEXT0 = MANIFEST + "\nalice\n1000 0\nf\n\ninit";
+    private static final String TEXT1 = MANIFEST + "\nalice\n2000 0 branch:stable\nf\n\nbranch";
+    private static final String TEXT2 = MANIFEST + "\nbob\n3000 0\nf\n\nmore";
+    private static final String NODE0 = "1111111111111111111111111111111111111111";
+    private static final String NODE1 = "2222222222222222222222222222222222222222";
+    private static final String NODE2 = "3333333333333333333333333333333333333333";
+
+    @TempDir
+    private File repo;
+
+    /**
+     * Writes an inline changelog with a root, a child on branch {@code stable} stored as a delta,
+     * and a second child of the root on {@code default}.
+     */
+    @BeforeEach
+    void createRepository() throws Exception {
+        File hg = new File(repo, ".hg");
+        File store = new File(hg, "store");
+        assertTrue(store.mkdirs());
+        Files.write(new File(hg, "requires").toPath(), "revlogv1\nstore\nfncache\n".getBytes(StandardCharsets.US_ASCII));
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        entry(index, ("u" + TEXT0).getBytes(StandardCharsets.UTF_8), 0, -1, NODE0);
+        entry(index, delta(0, TEXT0.length(), TEXT1), 0, 0, NODE1);
+        entry(index, ("u" + TEXT2).getBytes(StandardCharsets.UTF_8), 2, 0, NODE2);
+        byte[] data = index.toByteArray();
+        ByteBuffer.wrap(data).putInt(0, 1 | 1 << 16); // RevlogNG, inline
+        Files.write(new File(store, "00changelog.i").toPath(), data);
+    }
+
+    private static void entry(ByteArrayOutputStream index, byte[] chunk, int base, int p1, String node) {
+        ByteBuffer b = ByteBuffer.allocate(64);
+        b.putLong(0);
+        b.putInt(chunk.length);
+        b.putInt(chunk.length);
+        b.putInt(base);
+        b.putInt(0);
+        b.putInt(p1);
+        b.putInt(-1);
+        for (int i = 0; i < 40; i += 2) {
+            b.put((byte) Integer.parseInt(node.substring(i, i + 2), 16));
+        }
+        index.write(b.array(), 0, 64);
+        index.write(chunk, 0, chunk.length);
+    }
+
+    private static byte[] delta(int start, int end, String replacement) {
+        byte[] data = replacement.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(12 + data.length).putInt(start).putInt(end).putInt(data.length).put(data).array();
+    }
+
+    @Test
+    void readsIndexAndChangesets() throws Exception {
+        RevlogReader reader = RevlogReader.open(repo);
+        assertNotNull(reader);
+        assertEquals(3, reader.count());
+        assertEquals(NODE1, reader.node(1));
+        assertEquals(2, reader.rev(NODE2));
+        assertEquals(Arrays.asList(NODE2, NODE1), reader.heads());
+        assertEquals("stable", reader.changeset(1).branch);
+        assertEquals(2000000, reader.changeset(1).date);
+        assertEquals("default", reader.changeset(2).branch);
+        assertEquals(Arrays.asList(NODE2 + " default", NODE1 + " stable"), reader.branchHeads());
+        reader.close();
+    }
+
+    @Test
+    void lookup() throws Exception {
+        RevlogReader reader = RevlogReader.open(repo);
+        assertEquals(2, reader.lookup("tip"));
+        assertEquals(1, reader.lookup("1"));
+        assertEquals(0, reader.lookup(NODE0));
+        assertEquals(-1, reader.lookup("stable"), "might be a tag without a tag cache");
+        assertEquals(-1, reader.lookup("stable and not 0"));
+        assertEquals(-1, reader.lookup(null));
+        File cache = new File(repo, ".hg/cache");
+        assertTrue(cache.mkdirs());
+        Files.write(new File(cache, "tags2-visible").toPath(), ("2 " + NODE2 + "\n" + NODE0 + " v1.0\n").getBytes(StandardCharsets.US_ASCII));
+        assertEquals(1, reader.lookup("stable"));
+        assertEquals(0, reader.lookup("v1.0"));
+        assertEquals(Collections.singletonList("v1.0"), HgExe.parseRevisionInfo(reader.revisionInfo(0)).get(0).tags);
+        HgExe.RevisionInfo tip = HgExe.parseRevisionInfo(reader.revisionInfo(2)).get(0);
+        assertEquals(Arrays.asList(NODE0), tip.parents);
+        assertEquals(Collections.singletonList("tip"), tip.tags);
+        assertEquals("public", tip.phase);
+        reader.close();
+    }
+
+    @Test
+    void unsupportedFormats() throws Exception {
+        Files.write(new File(repo, ".hg/store/obsstore").toPath(), new byte[] {1});
+        assertNull(RevlogReader.open(repo));
+        Files.delete(new File(repo, ".hg/store/obsstore").toPath());
+        Files.write(new File(repo, ".hg/requires").toPath(), "revlogv1\nstore\nexp-something\n".getBytes(StandardCharsets.US_ASCII));
+        assertNull(RevlogReader.open(repo));
+    }
+
+    @Test
+    void patch() {
+        byte[] text = "one\ntwo\nthree\n".getBytes(StandardCharsets.US_ASCII);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        byte[] hunk1 = delta(0, 4, "uno\n");
+        byte[] hunk2 = delta(8, 14, "");
+        delta.write(hunk1, 0, hunk1.length);
+        delta.write(hunk2, 0, hunk2.length);
+        assertArrayEquals("uno\ntwo\n".getBytes(StandardCharsets.US_ASCII), RevlogReader.patch(text, delta.toByteArray()));
+    }
+
+    @Test
+    void parseChangesetTimezone() {
+        RevlogReader.Changeset cs = RevlogReader.parseChangeset((MANIFEST + "\nalice\n1300000000 -3600 branch:stable\nf\n\nmsg").getBytes(StandardCharsets.UTF_8));
+        assertEquals(1300000000000L, cs.date);
+        assertEquals(-3600, cs.timezone);
+        assertEquals("stable", cs.branch);
+    }
+
+    /**
+     * Compares with {@code hg} itself on a history where {@code default} continues from {@code stable},
+     * so the old {@code default} head has a descendant on its branch but no child there.
+     */
+    @WithJenkins
+    @Test
+    void matchesHg(JenkinsRule r, @TempDir File real) throws Exception {
+        MercurialTestUtil m = new MercurialTestUtil(r);
+        FilePath repo = new FilePath(real);
+        m.hg(repo, "--config", "format.revlog-compression=zlib", "init");
+        m.touchAndCommit(repo, "a"); // 0 default
+        m.hg(repo, "branch", "stable");
+        m.touchAndCommit(repo, "b"); // 1 stable
+        m.hg(repo, "heads"); // write the branch cache as of 1
+        File cache = new File(real, ".hg/cache");
+        File staleCache = new File(real, "stale-cache");
+        FileUtils.copyDirectory(cache, staleCache);
+        m.hg(repo, "branch", "default");
+        m.touchAndCommit(repo, "c"); // 2 default, replacing 0 as head
+        m.hg(repo, "update", "0");
+        repo.child("d").write("d", "UTF-8");
+        m.hg(repo, "add", "d");
+        m.hg(repo, "commit", "--date", "1300000000 -3600", "--message", "d"); // 3 default, a second head
+        m.hg(repo, "update", "1");
+        m.touchAndCommit(repo, "e"); // 4 stable
+        m.hg(repo, "tags"); // write the tag cache
+        TaskListener listener = StreamTaskListener.fromStdout();
+        try (HgExe hg = new HgExe(null, null, r.jenkins.createLauncher(listener), r.jenkins, listener, new EnvVars())) {
+            List<String> expected = Arrays.asList(hg.popen(repo, listener, false, new ArgumentListBuilder("heads", "--template", "{node} {branch}\\n")).split("\n"));
+            assertEquals(3, expected.size(), expected.toString());
+            String info = hg.popen(repo, listener, false, new ArgumentListBuilder("log", "--rev", "3", "--template", HgExe.REVISION_INFO_TEMPLATE));
+            FileUtils.deleteDirectory(cache);
+            assertEquals(expected, branchHeads(real), "computed from scratch");
+            FileUtils.copyDirectory(staleCache, cache);
+            assertEquals(expected, branchHeads(real), "updated from a stale cache");
+            m.hg(repo, "tags");
+            RevlogReader reader = RevlogReader.open(real);
+            assertNotNull(reader);
+            try {
+                String direct = reader.revisionInfo(3);
+                assertNotNull(direct);
+                assertTrue(direct.contains("\u001f1300000000 -3600\u001f"), direct);
+                HgExe.RevisionInfo expectedInfo = HgExe.parseRevisionInfo(info).get(0), actualInfo = HgExe.parseRevisionInfo(direct).get(0);
+                assertEquals(expectedInfo.node, actualInfo.node);
+                assertEquals(expectedInfo.rev, actualInfo.rev);
+                assertEquals(expectedInfo.branch, actualInfo.branch);
+                assertEquals(expectedInfo.phase, actualInfo.phase);
+                assertEquals(expectedInfo.date, actualInfo.date);
+                assertEquals(expectedInfo.parents, actualInfo.parents);
+                assertEquals(expectedInfo.tags, actualInfo.tags);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    private static List<String> branchHeads(File repo) throws Exception {
+        RevlogReader reader = RevlogReader.open(repo);
+        assertNotNull(reader, "supported format");
+        try {
+            return reader.branchHeads();
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    void parseExtra() {
+        assertEquals("a\nb", RevlogReader.parseExtra("branch:a\\nb\0close:1").get("branch"));
+        assertEquals("1", RevlogReader.parseExtra("branch:a\\nb\0close:1").get("close"));
+    }
+
+}
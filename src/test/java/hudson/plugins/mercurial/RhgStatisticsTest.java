@@ -0,0 +1,33 @@
+package hudson.plugins.mercurial;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RhgStatisticsTest {
+
+    @Test
+    void savedTime() {
+        RhgStatistics.rhg("test-saved", 5000000);
+        RhgStatistics.rhg("test-saved", 15000000);
+        RhgStatistics.fallback("test-saved");
+        RhgStatistics.Command command = find("test-saved");
+        assertEquals(0, command.getSavedMillis(), "hg not yet timed");
+        RhgStatistics.hg("test-saved", 210000000);
+        assertEquals(2, command.getRhgRuns());
+        assertEquals(1, command.getFallbacks());
+        assertEquals(10, command.getMeanRhgMillis());
+        assertEquals(210, command.getMeanHgMillis());
+        assertEquals(400, command.getSavedMillis());
+    }
+
+    private static RhgStatistics.Command find(String name) {
+        for (RhgStatistics.Command command : RhgStatistics.all()) {
+            if (command.getName().equals(name)) {
+                return command;
+            }
+        }
+        throw new AssertionError(name);
+    }
+
+}
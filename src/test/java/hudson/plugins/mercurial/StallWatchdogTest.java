@@ -0,0 +1,72 @@
+package hudson.plugins.mercurial;
+
+import hudson.FilePath;
+import hudson.Functions;
+import hudson.Launcher;
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeFalse;
+
+class StallWatchdogTest {
+
+    @TempDir
+    private File repo;
+
+    @Test
+    void outputCountsAsActivity() throws Exception {
+        StallWatchdog watchdog = new StallWatchdog(1000, StreamTaskListener.fromStdout(), "hg pull", null);
+        long later = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        assertTrue(watchdog.stalled(later));
+        Thread.sleep(10);
+        try (OutputStream out = watchdog.monitor(new ByteArrayOutputStream())) {
+            out.write('\r');
+        }
+        assertFalse(watchdog.stalled(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500)));
+    }
+
+    @Test
+    void queriesAreNotWatched() throws Exception {
+        assumeFalse(Functions.isWindows());
+        // stands in for hg: quiet for three seconds, then prints a last line without a newline
+        File fake = new File(repo, "fakehg");
+        Files.write(fake.toPath(), "#!/bin/sh\nsleep 3\nprintf done\n".getBytes(StandardCharsets.US_ASCII));
+        assertTrue(fake.setExecutable(true));
+        TaskListener listener = StreamTaskListener.fromStdout();
+        Launcher strict = StallWatchdog.decorate(new Launcher.LocalLauncher(listener), 1000, listener);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(0, strict.launch().cmds(fake.getAbsolutePath(), "status").stdout(out).join(), "a quiet query runs to completion");
+        assertEquals("done", out.toString(StandardCharsets.UTF_8));
+        assertNotEquals(0, strict.launch().cmds(fake.getAbsolutePath(), "pull").stdout(new ByteArrayOutputStream()).join(), "a quiet pull is killed");
+        Launcher lenient = StallWatchdog.decorate(new Launcher.LocalLauncher(listener), TimeUnit.MINUTES.toMillis(1), listener);
+        out.reset();
+        assertEquals(0, lenient.launch().cmds(fake.getAbsolutePath(), "pull").stdout(out).join());
+        assertEquals("done", out.toString(StandardCharsets.UTF_8), "last line passed through the progress filter");
+    }
+
+    @Test
+    void lockHolders() throws Exception {
+        FilePath root = new FilePath(repo);
+        assertEquals(Collections.emptyList(), StallWatchdog.lockHolders(root));
+        File store = new File(repo, ".hg/store");
+        assertTrue(store.mkdirs());
+        Files.createSymbolicLink(new File(store, "lock").toPath(), new File("build-host:4321").toPath());
+        Files.write(new File(repo, ".hg/wlock").toPath(), "other-host:99\n".getBytes("UTF-8"));
+        assertEquals(Arrays.asList(".hg/store/lock is held by build-host:4321", ".hg/wlock is held by other-host:99"), StallWatchdog.lockHolders(root));
+    }
+
+}
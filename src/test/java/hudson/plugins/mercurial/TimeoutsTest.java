@@ -0,0 +1,94 @@
+package hudson.plugins.mercurial;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeoutsTest {
+
+    @AfterEach
+    void clearHistory() {
+        Timeouts.clearHistory();
+    }
+
+    @Test
+    void classify() {
+        assertEquals(Timeouts.Operation.CLONE, operation("hg", "--config", "ui.ssh=ssh -i key", "clone", "--noupdate", "https://hg.example.com/repo", "x"));
+        assertEquals(Timeouts.Operation.PULL, operation("hg", "--debug", "pull", "--rev", "default"));
+        assertEquals(Timeouts.Operation.PULL, operation("hg", "update", "--clean"));
+        assertEquals(Timeouts.Operation.QUERY, operation("hg", "log", "--rev", "pull"));
+        assertEquals(Timeouts.Operation.QUERY, operation("hg", "--version"));
+        assertEquals(Timeouts.Operation.PULL, operation("hg", "--config", "extensions.largefiles=", "lfpull", "--rev", "tip"), "unknown commands are not assumed to be quick");
+    }
+
+    private static Timeouts.Operation operation(String... cmds) {
+        List<String> list = Arrays.asList(cmds);
+        int i = HgExe.subcommandIndex(list);
+        return Timeouts.classify(i != -1 ? list.get(i) : null);
+    }
+
+    @Test
+    void limits() {
+        Timeouts timeouts = new Timeouts();
+        timeouts.setPullMinutes(0);
+        assertNull(timeouts.limit(Timeouts.Operation.QUERY, false, "n\n/ws"), "nothing is limited in builds by default");
+        assertEquals(TimeUnit.MINUTES.toMillis(10), timeouts.limit(Timeouts.Operation.QUERY, true, "n\n/ws").millis);
+        timeouts.setLimitQueriesInBuilds(true);
+        assertEquals(TimeUnit.MINUTES.toMillis(10), timeouts.limit(Timeouts.Operation.QUERY, false, "n\n/ws").millis, "unless asked for");
+        assertNull(timeouts.limit(Timeouts.Operation.CLONE, false, "n\n/ws"));
+        assertEquals(TimeUnit.MINUTES.toMillis(120), timeouts.limit(Timeouts.Operation.CLONE, true, null).millis);
+        assertNull(timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws"), "0 means no limit");
+        assertNull(Timeouts.legacy(Timeouts.Operation.PULL, false));
+        assertEquals(TimeUnit.HOURS.toMillis(1), Timeouts.legacy(Timeouts.Operation.QUERY, true).millis);
+    }
+
+    @Test
+    void adaptive() {
+        Timeouts timeouts = new Timeouts();
+        timeouts.setAdaptive(true);
+        long configured = TimeUnit.MINUTES.toMillis(30);
+        for (int i = 0; i < Timeouts.MIN_SAMPLES; i++) {
+            assertEquals(configured, timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").millis, "too few samples after " + i);
+            timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").record(TimeUnit.SECONDS.toMillis(i == 2 ? 60 : 10));
+        }
+        Timeouts.Limit limit = timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws");
+        assertEquals(Timeouts.FACTOR * TimeUnit.SECONDS.toMillis(60), limit.millis, "derived from the longest run");
+        assertTrue(limit.describe("hg pull in /ws").contains("longest recent run here (60 s)"), limit.describe("hg pull in /ws"));
+        assertEquals(configured, timeouts.limit(Timeouts.Operation.PULL, true, "n\n/other").millis, "per repository");
+        assertEquals(TimeUnit.MINUTES.toMillis(10), timeouts.limit(Timeouts.Operation.QUERY, true, "n\n/ws").millis, "per operation");
+        for (int i = 0; i < Timeouts.HISTORY; i++) {
+            timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").record(1);
+        }
+        assertEquals(Timeouts.FLOOR, timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").millis, "old samples dropped, floor applies");
+        timeouts.setAdaptive(false);
+        assertEquals(configured, timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").millis);
+    }
+
+    @Test
+    void expiryRestoresConfiguredLimit() {
+        Timeouts timeouts = new Timeouts();
+        timeouts.setAdaptive(true);
+        long configured = TimeUnit.MINUTES.toMillis(30);
+        for (int i = 0; i < Timeouts.MIN_SAMPLES; i++) {
+            timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").record(1);
+        }
+        Timeouts.Limit adapted = timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws");
+        assertEquals(Timeouts.FLOOR, adapted.millis);
+        adapted.expired();
+        assertTrue(adapted.describe("hg pull in /ws").contains("next attempt will be allowed the configured limit"), adapted.describe("hg pull in /ws"));
+        Timeouts.Limit retry = timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws");
+        assertEquals(configured, retry.millis, "a pull which now takes longer than the floor gets another chance");
+        retry.record(TimeUnit.MINUTES.toMillis(3));
+        for (int i = 1; i < Timeouts.MIN_SAMPLES; i++) {
+            timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").record(TimeUnit.MINUTES.toMillis(1));
+        }
+        assertEquals(Timeouts.FACTOR * TimeUnit.MINUTES.toMillis(3), timeouts.limit(Timeouts.Operation.PULL, true, "n\n/ws").millis, "adapted again to the new durations");
+    }
+
+}
@@ -0,0 +1,129 @@
+package hudson.plugins.mercurial;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs against a stand-in for {@code hg serve} replaying responses in the format of Mercurial 6.
+ */
+class WireProtocolClientTest {
+
+    private static final String A = "0123456789abcdef0123456789abcdef01234567";
+    private static final String B = "89abcdef0123456789abcdef0123456789abcdef";
+    private static final String C = "fedcba9876543210fedcba9876543210fedcba98";
+
+    private HttpServer server;
+    private String url;
+    private String type;
+
+    @BeforeEach
+    void serve() throws IOException {
+        type = "application/mercurial-0.1";
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/repo", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                String auth = exchange.getRequestHeaders().getFirst("Authorization");
+                if (!("Basic " + Base64.getEncoder().encodeToString("alice:s3cr3t".getBytes(StandardCharsets.UTF_8))).equals(auth)) {
+                    exchange.sendResponseHeaders(401, -1);
+                    exchange.close();
+                    return;
+                }
+                String query = exchange.getRequestURI().getRawQuery();
+                String body;
+                if (query.equals("cmd=capabilities")) {
+                    body = "lookup branchmap pushkey known getbundle unbundlehash batch httpheader=1024 httpmediatype=0.1rx,0.1tx,0.2tx compression=zstd,zlib";
+                } else if (query.equals("cmd=heads")) {
+                    body = A + " " + B + "\n";
+                } else if (query.equals("cmd=branchmap")) {
+                    body = "default " + A + " " + C + "\nfeature%20x " + B + "\nc%2B%2B " + B + "\n";
+                } else if (query.equals("cmd=lookup&key=default")) {
+                    body = "1 " + A + "\n";
+                } else if (query.startsWith("cmd=lookup&key=")) {
+                    body = "0 unknown revision 'nonexistent'\n";
+                } else if (query.equals("cmd=listkeys&namespace=bookmarks")) {
+                    body = "stable\t" + B + "\n@\t" + A;
+                } else {
+                    exchange.sendResponseHeaders(400, -1);
+                    exchange.close();
+                    return;
+                }
+                byte[] data = body.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", type);
+                exchange.sendResponseHeaders(200, data.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(data);
+                }
+            }
+        });
+        server.start();
+        url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/repo";
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    void commands() throws Exception {
+        WireProtocolClient client = new WireProtocolClient(url, "alice", "s3cr3t");
+        assertTrue(client.capabilities().contains("branchmap"));
+        assertEquals(Arrays.asList(A, B), client.heads());
+        Map<String, List<String>> branches = new LinkedHashMap<String, List<String>>();
+        branches.put("default", Arrays.asList(A, C));
+        branches.put("feature x", Collections.singletonList(B));
+        branches.put("c++", Collections.singletonList(B));
+        assertEquals(branches, client.branchmap());
+        assertEquals(A, client.lookup("default"));
+        assertNull(client.lookup("nonexistent"));
+        Map<String, String> bookmarks = new LinkedHashMap<String, String>();
+        bookmarks.put("stable", B);
+        bookmarks.put("@", A);
+        assertEquals(bookmarks, client.listkeys("bookmarks"));
+    }
+
+    @Test
+    void credentialsInURL() throws Exception {
+        WireProtocolClient client = new WireProtocolClient(url.replace("http://", "http://alice:s3cr3t@"), null, null);
+        assertEquals(url, client.toString(), "password not shown");
+        assertEquals(Arrays.asList(A, B), client.heads());
+    }
+
+    @Test
+    void failures() throws Exception {
+        IOException x = assertThrows(IOException.class, () -> new WireProtocolClient(url, "alice", "wrong").heads());
+        assertTrue(x.getMessage().contains("HTTP 401"), x.getMessage());
+        type = "text/html";
+        x = assertThrows(IOException.class, () -> new WireProtocolClient(url, "alice", "s3cr3t").heads());
+        assertTrue(x.getMessage().contains("does not look like a Mercurial repository"), x.getMessage());
+    }
+
+    @Test
+    void forSource() {
+        assertNotNull(WireProtocolClient.forSource("https://hg.example.com/repo", null));
+        assertNull(WireProtocolClient.forSource("ssh://hg@hg.example.com/repo", null));
+        assertNull(WireProtocolClient.forSource("/var/hg/repo", null));
+    }
+
+}
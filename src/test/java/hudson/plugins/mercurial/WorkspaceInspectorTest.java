@@ -0,0 +1,101 @@
+package hudson.plugins.mercurial;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WorkspaceInspectorTest {
+
+    private static final String P1 = "0123456789abcdef0123456789abcdef01234567";
+
+    @TempDir
+    private File repo;
+
+    @Test
+    void defaultPath() {
+        assertEquals("https://example.com/repo", WorkspaceInspector.defaultPath(Arrays.asList(
+                "# comment", "[ui]", "default = nope", "[paths]", "default-push = elsewhere", "default = https://example.com/repo")));
+        assertNull(WorkspaceInspector.defaultPath(Arrays.asList("[paths]", "other = x")));
+        assertNull(WorkspaceInspector.defaultPath(Arrays.asList("%include ../shared.rc", "[paths]", "default = x")));
+    }
+
+    @Test
+    void notARepository() throws Exception {
+        assertFalse(new WorkspaceInspector(true, false, null).invoke(repo, null).repository);
+    }
+
+    @Test
+    void dirstate() throws Exception {
+        File hg = new File(repo, ".hg");
+        assertTrue(hg.mkdir());
+        Files.write(new File(hg, "hgrc").toPath(), "[paths]\ndefault = /src\n".getBytes(StandardCharsets.UTF_8));
+        File f = new File(repo, "f");
+        Files.write(f.toPath(), "hello\n".getBytes(StandardCharsets.UTF_8));
+        int mtime = (int) (f.lastModified() / 1000);
+        writeDirstate(hg, 'n', 6, mtime);
+        WorkspaceInspector.Workspace ws = new WorkspaceInspector(true, false, null).invoke(repo, null);
+        assertTrue(ws.repository);
+        assertFalse(ws.shared);
+        assertEquals("/src", ws.defaultPath);
+        assertEquals(Collections.singletonList(P1), ws.parents);
+        assertEquals(Boolean.TRUE, ws.clean);
+        writeDirstate(hg, 'n', 7, mtime);
+        assertEquals(Boolean.FALSE, new WorkspaceInspector(true, false, null).invoke(repo, null).clean);
+        writeDirstate(hg, 'a', 6, mtime);
+        assertEquals(Boolean.FALSE, new WorkspaceInspector(true, false, null).invoke(repo, null).clean);
+        writeDirstate(hg, 'n', 6, mtime - 10);
+        assertNull(new WorkspaceInspector(true, false, null).invoke(repo, null).clean);
+    }
+
+    @Test
+    void mergeStateIsNotClean() throws Exception {
+        File hg = new File(repo, ".hg");
+        assertTrue(hg.mkdir());
+        File f = new File(repo, "f");
+        Files.write(f.toPath(), "hello\n".getBytes(StandardCharsets.UTF_8));
+        writeDirstate(hg, 'n', 6, (int) (f.lastModified() / 1000));
+        assertTrue(new File(hg, "merge").mkdir()); // as left by a conflicting update or rebase
+        assertEquals(Boolean.FALSE, new WorkspaceInspector(true, false, null).invoke(repo, null).clean);
+    }
+
+    @Test
+    void branch() throws Exception {
+        File hg = new File(repo, ".hg");
+        assertTrue(hg.mkdir());
+        WorkspaceInspector.Workspace ws = new WorkspaceInspector(false, false, null).invoke(repo, null);
+        assertEquals("default", ws.branch);
+        Files.write(new File(hg, "branch").toPath(), "feature\n".getBytes(StandardCharsets.UTF_8));
+        ws = new WorkspaceInspector(false, false, null).invoke(repo, null);
+        assertEquals("feature", ws.branch);
+        ws.clean = true;
+        ws.parents = Collections.singletonList(P1);
+        ws.targetNode = P1;
+        ws.targetBranch = "default";
+        assertFalse(ws.isCleanAt(), "hg branch was run since the last update");
+        ws.targetBranch = "feature";
+        assertTrue(ws.isCleanAt());
+    }
+
+    private static void writeDirstate(File hg, char state, int size, int mtime) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 40; i += 2) {
+            out.write(Integer.parseInt(P1.substring(i, i + 2), 16));
+        }
+        out.write(new byte[20], 0, 20);
+        out.write(ByteBuffer.allocate(17).put((byte) state).putInt(0644).putInt(size).putInt(mtime).putInt(1).array(), 0, 17);
+        out.write('f');
+        Files.write(new File(hg, "dirstate").toPath(), out.toByteArray());
+    }
+
+}